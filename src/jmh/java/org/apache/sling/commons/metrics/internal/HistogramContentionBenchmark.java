@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.commons.metrics.Histogram;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of a single histogram updated by all benchmark threads for the
+ * different reservoir types. Run through {@link MetricsBenchmarkRunner} to compare 1 to 64
+ * threads: {@code STRIPED_HDR} is expected to scale with the number of cores while the shared
+ * reservoirs flatten out or degrade.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class HistogramContentionBenchmark {
+
+    @Param({"EXPONENTIALLY_DECAYING", "HDR", "STRIPED_HDR", "INTERVAL"})
+    public String reservoir;
+
+    private Histogram histogram;
+
+    @Setup
+    public void setup() {
+        ReservoirFactory factory = new ReservoirFactory(
+                ReservoirFactory.Type.valueOf(reservoir),
+                ReservoirFactory.DEFAULT_SIZE,
+                ReservoirFactory.DEFAULT_WINDOW_SECONDS,
+                ReservoirFactory.DEFAULT_SIGNIFICANT_DIGITS,
+                ReservoirFactory.DEFAULT_HIGHEST_TRACKABLE_VALUE,
+                ReservoirFactory.DEFAULT_STRIPES,
+                ReservoirFactory.DEFAULT_INTERVAL_SECONDS,
+                ReservoirFactory.DEFAULT_INTERVALS);
+        histogram = new HistogramImpl(new com.codahale.metrics.Histogram(factory.create()));
+    }
+
+    @Benchmark
+    public void update() {
+        // Realistic request durations between 100us and 100ms, spread over many buckets
+        histogram.update(ThreadLocalRandom.current().nextLong(100_000, 100_000_000));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.testing.mock.osgi.MockBundle;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Measures the time to register and unregister the metrics of many bundles, as it happens
+ * when bundles get restarted. All metrics are exposed through a {@link JmxMetricsReporter}, so
+ * the cost of naming the MBeans in {@link BundleMetricsMapper} is included.
+ *
+ * <p>The {@code metrics} are evenly spread over the benchmark threads, so every invocation
+ * churns the same number of metrics whatever the number of threads.</p>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@State(Scope.Thread)
+public class MetricsChurnBenchmark {
+    private static final int METRICS_PER_BUNDLE = 500;
+
+    @Param({"50000"})
+    public int metrics;
+
+    @Param({"false", "true"})
+    public boolean aggregated;
+
+    private BundleContext bundleContext;
+    private BundleMetricsMapper mapper;
+    private JmxMetricsReporter reporter;
+    private InternalMetricsServiceFactory factory;
+    private MockBundle[] bundles;
+    private String[][] names;
+
+    @Setup
+    public void setup(ThreadParams thread) {
+        MetricsServiceImpl serviceImpl = new MetricsServiceImpl();
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        mapper = new BundleMetricsMapper(serviceImpl, serviceImpl.getRegistry());
+        reporter = new JmxMetricsReporter(
+                serviceImpl.getRegistry(),
+                server,
+                mapper,
+                BundleMetricsMapper.DEFAULT_DOMAIN_NAME,
+                aggregated ? new String[0] : null,
+                serviceImpl.getSnapshotCache());
+        reporter.start();
+        factory = new InternalMetricsServiceFactory(serviceImpl, mapper);
+
+        bundleContext = MockOsgi.newBundleContext();
+        int bundleCount = Math.max(metrics / thread.getThreadCount() / METRICS_PER_BUNDLE, 1);
+        bundles = new MockBundle[bundleCount];
+        names = new String[bundleCount][METRICS_PER_BUNDLE];
+        for (int b = 0; b < bundleCount; b++) {
+            String symbolicName = "org.apache.sling.benchmark.t" + thread.getThreadIndex() + ".b" + b;
+            bundles[b] = new MockBundle(bundleContext);
+            bundles[b].setSymbolicName(symbolicName);
+            bundles[b].setHeaders(Collections.singletonMap("Bundle-SymbolicName", symbolicName));
+            for (int i = 0; i < METRICS_PER_BUNDLE; i++) {
+                names[b][i] = symbolicName + ".requests." + i;
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        reporter.close();
+        MockOsgi.shutdown(bundleContext);
+    }
+
+    @Benchmark
+    public void registerUnregister() {
+        for (int b = 0; b < bundles.length; b++) {
+            MetricsService metricsService = factory.getService(bundles[b], null);
+            for (String name : names[b]) {
+                metricsService.counter(name);
+            }
+            factory.ungetService(bundles[b], null, metricsService);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.commons.metrics.Counter;
+import org.apache.sling.commons.metrics.Histogram;
+import org.apache.sling.commons.metrics.Meter;
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.commons.metrics.Timer;
+import org.apache.sling.testing.mock.osgi.MockBundle;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Measures the recording hot paths of the metrics handed out by the {@code MetricsService}.
+ *
+ * <p>The metrics are either obtained directly from {@link MetricsServiceImpl} or through the
+ * per bundle {@code BundleMetricService} created by {@link InternalMetricsServiceFactory}. With
+ * {@code lookup=true} the metric is looked up by name on every invocation, which is how a lot
+ * of callers use the service, so the cost of the wrapper layers becomes visible. The
+ * {@code BundleMetricService} serves such repeated lookups from its own cache, so with
+ * {@code lookup=true} the {@code bundle} path should be on par with the {@code service} path.</p>
+ *
+ * <p>Use {@link MetricsBenchmarkRunner} to run the suite for 1, 4, 16 and 64 threads together
+ * with the gc profiler.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class MetricsServiceBenchmark {
+    private static final String COUNTER = "benchmark.counter";
+    private static final String METER = "benchmark.meter";
+    private static final String HISTOGRAM = "benchmark.histogram";
+    private static final String TIMER = "benchmark.timer";
+
+    @Param({"service", "bundle"})
+    public String path;
+
+    @Param({"false", "true"})
+    public boolean lookup;
+
+    private BundleContext bundleContext;
+    private MetricsService metricsService;
+    private Counter counter;
+    private Meter meter;
+    private Histogram histogram;
+    private Timer timer;
+
+    @Setup
+    public void setup() {
+        MetricsServiceImpl serviceImpl = new MetricsServiceImpl();
+        if ("bundle".equals(path)) {
+            bundleContext = MockOsgi.newBundleContext();
+            MockBundle bundle = new MockBundle(bundleContext);
+            bundle.setSymbolicName("org.apache.sling.commons.metrics.benchmark");
+            BundleMetricsMapper mapper = new BundleMetricsMapper(serviceImpl, serviceImpl.getRegistry());
+            metricsService = new InternalMetricsServiceFactory(serviceImpl, mapper).getService(bundle, null);
+        } else {
+            metricsService = serviceImpl;
+        }
+
+        counter = metricsService.counter(COUNTER);
+        meter = metricsService.meter(METER);
+        histogram = metricsService.histogram(HISTOGRAM);
+        timer = metricsService.timer(TIMER);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (bundleContext != null) {
+            MockOsgi.shutdown(bundleContext);
+        }
+    }
+
+    @Benchmark
+    public void counterIncrement() {
+        counter().increment();
+    }
+
+    @Benchmark
+    public void meterMark() {
+        meter().mark();
+    }
+
+    @Benchmark
+    public void histogramUpdate(Values values) {
+        histogram().update(values.next());
+    }
+
+    @Benchmark
+    public void timerUpdate(Values values) {
+        timer().update(values.next(), TimeUnit.NANOSECONDS);
+    }
+
+    @Benchmark
+    public long timerTimeStop() {
+        Timer.Context context = timer().time();
+        return context.stop();
+    }
+
+    private Counter counter() {
+        return lookup ? metricsService.counter(COUNTER) : counter;
+    }
+
+    private Meter meter() {
+        return lookup ? metricsService.meter(METER) : meter;
+    }
+
+    private Histogram histogram() {
+        return lookup ? metricsService.histogram(HISTOGRAM) : histogram;
+    }
+
+    private Timer timer() {
+        return lookup ? metricsService.timer(TIMER) : timer;
+    }
+
+    /**
+     * Per thread source of recorded values, spread over a few orders of magnitude
+     * so that the reservoirs do not only ever see a single value
+     */
+    @State(Scope.Thread)
+    public static class Values {
+        private long sequence;
+
+        long next() {
+            return (sequence++ & 0x3FF) * 1000L;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.SlidingWindowReservoir;
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.commons.metrics.Timer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the allocation of the {@link Timer#time()} context with the primitive
+ * {@link Timer#start()}/{@link Timer#stop(long)} and {@code record} variants.
+ *
+ * <p>The timer is backed by a {@link SlidingWindowReservoir}, which records into a
+ * preallocated array, so that the reported {@code gc.alloc.rate.norm} only contains what
+ * the timing API itself allocates. It is expected to be two objects per operation for
+ * {@code context} and {@code 0 B/op} for all other benchmarks, for both the real and the
+ * {@code MetricsService.NOOP} timer.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class TimerAllocationBenchmark {
+
+    @Param({"timer", "noop"})
+    public String type;
+
+    private Timer timer;
+
+    @Setup
+    public void setup() {
+        if ("noop".equals(type)) {
+            timer = MetricsService.NOOP.timer("benchmark.timer");
+        } else {
+            timer = new TimerImpl(new com.codahale.metrics.Timer(new SlidingWindowReservoir(1024)));
+        }
+    }
+
+    @Benchmark
+    public long context() {
+        Timer.Context context = timer.time();
+        return context.stop();
+    }
+
+    @Benchmark
+    public long startStop() {
+        long start = timer.start();
+        return timer.stop(start);
+    }
+
+    @Benchmark
+    public void recordRunnable(Blackhole blackhole) {
+        timer.record(() -> blackhole.consume(1L));
+    }
+
+    @Benchmark
+    public Object recordSupplier() {
+        return timer.record(() -> this);
+    }
+}
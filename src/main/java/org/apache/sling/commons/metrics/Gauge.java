@@ -51,6 +51,17 @@ public interface Gauge<T> {
      * Service property name which determines the name of the Gauge
      */
     String NAME = "name";
+
+    /**
+     * Service property name which determines the interval in milliseconds at which the value of
+     * the Gauge is refreshed in the background. Reading the Gauge, by reporters or JMX, then
+     * returns the value of the last refresh instead of calling {@link #getValue()}, which suits
+     * Gauges which are expensive to evaluate or might block. If not set the Gauge is evaluated on
+     * every read.
+     *
+     * @since 1.7.0
+     */
+    String REFRESH_INTERVAL = "refreshInterval";
     /**
      * Returns the metric's current value.
      *
@@ -18,6 +18,9 @@
  */
 package org.apache.sling.commons.metrics;
 
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
 
 import org.osgi.annotation.versioning.ProviderType;
@@ -62,6 +65,16 @@ public interface MetricsService {
             return null;
         }
 
+        @Override
+        public LongGauge longGauge(String name, LongSupplier supplier) {
+            return supplier::getAsLong;
+        }
+
+        @Override
+        public DoubleGauge doubleGauge(String name, DoubleSupplier supplier) {
+            return supplier::getAsDouble;
+        }
+
         @Override
         public boolean unregister(String name) {
             return false;
@@ -114,6 +127,49 @@ public interface MetricsService {
      */
     <T> Gauge<T> gauge(String name, Supplier<T> supplier);
 
+    /**
+     * Creates a new {@link Gauge} whose value is refreshed in the background at the given interval,
+     * and registers it under the given name. Reading the gauge returns the value of the last refresh,
+     * {@code null} until the first one completed, so that reporters and JMX never wait for a supplier
+     * which is expensive or might block. If a gauge with the same name exists already the same
+     * instance is returned.
+     *
+     * @param name the name of the gauge
+     * @param supplier provides the values which are returned by the gauge
+     * @param refreshInterval the interval at which the value is refreshed
+     * @param unit the unit of the interval
+     * @param <T> the type of the metric
+     * @return the gauge
+     * @since 1.7.0
+     */
+    default <T> Gauge<T> gauge(String name, Supplier<T> supplier, long refreshInterval, TimeUnit unit) {
+        return gauge(name, supplier);
+    }
+
+    /**
+     * Creates a new {@link LongGauge} and registers it under the given name. Reporters read its
+     * value without boxing it. If a gauge of that type with the same name exists already the same
+     * instance is returned.
+     *
+     * @param name the name of the gauge
+     * @param supplier provides the values which are returned by the gauge, e.g. a {@link SettableLongGauge}
+     * @return the gauge
+     * @since 1.7.0
+     */
+    LongGauge longGauge(String name, LongSupplier supplier);
+
+    /**
+     * Creates a new {@link DoubleGauge} and registers it under the given name. Reporters read its
+     * value without boxing it. If a gauge of that type with the same name exists already the same
+     * instance is returned.
+     *
+     * @param name the name of the gauge
+     * @param supplier provides the values which are returned by the gauge, e.g. a {@link SettableDoubleGauge}
+     * @return the gauge
+     * @since 1.7.0
+     */
+    DoubleGauge doubleGauge(String name, DoubleSupplier supplier);
+
     /**
      * Adapts the service to the specified type. This can be used to
      * get instance to underlying {@code MetricRegistry}
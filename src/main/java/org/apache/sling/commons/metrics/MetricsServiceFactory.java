@@ -18,10 +18,21 @@
  */
 package org.apache.sling.commons.metrics;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
 import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.util.tracker.ServiceTracker;
 
 /** Utility that provides a MetricsService to any class that
  *  has been loaded from an OSGi bundle.
@@ -29,6 +40,14 @@ import org.osgi.framework.ServiceReference;
  *  as it is to get a Logger, for example.
  */
 public class MetricsServiceFactory {
+    private static final ClassValue<Bundle> BUNDLES = new ClassValue<Bundle>() {
+        @Override
+        protected Bundle computeValue(Class<?> type) {
+            return FrameworkUtil.getBundle(type);
+        }
+    };
+
+    private static final ConcurrentMap<Long, MetricsService> CACHED_SERVICES = new ConcurrentHashMap<>();
 
     /** Provide a MetricsService mapped to the Bundle that loaded class c
      *  @param c a Class loaded by an OSGi bundle
@@ -41,8 +60,7 @@ public class MetricsServiceFactory {
 
         final Bundle b = FrameworkUtil.getBundle(c);
         if (b == null) {
-            throw new IllegalArgumentException("No BundleContext, Class was not loaded from a Bundle?: "
-                    + c.getClass().getName());
+            throw new IllegalArgumentException("No BundleContext, Class was not loaded from a Bundle?: " + c.getName());
         }
 
         final BundleContext ctx = b.getBundleContext();
@@ -57,4 +75,156 @@ public class MetricsServiceFactory {
 
         return (MetricsService) ctx.getService(ref);
     }
+
+    /** Provide a MetricsService mapped to the Bundle that loaded class c, which is
+     *  cheap enough to be called for every metric that is recorded.
+     *  <p>
+     *  Unlike {@link #getMetricsService(Class)} the returned service is cached per bundle
+     *  and follows the MetricsService registered for that bundle. As long as there is none,
+     *  it behaves like {@link MetricsService#NOOP} instead of failing.
+     *
+     *  @param c a Class loaded by an OSGi bundle
+     *  @return a MetricsService
+     *  @since 1.6.0
+     */
+    public static MetricsService getCachedMetricsService(Class<?> c) {
+        if (c == null) {
+            throw new IllegalArgumentException("Class parameter is required");
+        }
+
+        final Bundle b = BUNDLES.get(c);
+        if (b == null) {
+            throw new IllegalArgumentException("No BundleContext, Class was not loaded from a Bundle?: " + c.getName());
+        }
+
+        final MetricsService cached = CACHED_SERVICES.get(b.getBundleId());
+        if (cached != null) {
+            return cached;
+        }
+        return CACHED_SERVICES.computeIfAbsent(
+                b.getBundleId(), id -> new TrackingMetricsService(b, service -> CACHED_SERVICES.remove(id, service)));
+    }
+
+    /**
+     * The {@link MetricsService} of a bundle as handed out by
+     * {@link #getCachedMetricsService(Class)}. It tracks the service with the
+     * context of the bundle, so every call goes to the {@code MetricsService} currently registered
+     * for the bundle, or to {@link MetricsService#NOOP} as long as there is none.
+     *
+     * <p>The tracker is opened on first use and closed when the bundle stops. If the bundle gets
+     * started again, it is reopened on the next use.</p>
+     */
+    private static final class TrackingMetricsService implements MetricsService, SynchronousBundleListener {
+        private final Bundle bundle;
+        private final Consumer<MetricsService> onStop;
+        private volatile ServiceTracker<MetricsService, MetricsService> tracker;
+        private BundleContext context;
+
+        TrackingMetricsService(Bundle bundle, Consumer<MetricsService> onStop) {
+            this.bundle = bundle;
+            this.onStop = onStop;
+        }
+
+        @Override
+        public Timer timer(String name) {
+            return current().timer(name);
+        }
+
+        @Override
+        public Histogram histogram(String name) {
+            return current().histogram(name);
+        }
+
+        @Override
+        public Counter counter(String name) {
+            return current().counter(name);
+        }
+
+        @Override
+        public Meter meter(String name) {
+            return current().meter(name);
+        }
+
+        @Override
+        public <T> Gauge<T> gauge(String name, Supplier<T> supplier) {
+            return current().gauge(name, supplier);
+        }
+
+        @Override
+        public <T> Gauge<T> gauge(String name, Supplier<T> supplier, long refreshInterval, TimeUnit unit) {
+            return current().gauge(name, supplier, refreshInterval, unit);
+        }
+
+        @Override
+        public LongGauge longGauge(String name, LongSupplier supplier) {
+            return current().longGauge(name, supplier);
+        }
+
+        @Override
+        public DoubleGauge doubleGauge(String name, DoubleSupplier supplier) {
+            return current().doubleGauge(name, supplier);
+        }
+
+        @Override
+        public <A> A adaptTo(Class<A> type) {
+            return current().adaptTo(type);
+        }
+
+        @Override
+        public boolean unregister(String name) {
+            return current().unregister(name);
+        }
+
+        @Override
+        public void bundleChanged(BundleEvent event) {
+            if (event.getType() == BundleEvent.STOPPING && event.getBundle().equals(bundle)) {
+                close();
+            }
+        }
+
+        private MetricsService current() {
+            ServiceTracker<MetricsService, MetricsService> t = tracker;
+            if (t == null) {
+                // Only starting and active bundles have a context, the state is read without locking
+                if ((bundle.getState() & (Bundle.STARTING | Bundle.ACTIVE)) == 0) {
+                    return NOOP;
+                }
+                t = open();
+            }
+            MetricsService service = t != null ? t.getService() : null;
+            return service != null ? service : NOOP;
+        }
+
+        private synchronized ServiceTracker<MetricsService, MetricsService> open() {
+            if (tracker == null) {
+                // Only started bundles have a context, and a stopping bundle must not track anymore
+                BundleContext bundleContext = bundle.getBundleContext();
+                if (bundleContext == null || bundle.getState() == Bundle.STOPPING) {
+                    return null;
+                }
+                context = bundleContext;
+                context.addBundleListener(this);
+                ServiceTracker<MetricsService, MetricsService> t =
+                        new ServiceTracker<>(context, MetricsService.class, null);
+                t.open();
+                tracker = t;
+            }
+            return tracker;
+        }
+
+        private synchronized void close() {
+            ServiceTracker<MetricsService, MetricsService> t = tracker;
+            tracker = null;
+            if (t != null) {
+                t.close();
+                try {
+                    context.removeBundleListener(this);
+                } catch (IllegalStateException e) {
+                    // the context is already invalid, which removes the listener anyway
+                }
+                context = null;
+            }
+            onStop.accept(this);
+        }
+    }
 }
@@ -19,6 +19,7 @@
 package org.apache.sling.commons.metrics;
 
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 enum NoopMetric implements Counter, Histogram, Timer, Meter {
     INSTANCE;
@@ -54,6 +55,26 @@ enum NoopMetric implements Counter, Histogram, Timer, Meter {
         return NoopContext.INSTANCE;
     }
 
+    @Override
+    public long start() {
+        return 0;
+    }
+
+    @Override
+    public long stop(long start) {
+        return 0;
+    }
+
+    @Override
+    public void record(Runnable operation) {
+        operation.run();
+    }
+
+    @Override
+    public <T> T record(Supplier<T> operation) {
+        return operation.get();
+    }
+
     @Override
     public void update(long value) {}
 
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A {@link DoubleGauge} holding a value which is set by the code it instruments, e.g.
+ *
+ * <pre><code>
+ * SettableDoubleGauge hitRatio = new SettableDoubleGauge();
+ * metricsService.doubleGauge("cache.hitRatio", hitRatio);
+ * ...
+ * hitRatio.set(cache.hitRatio());
+ * </code></pre>
+ *
+ * The value is kept in a volatile field, so setting and reading it costs no more than a volatile
+ * write and read.
+ *
+ * @since 1.7.0
+ */
+public final class SettableDoubleGauge implements DoubleGauge, DoubleSupplier {
+    private volatile double value;
+
+    /**
+     * Creates a gauge with the value {@code 0}
+     */
+    public SettableDoubleGauge() {}
+
+    /**
+     * Creates a gauge with the given initial value
+     *
+     * @param value the initial value
+     */
+    public SettableDoubleGauge(double value) {
+        this.value = value;
+    }
+
+    /**
+     * Sets the value of the gauge.
+     *
+     * @param value the new value
+     */
+    public void set(double value) {
+        this.value = value;
+    }
+
+    @Override
+    public double getDouble() {
+        return value;
+    }
+
+    @Override
+    public double getAsDouble() {
+        return value;
+    }
+}
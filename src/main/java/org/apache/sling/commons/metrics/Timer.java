@@ -20,6 +20,7 @@ package org.apache.sling.commons.metrics;
 
 import java.io.Closeable;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import org.osgi.annotation.versioning.ProviderType;
 
@@ -57,4 +58,49 @@ public interface Timer extends Counting, Metric {
      * @see Context
      */
     Context time();
+
+    /**
+     * Starts timing an operation without allocating a {@link Context}. The returned
+     * token has to be passed to {@link #stop(long)} once the operation is done.
+     *
+     * <pre><code>
+     * long start = timer.start();
+     * try {
+     *     ...
+     * } finally {
+     *     timer.stop(start);
+     * }
+     * </code></pre>
+     *
+     * @return the start token
+     * @since 1.5.0
+     */
+    long start();
+
+    /**
+     * Updates the timer with the time elapsed since the given start token was obtained.
+     *
+     * @param start a token returned by {@link #start()} of this timer
+     * @return the elapsed time in nanoseconds
+     * @since 1.5.0
+     */
+    long stop(long start);
+
+    /**
+     * Runs the given operation and records its duration.
+     *
+     * @param operation the operation to time
+     * @since 1.5.0
+     */
+    void record(Runnable operation);
+
+    /**
+     * Invokes the given operation, records its duration and returns its result.
+     *
+     * @param <T> the type of the result
+     * @param operation the operation to time
+     * @return the value returned by {@code operation}
+     * @since 1.5.0
+     */
+    <T> T record(Supplier<T> operation);
 }
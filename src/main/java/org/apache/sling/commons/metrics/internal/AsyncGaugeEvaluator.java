@@ -0,0 +1,332 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates gauges with a refresh interval in the background. Reading such a gauge, from the
+ * reporters, the web console or JMX, returns the value of its last refresh and never waits for
+ * a slow supplier.
+ *
+ * <p>The gauges are refreshed on a bounded pool of threads. A refresh taking longer than the
+ * timeout gets interrupted, and unless it still returns the gauge keeps its previous value. Its
+ * thread is written off until the supplier returns, and the pool grows by one thread meanwhile,
+ * so that suppliers ignoring the interrupt can't starve the other gauges. A refresh is skipped
+ * while the previous one of the same gauge is still running, or if the pool is saturated.</p>
+ *
+ * <p>Once the first gauge is started, the evaluator tracks itself with the {@link #TIMEOUTS} and
+ * {@link #FAILURES} counters, and the {@link #STALE} gauge counting the gauges which were not
+ * refreshed for more than twice their interval plus the timeout.</p>
+ */
+final class AsyncGaugeEvaluator implements Closeable {
+    static final String TIMEOUTS = "sling.metrics.gauges.timeouts";
+    static final String FAILURES = "sling.metrics.gauges.failures";
+    static final String STALE = "sling.metrics.gauges.stale";
+
+    static final int DEFAULT_THREADS = 2;
+    static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+    private static final int MAX_QUEUED_REFRESHES = 1000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final MetricRegistry registry;
+    private final Clock clock;
+    private final ScheduledExecutorService scheduler;
+    private final ThreadPoolExecutor pool;
+    private final ConcurrentMap<String, AsyncGauge<?>> gauges = new ConcurrentHashMap<>();
+    private final Counter timeouts = new Counter();
+    private final Counter failures = new Counter();
+    private final AtomicBoolean selfMetricsRegistered = new AtomicBoolean();
+
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    // Guarded by this instance
+    private int threads = DEFAULT_THREADS;
+    private int writtenOff;
+
+    AsyncGaugeEvaluator(MetricRegistry registry, Clock clock) {
+        this.registry = registry;
+        this.clock = clock;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("scheduler"));
+        this.pool = new ThreadPoolExecutor(
+                DEFAULT_THREADS,
+                DEFAULT_THREADS,
+                1,
+                TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(MAX_QUEUED_REFRESHES),
+                new NamedThreadFactory("worker"));
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Applies to refreshes started afterwards
+     */
+    synchronized void configure(int threads, long timeout, TimeUnit unit) {
+        this.threads = Math.max(threads, 1);
+        resize();
+        this.timeoutMillis = unit.toMillis(Math.max(timeout, 1));
+    }
+
+    /**
+     * Adds the given number of threads stuck in timed out refreshes, to be replaced in the pool
+     */
+    private synchronized void writeOff(int count) {
+        writtenOff += count;
+        resize();
+    }
+
+    private void resize() {
+        int size = threads + writtenOff;
+        if (size > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+        } else {
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * @return a gauge serving the last value of the supplier, which is only refreshed once
+     *         {@linkplain #start(String, AsyncGauge) started}
+     */
+    <T> AsyncGauge<T> newGauge(Supplier<T> supplier, long refreshInterval, TimeUnit unit) {
+        return new AsyncGauge<>(supplier, unit.toMillis(Math.max(refreshInterval, 1)));
+    }
+
+    /**
+     * Starts refreshing the gauge registered under the given name, replacing the gauge
+     * previously started for that name
+     */
+    void start(String name, AsyncGauge<?> gauge) {
+        registerSelfMetrics();
+        AsyncGauge<?> previous = gauges.put(name, gauge);
+        if (previous != null && previous != gauge) {
+            previous.cancel();
+        }
+        gauge.start();
+    }
+
+    /**
+     * Stops refreshing the gauge started under the given name, if any
+     */
+    void stop(String name) {
+        AsyncGauge<?> gauge = gauges.remove(name);
+        if (gauge != null) {
+            gauge.cancel();
+        }
+    }
+
+    /**
+     * Stops refreshing the given gauge, if it is still the one started under the given name
+     */
+    void stop(String name, AsyncGauge<?> gauge) {
+        if (gauges.remove(name, gauge)) {
+            gauge.cancel();
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        pool.shutdownNow();
+        gauges.clear();
+        if (selfMetricsRegistered.get()) {
+            registry.remove(TIMEOUTS);
+            registry.remove(FAILURES);
+            registry.remove(STALE);
+        }
+    }
+
+    long getTimeouts() {
+        return timeouts.getCount();
+    }
+
+    long getFailures() {
+        return failures.getCount();
+    }
+
+    int getStale() {
+        long now = clock.getTick();
+        int stale = 0;
+        for (AsyncGauge<?> gauge : gauges.values()) {
+            if (gauge.isStale(now)) {
+                stale++;
+            }
+        }
+        return stale;
+    }
+
+    private void registerSelfMetrics() {
+        if (selfMetricsRegistered.compareAndSet(false, true)) {
+            try {
+                registry.register(TIMEOUTS, timeouts);
+                registry.register(FAILURES, failures);
+                registry.register(STALE, (com.codahale.metrics.Gauge<Integer>) this::getStale);
+            } catch (IllegalArgumentException e) {
+                log.warn("Could not register the metrics of the asynchronous gauges", e);
+            }
+        }
+    }
+
+    /**
+     * A gauge serving the value of the last refresh of its supplier, {@code null} until the
+     * first refresh completed
+     */
+    final class AsyncGauge<T> implements com.codahale.metrics.Gauge<T> {
+        private final Supplier<T> supplier;
+        private final long intervalMillis;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private volatile T value;
+        private volatile long refreshedAt;
+        private volatile ScheduledFuture<?> schedule;
+
+        AsyncGauge(Supplier<T> supplier, long intervalMillis) {
+            this.supplier = supplier;
+            this.intervalMillis = intervalMillis;
+            this.refreshedAt = clock.getTick();
+        }
+
+        @Override
+        public T getValue() {
+            return value;
+        }
+
+        private synchronized void start() {
+            if (schedule == null) {
+                schedule = scheduler.scheduleWithFixedDelay(this::refresh, 0, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void cancel() {
+            if (schedule != null) {
+                schedule.cancel(false);
+            }
+        }
+
+        private boolean isStale(long now) {
+            return now - refreshedAt > TimeUnit.MILLISECONDS.toNanos(2 * intervalMillis + timeoutMillis);
+        }
+
+        private void refresh() {
+            if (!refreshing.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                pool.execute(this::evaluate);
+            } catch (RejectedExecutionException e) {
+                refreshing.set(false);
+            }
+        }
+
+        private void evaluate() {
+            Evaluation evaluation = new Evaluation(Thread.currentThread());
+            ScheduledFuture<?> timeout = scheduler.schedule(evaluation::timeout, timeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                value = supplier.get();
+                refreshedAt = clock.getTick();
+            } catch (RuntimeException e) {
+                if (!evaluation.timedOut()) {
+                    failures.inc();
+                    log.debug("Evaluating a gauge failed", e);
+                }
+            } finally {
+                timeout.cancel(false);
+                evaluation.done();
+                refreshing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Interrupts the thread evaluating a gauge on timeout, but never once it moved on, and writes
+     * it off until then
+     */
+    private final class Evaluation {
+        private final Thread thread;
+        private boolean done;
+        private boolean timedOut;
+
+        Evaluation(Thread thread) {
+            this.thread = thread;
+        }
+
+        synchronized void timeout() {
+            if (!done) {
+                timedOut = true;
+                timeouts.inc();
+                writeOff(1);
+                thread.interrupt();
+            }
+        }
+
+        synchronized boolean timedOut() {
+            return timedOut;
+        }
+
+        void done() {
+            boolean replaced;
+            synchronized (this) {
+                done = true;
+                replaced = timedOut;
+            }
+            if (replaced) {
+                writeOff(-1);
+            }
+            // Clears an interrupt of a timeout which happened after the supplier returned
+            Thread.interrupted();
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final String prefix;
+
+        NamedThreadFactory(String name) {
+            this.prefix = "sling-metrics-gauges-" + name + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
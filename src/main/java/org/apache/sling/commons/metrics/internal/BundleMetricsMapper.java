@@ -21,25 +21,49 @@ package org.apache.sling.commons.metrics.internal;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ObjectNameFactory;
 import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-class BundleMetricsMapper implements ObjectNameFactory {
+/**
+ * Maps the metrics to the bundles which registered them, and names their MBeans after the
+ * domain of that bundle.
+ *
+ * <p>The domain of each bundle is cached until the bundle gets updated or uninstalled, and the
+ * object names of the most recently used metric names are cached as well, so that re-registering
+ * the metrics of a restarted bundle neither reads the bundle headers nor parses object names.</p>
+ */
+class BundleMetricsMapper implements ObjectNameFactory, BundleListener {
     public static final String HEADER_DOMAIN_NAME = "Sling-Metrics-Domain";
     public static final String DEFAULT_DOMAIN_NAME = "org.apache.sling";
     static final String JMX_TYPE_METRICS = "Metrics";
+    static final int MAX_CACHED_OBJECT_NAMES = 10_000;
     private final Logger log = LoggerFactory.getLogger(getClass());
     private final ConcurrentMap<String, Bundle> metricToBundleMapping = new ConcurrentHashMap<>();
     private final MetricsServiceImpl metricsService;
     private final MetricRegistry registry;
+    private final AtomicLong generation = new AtomicLong();
+    private final ConcurrentMap<Long, String> bundleDomains = new ConcurrentHashMap<>();
+    private final Map<String, ObjectName> objectNames =
+            Collections.synchronizedMap(new LinkedHashMap<String, ObjectName>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ObjectName> eldest) {
+                    return size() > MAX_CACHED_OBJECT_NAMES;
+                }
+            });
 
     BundleMetricsMapper(MetricsServiceImpl metricsService, MetricRegistry registry) {
         this.metricsService = metricsService;
@@ -56,38 +80,77 @@ class BundleMetricsMapper implements ObjectNameFactory {
             metricToBundleMapping.remove(name);
             metricsService.remove(name);
         }
+        generation.incrementAndGet();
         log.debug("Removed metrics for {}", registeredNames);
         return true;
     }
 
+    /**
+     * @return the bundle which registered the metric, or {@code null} if it was not registered through a bundle
+     */
+    Bundle getBundle(String name) {
+        return metricToBundleMapping.get(name);
+    }
+
+    /**
+     * @return a number which changes whenever metrics got unregistered, so that metrics handed
+     *         out before can no longer be assumed to be registered
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
     @Override
     public ObjectName createName(String type, String domain, String name) {
-        String mappedDomainName = JmxUtil.safeDomainName(getDomainName(name));
-        if (mappedDomainName == null) {
-            mappedDomainName = domain;
+        String mappedDomainName = getDomain(name, domain);
+
+        // The domain changes if the metric is registered by another bundle, or if the bundle got updated
+        ObjectName cached = objectNames.get(name);
+        if (cached != null && cached.getDomain().equals(mappedDomainName)) {
+            return cached;
         }
 
         Hashtable<String, String> table = new Hashtable<>();
         table.put("type", JMX_TYPE_METRICS);
         table.put("name", JmxUtil.quoteValueIfRequired(name));
         try {
-            return new ObjectName(mappedDomainName, table);
+            ObjectName objectName = new ObjectName(mappedDomainName, table);
+            objectNames.put(name, objectName);
+            return objectName;
         } catch (MalformedObjectNameException e) {
             log.warn("Unable to register {} {}", type, name, e);
             throw new RuntimeException(e);
         }
     }
 
-    private String getDomainName(String name) {
-        Bundle bundle = metricToBundleMapping.get(name);
-        return getDomainName(bundle);
+    @Override
+    public void bundleChanged(BundleEvent event) {
+        if (event.getType() == BundleEvent.UPDATED || event.getType() == BundleEvent.UNINSTALLED) {
+            bundleDomains.remove(event.getBundle().getBundleId());
+        }
     }
 
-    private String getDomainName(Bundle bundle) {
+    /**
+     * @return the JMX domain of the bundle which registered the metric, or {@code defaultDomain}
+     *         if it was not registered through a bundle
+     */
+    String getDomain(String name, String defaultDomain) {
+        Bundle bundle = metricToBundleMapping.get(name);
         if (bundle == null) {
-            return null;
+            return defaultDomain;
         }
+        String mappedDomainName = bundleDomains.get(bundle.getBundleId());
+        if (mappedDomainName == null) {
+            mappedDomainName = JmxUtil.safeDomainName(getDomainName(bundle));
+            if (mappedDomainName == null) {
+                return defaultDomain;
+            }
+            bundleDomains.put(bundle.getBundleId(), mappedDomainName);
+        }
+        return mappedDomainName;
+    }
 
+    private String getDomainName(Bundle bundle) {
         String domainNameHeader = bundle.getHeaders().get(HEADER_DOMAIN_NAME);
         if (domainNameHeader != null) {
             return domainNameHeader;
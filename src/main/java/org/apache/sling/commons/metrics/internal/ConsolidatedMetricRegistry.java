@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Read-only view over all tracked {@link MetricRegistry} services. The names of the metrics of a
+ * registry with a {@code name} service property are prefixed with {@code <name>:}. If several
+ * registries contain the same name, only the metric of the highest ranked registry is visible.
+ *
+ * <p>Nothing is copied: {@link #getMetrics()} and {@link #getMetrics(Class)} look the metrics
+ * up in the tracked registries while they are iterated. Only the sorted maps required by the
+ * reporters, as returned by {@link #getTimers()} and alike, are built on each call. The tracked
+ * registries are only sorted when they change.</p>
+ */
+class ConsolidatedMetricRegistry extends MetricRegistry {
+    // Guarded by this instance
+    private final Map<ServiceReference, MetricRegistry> registries = new HashMap<>();
+
+    private volatile List<Source> sources = Collections.emptyList();
+
+    /**
+     * Adds the registry of the given service, or updates it after the service was modified
+     */
+    synchronized void put(ServiceReference reference, MetricRegistry registry) {
+        registries.put(reference, registry);
+        sources = createSources();
+    }
+
+    synchronized void remove(ServiceReference reference) {
+        registries.remove(reference);
+        sources = createSources();
+    }
+
+    /**
+     * @return a view of the metrics of the given type, in the order of the tracked registries
+     */
+    <T extends Metric> Map<String, T> getMetrics(Class<T> type) {
+        return new MetricsView<>(type);
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        return getMetrics(Metric.class);
+    }
+
+    @Override
+    public SortedSet<String> getNames() {
+        return new TreeSet<>(getMetrics().keySet());
+    }
+
+    @Override
+    public SortedMap<String, Gauge> getGauges(MetricFilter filter) {
+        return getSortedMetrics(Gauge.class, filter);
+    }
+
+    @Override
+    public SortedMap<String, Counter> getCounters(MetricFilter filter) {
+        return getSortedMetrics(Counter.class, filter);
+    }
+
+    @Override
+    public SortedMap<String, Histogram> getHistograms(MetricFilter filter) {
+        return getSortedMetrics(Histogram.class, filter);
+    }
+
+    @Override
+    public SortedMap<String, Meter> getMeters(MetricFilter filter) {
+        return getSortedMetrics(Meter.class, filter);
+    }
+
+    @Override
+    public SortedMap<String, Timer> getTimers(MetricFilter filter) {
+        return getSortedMetrics(Timer.class, filter);
+    }
+
+    @Override
+    public <T extends Metric> T register(String name, T metric) {
+        throw new UnsupportedOperationException("The consolidated registry is read-only");
+    }
+
+    @Override
+    public boolean remove(String name) {
+        throw new UnsupportedOperationException("The consolidated registry is read-only");
+    }
+
+    private <T extends Metric> SortedMap<String, T> getSortedMetrics(Class<T> type, MetricFilter filter) {
+        SortedMap<String, T> sorted = new TreeMap<>();
+        for (Map.Entry<String, T> e : getMetrics(type).entrySet()) {
+            if (filter.matches(e.getKey(), e.getValue())) {
+                sorted.put(e.getKey(), e.getValue());
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * @return the tracked registries, ordered by service ranking like the services themselves
+     */
+    @SuppressWarnings("unchecked")
+    private List<Source> createSources() {
+        List<Map.Entry<ServiceReference, MetricRegistry>> entries = new ArrayList<>(registries.entrySet());
+        entries.sort((a, b) -> b.getKey().compareTo(a.getKey()));
+        List<Source> created = new ArrayList<>(entries.size());
+        for (Map.Entry<ServiceReference, MetricRegistry> e : entries) {
+            Object name = e.getKey().getProperty(MetricWebConsolePlugin.METRIC_REGISTRY_NAME);
+            created.add(new Source(name != null ? name + ":" : null, e.getValue()));
+        }
+        return Collections.unmodifiableList(created);
+    }
+
+    /**
+     * @return the metric visible under the given name in the first {@code count} sources
+     */
+    private static Metric lookup(List<Source> sources, int count, String name) {
+        for (int i = 0; i < count; i++) {
+            Metric metric = sources.get(i).get(name);
+            if (metric != null) {
+                return metric;
+            }
+        }
+        return null;
+    }
+
+    private static final class Source {
+        final String prefix;
+        final MetricRegistry registry;
+
+        Source(String prefix, MetricRegistry registry) {
+            this.prefix = prefix;
+            this.registry = registry;
+        }
+
+        Metric get(String name) {
+            if (prefix == null) {
+                return registry.getMetrics().get(name);
+            }
+            return name.startsWith(prefix) ? registry.getMetrics().get(name.substring(prefix.length())) : null;
+        }
+
+        String name(String name) {
+            return prefix == null ? name : prefix + name;
+        }
+    }
+
+    private final class MetricsView<T extends Metric> extends AbstractMap<String, T> {
+        private final Class<T> type;
+        private final List<Source> sources = ConsolidatedMetricRegistry.this.sources;
+
+        MetricsView(Class<T> type) {
+            this.type = type;
+        }
+
+        @Override
+        public T get(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+            Metric metric = lookup(sources, sources.size(), (String) key);
+            return type.isInstance(metric) ? type.cast(metric) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, T>> entrySet() {
+            return new AbstractSet<Entry<String, T>>() {
+                @Override
+                public Iterator<Entry<String, T>> iterator() {
+                    return new MetricsIterator<>(type, sources);
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (Iterator<Entry<String, T>> it = iterator(); it.hasNext(); it.next()) {
+                        size++;
+                    }
+                    return size;
+                }
+
+                @Override
+                public boolean isEmpty() {
+                    return !iterator().hasNext();
+                }
+            };
+        }
+    }
+
+    private static final class MetricsIterator<T extends Metric> implements Iterator<Map.Entry<String, T>> {
+        private final Class<T> type;
+        private final List<Source> sources;
+        private int source = -1;
+        private Iterator<Map.Entry<String, Metric>> current;
+        private Map.Entry<String, T> next;
+
+        MetricsIterator(Class<T> type, List<Source> sources) {
+            this.type = type;
+            this.sources = sources;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (current == null || !current.hasNext()) {
+                    if (++source >= sources.size()) {
+                        return false;
+                    }
+                    current =
+                            sources.get(source).registry.getMetrics().entrySet().iterator();
+                    continue;
+                }
+                Map.Entry<String, Metric> e = current.next();
+                if (type.isInstance(e.getValue())) {
+                    String name = sources.get(source).name(e.getKey());
+                    // Hidden by a metric with the same name in a previous registry
+                    if (lookup(sources, source, name) == null) {
+                        next = new AbstractMap.SimpleImmutableEntry<>(name, type.cast(e.getValue()));
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<String, T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, T> e = next;
+            next = null;
+            return e;
+        }
+    }
+}
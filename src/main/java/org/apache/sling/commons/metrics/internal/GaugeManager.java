@@ -20,6 +20,7 @@ package org.apache.sling.commons.metrics.internal;
 
 import java.io.Closeable;
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 import com.codahale.metrics.MetricRegistry;
 import org.apache.sling.commons.metrics.Gauge;
@@ -35,12 +36,15 @@ class GaugeManager implements ServiceTrackerCustomizer<Gauge, GaugeManager.Gauge
     private final MetricRegistry registry;
     private final BundleMetricsMapper mapper;
     private final BundleContext bundleContext;
+    private final AsyncGaugeEvaluator evaluator;
     private ServiceTracker<Gauge, GaugeImpl> tracker;
 
-    public GaugeManager(BundleContext context, MetricRegistry registry, BundleMetricsMapper mapper) {
+    public GaugeManager(
+            BundleContext context, MetricRegistry registry, BundleMetricsMapper mapper, AsyncGaugeEvaluator evaluator) {
         this.registry = registry;
         this.mapper = mapper;
         this.bundleContext = context;
+        this.evaluator = evaluator;
         this.tracker = new ServiceTracker<>(context, Gauge.class, this);
         tracker.open();
     }
@@ -72,7 +76,7 @@ class GaugeManager implements ServiceTrackerCustomizer<Gauge, GaugeManager.Gauge
             return;
         }
 
-        if (!name.equals(service.name)) {
+        if (!name.equals(service.name) || getRefreshInterval(reference) != service.refreshInterval) {
             unregister(service);
             service.name = name;
             register(reference, service);
@@ -94,12 +98,36 @@ class GaugeManager implements ServiceTrackerCustomizer<Gauge, GaugeManager.Gauge
     // ~-------------------------------------< Internal >
 
     private void unregister(GaugeImpl service) {
+        if (service.async != null) {
+            evaluator.stop(service.name, service.async);
+        }
         mapper.unregister(Collections.singleton(service.name));
     }
 
     private void register(ServiceReference<Gauge> reference, GaugeImpl gaugeImpl) {
+        gaugeImpl.refreshInterval = getRefreshInterval(reference);
+        gaugeImpl.async = gaugeImpl.refreshInterval > 0
+                ? evaluator.newGauge(gaugeImpl.gauge::getValue, gaugeImpl.refreshInterval, TimeUnit.MILLISECONDS)
+                : null;
         mapper.addMapping(gaugeImpl.name, reference.getBundle());
         registry.register(gaugeImpl.name, gaugeImpl);
+        if (gaugeImpl.async != null) {
+            evaluator.start(gaugeImpl.name, gaugeImpl.async);
+        }
+    }
+
+    private long getRefreshInterval(ServiceReference<Gauge> reference) {
+        Object value = reference.getProperty(Gauge.REFRESH_INTERVAL);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value != null) {
+            try {
+                return Long.parseLong(value.toString().trim());
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring the invalid [{}] property of {}", Gauge.REFRESH_INTERVAL, reference);
+            }
+        }
+        return 0;
     }
 
     // ~--------------------------------------< GaugeImpl >
@@ -107,6 +135,11 @@ class GaugeManager implements ServiceTrackerCustomizer<Gauge, GaugeManager.Gauge
     public static class GaugeImpl implements com.codahale.metrics.Gauge {
         String name;
         final Gauge gauge;
+        long refreshInterval;
+        /**
+         * Serves the value when the gauge is refreshed in the background, {@code null} otherwise
+         */
+        volatile AsyncGaugeEvaluator.AsyncGauge<?> async;
 
         public GaugeImpl(String name, Gauge gauge) {
             this.name = name;
@@ -115,7 +148,8 @@ class GaugeManager implements ServiceTrackerCustomizer<Gauge, GaugeManager.Gauge
 
         @Override
         public Object getValue() {
-            return gauge.getValue();
+            AsyncGaugeEvaluator.AsyncGauge<?> cached = async;
+            return cached != null ? cached.getValue() : gauge.getValue();
         }
     }
 }
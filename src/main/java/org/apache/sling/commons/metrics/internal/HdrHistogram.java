@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram with log-linear buckets, following the layout of
+ * <a href="http://hdrhistogram.org/">HdrHistogram</a>.
+ *
+ * <p>Values are counted in buckets whose width grows with the magnitude of the value, so that
+ * the relative error of any reported value is bounded by the configured number of significant
+ * digits. The memory used is fixed and only depends on the number of significant digits and
+ * the highest trackable value. Values above the highest trackable value are counted in the last
+ * bucket, values below zero in the first one. The exact minimum and maximum are tracked
+ * separately.</p>
+ */
+final class HdrHistogram {
+    private final int subBucketHalfCountMagnitude;
+    private final int subBucketHalfCount;
+    private final long subBucketMask;
+    private final int leadingZeroCountBase;
+    private final long highestTrackableValue;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param significantDigits number of significant decimal digits to maintain, between 1 and 5
+     * @param highestTrackableValue the highest value to be tracked with the given precision
+     */
+    HdrHistogram(int significantDigits, long highestTrackableValue) {
+        if (significantDigits < 1 || significantDigits > 5) {
+            throw new IllegalArgumentException("significantDigits must be between 1 and 5: " + significantDigits);
+        }
+        if (highestTrackableValue < 2) {
+            throw new IllegalArgumentException("highestTrackableValue must be >= 2: " + highestTrackableValue);
+        }
+        long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+        int subBucketCountMagnitude = 64 - Long.numberOfLeadingZeros(largestValueWithSingleUnitResolution - 1);
+        int subBucketCount = 1 << subBucketCountMagnitude;
+
+        this.subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+        this.subBucketHalfCount = subBucketCount / 2;
+        this.subBucketMask = subBucketCount - 1;
+        this.leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+        this.highestTrackableValue = highestTrackableValue;
+
+        // Every bucket covers twice the range of the previous one
+        long smallestUntrackableValue = subBucketCount;
+        int bucketCount = 1;
+        while (smallestUntrackableValue <= highestTrackableValue) {
+            if (smallestUntrackableValue > Long.MAX_VALUE / 2) {
+                bucketCount++;
+                break;
+            }
+            smallestUntrackableValue <<= 1;
+            bucketCount++;
+        }
+        this.counts = new AtomicLongArray((bucketCount + 1) * subBucketHalfCount);
+    }
+
+    /**
+     * @return {@code false} if the count had to be retried because of a concurrent update of the
+     *         same bucket, which callers can use to detect contention
+     */
+    boolean recordValue(long value) {
+        int index = indexOf(value);
+        long count = counts.get(index);
+        boolean uncontended = counts.compareAndSet(index, count, count + 1);
+        if (!uncontended) {
+            counts.incrementAndGet(index);
+        }
+        // Only contended while the extremes are still moving
+        if (value < min.get()) {
+            min.accumulateAndGet(value, Math::min);
+        }
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+        return uncontended;
+    }
+
+    /**
+     * Resets all counts. Values recorded concurrently might get lost.
+     */
+    void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        min.set(Long.MAX_VALUE);
+        max.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * @return a new array suitable to be passed to {@link #addTo(long[])}
+     */
+    long[] newCountsArray() {
+        return new long[counts.length()];
+    }
+
+    /**
+     * Adds the counts of this histogram to the passed array, which must have been created by
+     * {@link #newCountsArray()} of a histogram with the same layout.
+     */
+    void addTo(long[] target) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] += counts.get(i);
+        }
+    }
+
+    /**
+     * @return the smallest recorded value or {@code Long.MAX_VALUE} if nothing got recorded
+     */
+    long getMin() {
+        return min.get();
+    }
+
+    /**
+     * @return the largest recorded value or {@code Long.MIN_VALUE} if nothing got recorded
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    HdrSnapshot getSnapshot() {
+        long[] snapshotCounts = newCountsArray();
+        addTo(snapshotCounts);
+        return new HdrSnapshot(this, snapshotCounts, getMin(), getMax());
+    }
+
+    int indexOf(long value) {
+        long v = Math.min(Math.max(value, 0), highestTrackableValue);
+        int bucketIndex = leadingZeroCountBase - Long.numberOfLeadingZeros(v | subBucketMask);
+        int subBucketIndex = (int) (v >>> bucketIndex);
+        int bucketBaseIndex = (bucketIndex + 1) << subBucketHalfCountMagnitude;
+        return bucketBaseIndex + subBucketIndex - subBucketHalfCount;
+    }
+
+    /**
+     * @return the lowest value which is counted at the given index
+     */
+    long lowestValueAt(int index) {
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return ((long) subBucketIndex) << bucketIndex;
+    }
+
+    /**
+     * @return the highest value which is counted at the given index
+     */
+    long highestValueAt(int index) {
+        int bucketIndex = Math.max((index >> subBucketHalfCountMagnitude) - 1, 0);
+        return lowestValueAt(index) + (1L << bucketIndex) - 1;
+    }
+}
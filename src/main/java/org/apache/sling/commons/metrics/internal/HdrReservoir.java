@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * A {@link Reservoir} backed by a {@link HdrHistogram}. Recording is lock-free and the
+ * memory used is fixed. Unlike the default {@code ExponentiallyDecayingReservoir} it does not
+ * sample, so high percentiles like p99.9 are reported within the configured precision. The
+ * distribution covers all values recorded since the reservoir was created.
+ */
+final class HdrReservoir implements Reservoir {
+    private final HdrHistogram histogram;
+
+    HdrReservoir(int significantDigits, long highestTrackableValue) {
+        this.histogram = new HdrHistogram(significantDigits, highestTrackableValue);
+    }
+
+    @Override
+    public int size() {
+        return getSnapshot().size();
+    }
+
+    @Override
+    public void update(long value) {
+        histogram.recordValue(value);
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        return histogram.getSnapshot();
+    }
+}
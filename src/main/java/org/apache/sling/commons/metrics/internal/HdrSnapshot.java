@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.codahale.metrics.Snapshot;
+
+/**
+ * An immutable {@link Snapshot} of the counts of a {@link HdrHistogram}. Only the non-empty
+ * buckets are retained, so the memory used grows with the number of distinct bucket values
+ * and not with the number of recorded values.
+ */
+class HdrSnapshot extends Snapshot {
+    /**
+     * Upper bound of the number of values returned by {@link #getValues()}
+     */
+    static final int MAX_VALUES = 1028;
+
+    private final long[] values;
+    private final long[] cumulativeCounts;
+    private final long count;
+    private final long min;
+    private final long max;
+    private final double mean;
+    private final double stdDev;
+
+    /**
+     * @param layout the histogram which recorded the counts
+     * @param counts the counts per bucket index of {@code layout}
+     * @param min the exact minimum, or {@code Long.MAX_VALUE} if nothing got recorded
+     * @param max the exact maximum, or {@code Long.MIN_VALUE} if nothing got recorded
+     */
+    HdrSnapshot(HdrHistogram layout, long[] counts, long min, long max) {
+        int buckets = 0;
+        for (long c : counts) {
+            if (c > 0) {
+                buckets++;
+            }
+        }
+
+        this.values = new long[buckets];
+        this.cumulativeCounts = new long[buckets];
+        long total = 0;
+        double sum = 0;
+        int j = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                total += counts[i];
+                // Report the highest value of a bucket, clamped to the exact extremes
+                values[j] = clamp(layout.highestValueAt(i), min, max);
+                cumulativeCounts[j] = total;
+                sum += (double) counts[i] * midValueAt(layout, i, min, max);
+                j++;
+            }
+        }
+        if (buckets > 0) {
+            // The last bucket might also contain values above the highest trackable value
+            values[buckets - 1] = max;
+        }
+
+        this.count = total;
+        this.min = total == 0 ? 0 : min;
+        this.max = total == 0 ? 0 : max;
+        this.mean = total == 0 ? 0 : sum / total;
+
+        double variance = 0;
+        if (total > 1) {
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    double diff = midValueAt(layout, i, min, max) - mean;
+                    variance += counts[i] * diff * diff;
+                }
+            }
+            variance = variance / (total - 1);
+        }
+        this.stdDev = Math.sqrt(variance);
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(Math.min(value, max), min);
+    }
+
+    private static double midValueAt(HdrHistogram layout, int index, long min, long max) {
+        long lowest = layout.lowestValueAt(index);
+        long highest = layout.highestValueAt(index);
+        return clamp(lowest + (highest - lowest) / 2, min, max);
+    }
+
+    @Override
+    public double getValue(double quantile) {
+        if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+            throw new IllegalArgumentException(quantile + " is not in [0..1]");
+        }
+        if (count == 0) {
+            return 0.0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        int pos = Arrays.binarySearch(cumulativeCounts, rank);
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+        return values[Math.min(pos, values.length - 1)];
+    }
+
+    @Override
+    public long[] getValues() {
+        int size = (int) Math.min(count, MAX_VALUES);
+        long[] result = new long[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = (long) getValue((i + 0.5) / size);
+        }
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public double getMean() {
+        return mean;
+    }
+
+    @Override
+    public long getMin() {
+        return min;
+    }
+
+    @Override
+    public double getStdDev() {
+        return stdDev;
+    }
+
+    @Override
+    public void dump(OutputStream output) {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+            for (long value : getValues()) {
+                out.printf("%d%n", value);
+            }
+        }
+    }
+}
@@ -21,11 +21,18 @@ package org.apache.sling.commons.metrics.internal;
 import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
 
 import org.apache.sling.commons.metrics.Counter;
+import org.apache.sling.commons.metrics.DoubleGauge;
 import org.apache.sling.commons.metrics.Gauge;
 import org.apache.sling.commons.metrics.Histogram;
+import org.apache.sling.commons.metrics.LongGauge;
 import org.apache.sling.commons.metrics.Meter;
 import org.apache.sling.commons.metrics.MetricsService;
 import org.apache.sling.commons.metrics.Timer;
@@ -54,9 +61,16 @@ class InternalMetricsServiceFactory implements ServiceFactory<MetricsService> {
         }
     }
 
+    /**
+     * The {@code MetricsService} of a single bundle. Lots of callers look up their metrics by name
+     * every time they record something, so the metrics handed out are cached per bundle: looking
+     * up an already registered metric again is a single read of that cache, without writing to
+     * any of the maps shared by all bundles.
+     */
     private class BundleMetricService implements MetricsService {
         private final Bundle bundle;
         private Set<String> registeredNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final ConcurrentMap<String, CachedMetric> cache = new ConcurrentHashMap<>();
 
         public BundleMetricService(Bundle bundle) {
             this.bundle = bundle;
@@ -64,26 +78,26 @@ class InternalMetricsServiceFactory implements ServiceFactory<MetricsService> {
 
         @Override
         public Timer timer(String name) {
-            addMapping(name);
-            return delegate.timer(name);
+            Timer timer = getCached(name, Timer.class);
+            return timer != null ? timer : cache(name, delegate::timer);
         }
 
         @Override
         public Histogram histogram(String name) {
-            addMapping(name);
-            return delegate.histogram(name);
+            Histogram histogram = getCached(name, Histogram.class);
+            return histogram != null ? histogram : cache(name, delegate::histogram);
         }
 
         @Override
         public Counter counter(String name) {
-            addMapping(name);
-            return delegate.counter(name);
+            Counter counter = getCached(name, Counter.class);
+            return counter != null ? counter : cache(name, delegate::counter);
         }
 
         @Override
         public Meter meter(String name) {
-            addMapping(name);
-            return delegate.meter(name);
+            Meter meter = getCached(name, Meter.class);
+            return meter != null ? meter : cache(name, delegate::meter);
         }
 
         @Override
@@ -92,6 +106,7 @@ class InternalMetricsServiceFactory implements ServiceFactory<MetricsService> {
         }
 
         void unregister() {
+            cache.clear();
             metricsMapper.unregister(registeredNames);
         }
 
@@ -100,15 +115,69 @@ class InternalMetricsServiceFactory implements ServiceFactory<MetricsService> {
             registeredNames.add(name);
         }
 
+        @SuppressWarnings("unchecked")
         @Override
         public <T> Gauge<T> gauge(String name, Supplier<T> supplier) {
-            addMapping(name);
-            return delegate.gauge(name, supplier);
+            Gauge<T> gauge = getCached(name, Gauge.class);
+            return gauge != null ? gauge : cache(name, n -> delegate.<T>gauge(n, supplier));
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> Gauge<T> gauge(String name, Supplier<T> supplier, long refreshInterval, TimeUnit unit) {
+            Gauge<T> gauge = getCached(name, Gauge.class);
+            return gauge != null ? gauge : cache(name, n -> delegate.<T>gauge(n, supplier, refreshInterval, unit));
+        }
+
+        @Override
+        public LongGauge longGauge(String name, LongSupplier supplier) {
+            LongGauge gauge = getCached(name, LongGauge.class);
+            return gauge != null ? gauge : cache(name, n -> delegate.longGauge(n, supplier));
+        }
+
+        @Override
+        public DoubleGauge doubleGauge(String name, DoubleSupplier supplier) {
+            DoubleGauge gauge = getCached(name, DoubleGauge.class);
+            return gauge != null ? gauge : cache(name, n -> delegate.doubleGauge(n, supplier));
         }
 
         @Override
         public boolean unregister(String name) {
+            cache.remove(name);
             return metricsMapper.unregister(Collections.singleton(name));
         }
+
+        /**
+         * @return the cached metric, or {@code null} if there is none of that type, or if metrics
+         *         got unregistered since it was cached and it might thus be stale
+         */
+        private <T> T getCached(String name, Class<T> type) {
+            CachedMetric cached = cache.get(name);
+            if (cached != null
+                    && cached.generation == metricsMapper.getGeneration()
+                    && type.isInstance(cached.metric)) {
+                return type.cast(cached.metric);
+            }
+            return null;
+        }
+
+        private <T> T cache(String name, Function<String, T> factory) {
+            // Read before getting the metric, so that an unregistration in between invalidates it
+            long generation = metricsMapper.getGeneration();
+            addMapping(name);
+            T metric = factory.apply(name);
+            cache.put(name, new CachedMetric(metric, generation));
+            return metric;
+        }
+    }
+
+    private static final class CachedMetric {
+        final Object metric;
+        final long generation;
+
+        CachedMetric(Object metric, long generation) {
+            this.metric = metric;
+            this.generation = generation;
+        }
     }
 }
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Reservoir;
+
+/**
+ * A {@link Reservoir} reporting the exact distribution of the values recorded in the last
+ * {@code n} intervals, instead of a sample biased towards recent values.
+ *
+ * <p>Values are recorded into the active one of two {@link HdrHistogram}s. Once an interval has
+ * elapsed the first writer or reader swaps them, waits through a {@link WriterReaderPhaser} until
+ * no writer uses the previous one anymore and moves its counts into a ring of the last {@code n}
+ * intervals. Writers only wait for that rotation once per interval, so each interval of the ring
+ * holds the values recorded within it, and those of intervals without any value are empty.</p>
+ *
+ * <p>{@link #getSnapshot()} returns an {@link IntervalSnapshot} covering all intervals in the
+ * ring, which also provides the last interval on its own. The snapshot is only recreated when
+ * an interval elapses, until then all readers share the same immutable instance.</p>
+ */
+final class IntervalReservoir implements Reservoir {
+    private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+    private final Clock clock;
+    private final long intervalNanos;
+    private final HdrHistogram layout;
+
+    private volatile HdrHistogram active;
+    private volatile long nextRotation;
+
+    // Guarded by the reader lock of the phaser
+    private HdrHistogram inactive;
+    private final long[][] intervalCounts;
+    private final long[] intervalMin;
+    private final long[] intervalMax;
+    private int last;
+    private long intervalStart;
+    private IntervalSnapshot snapshot;
+
+    /**
+     * @param interval the length of an interval in seconds
+     * @param intervals the number of intervals covered by the snapshot
+     */
+    IntervalReservoir(int significantDigits, long highestTrackableValue, long interval, int intervals, Clock clock) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be > 0: " + interval);
+        }
+        if (intervals < 1) {
+            throw new IllegalArgumentException("intervals must be >= 1: " + intervals);
+        }
+        this.clock = clock;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(interval);
+        this.active = new HdrHistogram(significantDigits, highestTrackableValue);
+        this.inactive = new HdrHistogram(significantDigits, highestTrackableValue);
+        this.layout = inactive;
+
+        this.intervalCounts = new long[intervals][];
+        this.intervalMin = new long[intervals];
+        this.intervalMax = new long[intervals];
+        for (int i = 0; i < intervals; i++) {
+            intervalCounts[i] = layout.newCountsArray();
+            clearInterval(i);
+        }
+        this.intervalStart = clock.getTick();
+        this.nextRotation = intervalStart + intervalNanos;
+        this.snapshot = createSnapshot();
+    }
+
+    @Override
+    public int size() {
+        return getSnapshot().size();
+    }
+
+    @Override
+    public void update(long value) {
+        if (clock.getTick() - nextRotation >= 0) {
+            // Not within the critical section, as the rotation waits for the writers in there
+            phaser.readerLock();
+            try {
+                rotate();
+            } finally {
+                phaser.readerUnlock();
+            }
+        }
+        long criticalValue = phaser.writerCriticalSectionEnter();
+        try {
+            active.recordValue(value);
+        } finally {
+            phaser.writerCriticalSectionExit(criticalValue);
+        }
+    }
+
+    @Override
+    public IntervalSnapshot getSnapshot() {
+        phaser.readerLock();
+        try {
+            rotate();
+            return snapshot;
+        } finally {
+            phaser.readerUnlock();
+        }
+    }
+
+    /**
+     * Moves the values of the active histogram into the interval they were recorded in, if it
+     * elapsed. Must hold the reader lock of the phaser.
+     */
+    private void rotate() {
+        long elapsedIntervals = (clock.getTick() - intervalStart) / intervalNanos;
+        if (elapsedIntervals <= 0) {
+            return;
+        }
+        HdrHistogram completed = active;
+        active = inactive;
+        phaser.flipPhase();
+
+        // The first writer of a later interval rotates before recording, so all values belong to the first one
+        last = next(last);
+        clearInterval(last);
+        completed.addTo(intervalCounts[last]);
+        intervalMin[last] = completed.getMin();
+        intervalMax[last] = completed.getMax();
+        completed.reset();
+        inactive = completed;
+
+        // Any later interval which elapsed since got no value
+        for (long i = 1; i < Math.min(elapsedIntervals, intervalCounts.length + 1); i++) {
+            last = next(last);
+            clearInterval(last);
+        }
+
+        intervalStart += elapsedIntervals * intervalNanos;
+        nextRotation = intervalStart + intervalNanos;
+        snapshot = createSnapshot();
+    }
+
+    private IntervalSnapshot createSnapshot() {
+        long[] counts = layout.newCountsArray();
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < intervalCounts.length; i++) {
+            long[] interval = intervalCounts[i];
+            for (int j = 0; j < counts.length; j++) {
+                counts[j] += interval[j];
+            }
+            min = Math.min(min, intervalMin[i]);
+            max = Math.max(max, intervalMax[i]);
+        }
+        HdrSnapshot lastInterval = new HdrSnapshot(layout, intervalCounts[last], intervalMin[last], intervalMax[last]);
+        return new IntervalSnapshot(layout, counts, min, max, lastInterval);
+    }
+
+    private void clearInterval(int index) {
+        Arrays.fill(intervalCounts[index], 0);
+        intervalMin[index] = Long.MAX_VALUE;
+        intervalMax[index] = Long.MIN_VALUE;
+    }
+
+    private int next(int index) {
+        return (index + 1) % intervalCounts.length;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import com.codahale.metrics.Snapshot;
+
+/**
+ * The {@link Snapshot} of an {@link IntervalReservoir}. It describes all values recorded in the
+ * retained intervals, and additionally provides the values recorded in the last interval.
+ */
+final class IntervalSnapshot extends HdrSnapshot {
+    private final HdrSnapshot lastInterval;
+
+    IntervalSnapshot(HdrHistogram layout, long[] counts, long min, long max, HdrSnapshot lastInterval) {
+        super(layout, counts, min, max);
+        this.lastInterval = lastInterval;
+    }
+
+    /**
+     * @return the values recorded in the last completed interval
+     */
+    HdrSnapshot getLastInterval() {
+        return lastInterval;
+    }
+
+    /**
+     * @return the last interval of {@code snapshot} if it was taken from an {@link IntervalReservoir},
+     *         {@code snapshot} itself otherwise
+     */
+    static Snapshot lastIntervalOf(Snapshot snapshot) {
+        if (snapshot instanceof IntervalSnapshot) {
+            return ((IntervalSnapshot) snapshot).getLastInterval();
+        }
+        return snapshot;
+    }
+}
@@ -20,12 +20,21 @@ package org.apache.sling.commons.metrics.internal;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import com.codahale.metrics.ConsoleReporter;
 import com.codahale.metrics.Counter;
@@ -35,10 +44,16 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Reporter;
+import com.codahale.metrics.Sampling;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
-import org.apache.felix.utils.json.JSONWriter;
+import org.apache.sling.commons.metrics.DoubleGauge;
+import org.apache.sling.commons.metrics.LongGauge;
 
+/**
+ * Writes the metrics of a registry as JSON. The output is written straight to a {@link Writer}
+ * through an unsynchronized buffer, optionally restricted to some fields and metric names.
+ */
 class JSONReporter implements Reporter, Closeable {
 
     public static JSONReporter.Builder forRegistry(MetricRegistry registry) {
@@ -47,14 +62,16 @@ class JSONReporter implements Reporter, Closeable {
 
     public static class Builder {
         private final MetricRegistry registry;
-        private PrintStream output;
+        private Writer output;
         private MetricFilter filter;
+        private boolean lastInterval;
         private TimeUnit rateUnit;
         private TimeUnit durationUnit;
+        private Set<String> fields;
 
         private Builder(MetricRegistry registry) {
             this.registry = registry;
-            this.output = System.out;
+            this.output = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
             this.filter = MetricFilter.ALL;
             this.rateUnit = TimeUnit.SECONDS;
             this.durationUnit = TimeUnit.MILLISECONDS;
@@ -67,6 +84,27 @@ class JSONReporter implements Reporter, Closeable {
          * @return {@code this}
          */
         public Builder outputTo(PrintStream output) {
+            return outputTo((OutputStream) output);
+        }
+
+        /**
+         * Write to the given {@link OutputStream} in UTF-8.
+         *
+         * @param output an {@link OutputStream} instance.
+         * @return {@code this}
+         */
+        public Builder outputTo(OutputStream output) {
+            return outputTo(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Write to the given {@link Writer}. The reporter buffers its output itself, the writer
+         * is only flushed and never closed.
+         *
+         * @param output a {@link Writer} instance.
+         * @return {@code this}
+         */
+        public Builder outputTo(Writer output) {
             this.output = output;
             return this;
         }
@@ -104,35 +142,91 @@ class JSONReporter implements Reporter, Closeable {
             return this;
         }
 
+        /**
+         * Only report metrics whose name matches one of the given patterns, in which {@code *}
+         * matches any characters. Applies in addition to the {@link #filter(MetricFilter)}.
+         *
+         * @param patterns the name patterns, all metrics are reported if there are none
+         * @return {@code this}
+         */
+        public Builder names(String... patterns) {
+            if (patterns.length > 0) {
+                Pattern[] compiled = new Pattern[patterns.length];
+                for (int i = 0; i < patterns.length; i++) {
+                    compiled[i] = MetricImplementationRule.toPattern(patterns[i]);
+                }
+                MetricFilter previous = filter;
+                this.filter = (name, metric) -> matches(compiled, name) && previous.matches(name, metric);
+            }
+            return this;
+        }
+
+        /**
+         * Only report the given fields of each metric, e.g. {@code count} and {@code p99}.
+         *
+         * @param fields the names of the fields, all fields are reported if there are none
+         * @return {@code this}
+         */
+        public Builder fields(String... fields) {
+            this.fields = fields.length > 0 ? new HashSet<>(Arrays.asList(fields)) : null;
+            return this;
+        }
+
+        /**
+         * Report the values recorded in the last interval for histograms and timers using an
+         * interval reservoir, instead of all retained intervals. Other histograms and timers are
+         * not affected.
+         *
+         * @param lastInterval {@code true} to report the last interval only
+         * @return {@code this}
+         */
+        public Builder reportLastInterval(boolean lastInterval) {
+            this.lastInterval = lastInterval;
+            return this;
+        }
+
         /**
          * Builds a {@link ConsoleReporter} with the given properties.
          *
          * @return a {@link ConsoleReporter}
          */
         public JSONReporter build() {
-            return new JSONReporter(registry, output, rateUnit, durationUnit, filter);
+            return new JSONReporter(registry, output, rateUnit, durationUnit, filter, fields, lastInterval);
+        }
+
+        private static boolean matches(Pattern[] patterns, String name) {
+            for (Pattern pattern : patterns) {
+                if (pattern.matcher(name).matches()) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
     private final MetricRegistry registry;
     private final MetricFilter filter;
+    private final Set<String> fields;
+    private final boolean lastInterval;
     private final double durationFactor;
     private final String durationUnit;
     private final double rateFactor;
     private final String rateUnit;
-    private final JSONWriter json;
-    private final PrintWriter pw;
+    private final JsonWriter json;
 
     private JSONReporter(
             MetricRegistry registry,
-            PrintStream output,
+            Writer output,
             TimeUnit rateUnit,
             TimeUnit durationUnit,
-            MetricFilter filter) {
+            MetricFilter filter,
+            Set<String> fields,
+            boolean lastInterval) {
         this.registry = registry;
         this.filter = filter;
-        this.pw = new PrintWriter(output);
-        this.json = new JSONWriter(pw);
+        this.fields = fields;
+        this.lastInterval = lastInterval;
+        this.json = new JsonWriter(output);
         this.rateFactor = rateUnit.toSeconds(1);
         this.rateUnit = calculateRateUnit(rateUnit);
         this.durationFactor = 1.0 / durationUnit.toNanos(1);
@@ -146,7 +240,8 @@ class JSONReporter implements Reporter, Closeable {
                     registry.getCounters(filter),
                     registry.getHistograms(filter),
                     registry.getMeters(filter),
-                    registry.getTimers(filter));
+                    registry.getTimers(filter),
+                    null);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -154,15 +249,25 @@ class JSONReporter implements Reporter, Closeable {
 
     @Override
     public void close() {
-        pw.flush();
+        try {
+            json.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    private void report(
+    /**
+     * Reports the given metrics, regardless of the registry and filter of this reporter.
+     *
+     * @param next reported as {@code next} if not {@code null}, e.g. to page through the metrics
+     */
+    void report(
             SortedMap<String, Gauge> gauges,
             SortedMap<String, Counter> counters,
             SortedMap<String, Histogram> histograms,
             SortedMap<String, Meter> meters,
-            SortedMap<String, Timer> timers)
+            SortedMap<String, Timer> timers,
+            String next)
             throws IOException {
         json.object();
         if (!gauges.isEmpty()) {
@@ -205,33 +310,38 @@ class JSONReporter implements Reporter, Closeable {
             json.endObject();
         }
 
+        if (next != null) {
+            json.key("next").value(next);
+        }
+
         json.endObject();
+        json.flush();
     }
 
     private void printTimer(Map.Entry<String, Timer> e) throws IOException {
         json.key(e.getKey()).object();
         Timer timer = e.getValue();
-        Snapshot snapshot = timer.getSnapshot();
-
-        json.key("count").value(timer.getCount());
-        json.key("max").value(snapshot.getMax() * durationFactor);
-        json.key("mean").value(snapshot.getMean() * durationFactor);
-        json.key("min").value(snapshot.getMin() * durationFactor);
-
-        json.key("p50").value(snapshot.getMedian() * durationFactor);
-        json.key("p75").value(snapshot.get75thPercentile() * durationFactor);
-        json.key("p95").value(snapshot.get95thPercentile() * durationFactor);
-        json.key("p98").value(snapshot.get98thPercentile() * durationFactor);
-        json.key("p99").value(snapshot.get99thPercentile() * durationFactor);
-        json.key("p999").value(snapshot.get999thPercentile() * durationFactor);
-
-        json.key("stddev").value(snapshot.getStdDev() * durationFactor);
-        json.key("m1_rate").value(timer.getOneMinuteRate() * rateFactor);
-        json.key("m5_rate").value(timer.getFiveMinuteRate() * rateFactor);
-        json.key("m15_rate").value(timer.getFifteenMinuteRate() * rateFactor);
-        json.key("mean_rate").value(timer.getMeanRate() * rateFactor);
-        json.key("duration_units").value(durationUnit);
-        json.key("rate_units").value(rateUnit);
+        Snapshot snapshot = getSnapshot(timer);
+
+        field("count", timer.getCount());
+        field("max", snapshot.getMax() * durationFactor);
+        field("mean", snapshot.getMean() * durationFactor);
+        field("min", snapshot.getMin() * durationFactor);
+
+        field("p50", snapshot.getMedian() * durationFactor);
+        field("p75", snapshot.get75thPercentile() * durationFactor);
+        field("p95", snapshot.get95thPercentile() * durationFactor);
+        field("p98", snapshot.get98thPercentile() * durationFactor);
+        field("p99", snapshot.get99thPercentile() * durationFactor);
+        field("p999", snapshot.get999thPercentile() * durationFactor);
+
+        field("stddev", snapshot.getStdDev() * durationFactor);
+        field("m1_rate", timer.getOneMinuteRate() * rateFactor);
+        field("m5_rate", timer.getFiveMinuteRate() * rateFactor);
+        field("m15_rate", timer.getFifteenMinuteRate() * rateFactor);
+        field("mean_rate", timer.getMeanRate() * rateFactor);
+        field("duration_units", durationUnit);
+        field("rate_units", rateUnit);
 
         json.endObject();
     }
@@ -239,62 +349,276 @@ class JSONReporter implements Reporter, Closeable {
     private void printMeter(Map.Entry<String, Meter> e) throws IOException {
         json.key(e.getKey()).object();
         Meter meter = e.getValue();
-        json.key("count").value(e.getValue().getCount());
-        json.key("m1_rate").value(meter.getOneMinuteRate() * rateFactor);
-        json.key("m5_rate").value(meter.getFiveMinuteRate() * rateFactor);
-        json.key("m15_rate").value(meter.getFifteenMinuteRate() * rateFactor);
-        json.key("mean_rate").value(meter.getMeanRate() * rateFactor);
-        json.key("units").value(rateUnit);
+        field("count", e.getValue().getCount());
+        field("m1_rate", meter.getOneMinuteRate() * rateFactor);
+        field("m5_rate", meter.getFiveMinuteRate() * rateFactor);
+        field("m15_rate", meter.getFifteenMinuteRate() * rateFactor);
+        field("mean_rate", meter.getMeanRate() * rateFactor);
+        field("units", rateUnit);
         json.endObject();
     }
 
     private void printHistogram(Map.Entry<String, Histogram> e) throws IOException {
         json.key(e.getKey()).object();
-        json.key("count").value(e.getValue().getCount());
-
-        Snapshot snapshot = e.getValue().getSnapshot();
-        json.key("max").value(snapshot.getMax());
-        json.key("mean").value(snapshot.getMean());
-        json.key("min").value(snapshot.getMin());
-        json.key("p50").value(snapshot.getMedian());
-        json.key("p75").value(snapshot.get75thPercentile());
-        json.key("p95").value(snapshot.get95thPercentile());
-        json.key("p98").value(snapshot.get98thPercentile());
-        json.key("p99").value(snapshot.get99thPercentile());
-        json.key("p999").value(snapshot.get999thPercentile());
-        json.key("stddev").value(snapshot.getStdDev());
+        field("count", e.getValue().getCount());
+
+        Snapshot snapshot = getSnapshot(e.getValue());
+        field("max", snapshot.getMax());
+        field("mean", snapshot.getMean());
+        field("min", snapshot.getMin());
+        field("p50", snapshot.getMedian());
+        field("p75", snapshot.get75thPercentile());
+        field("p95", snapshot.get95thPercentile());
+        field("p98", snapshot.get98thPercentile());
+        field("p99", snapshot.get99thPercentile());
+        field("p999", snapshot.get999thPercentile());
+        field("stddev", snapshot.getStdDev());
 
         json.endObject();
     }
 
+    private Snapshot getSnapshot(Sampling sampling) {
+        Snapshot snapshot = sampling.getSnapshot();
+        return lastInterval ? IntervalSnapshot.lastIntervalOf(snapshot) : snapshot;
+    }
+
     private void printCounter(Map.Entry<String, Counter> e) throws IOException {
         json.key(e.getKey()).object();
-        json.key("count").value(e.getValue().getCount());
+        field("count", e.getValue().getCount());
         json.endObject();
     }
 
     private void printGauge(Map.Entry<String, Gauge> e) throws IOException {
         json.key(e.getKey()).object();
-        Object v = e.getValue().getValue();
-        json.key("value").value(jsonSafeValue(v));
+        if (isSelected("value")) {
+            Gauge gauge = e.getValue();
+            json.key("value");
+            if (gauge instanceof LongGauge) {
+                json.value(((LongGauge) gauge).getLong());
+            } else if (gauge instanceof DoubleGauge) {
+                json.value(((DoubleGauge) gauge).getDouble());
+            } else {
+                json.value(gauge.getValue());
+            }
+        }
         json.endObject();
     }
 
-    private static Object jsonSafeValue(Object v) {
-        // Json does not allow NaN or infinite doubles. So take care of that
-        if (v instanceof Number) {
-            if (v instanceof Double) {
-                Double d = (Double) v;
-                if (d.isInfinite() || d.isNaN()) {
-                    return d.toString();
-                }
-            }
+    private boolean isSelected(String field) {
+        return fields == null || fields.contains(field);
+    }
+
+    private void field(String name, long value) throws IOException {
+        if (isSelected(name)) {
+            json.key(name).value(value);
+        }
+    }
+
+    private void field(String name, double value) throws IOException {
+        if (isSelected(name)) {
+            json.key(name).value(value);
+        }
+    }
+
+    private void field(String name, String value) throws IOException {
+        if (isSelected(name)) {
+            json.key(name).value(value);
         }
-        return v;
     }
 
     private static String calculateRateUnit(TimeUnit unit) {
         final String s = unit.toString().toLowerCase(Locale.US);
         return s.substring(0, s.length() - 1);
     }
+
+    /**
+     * Minimal JSON writer with its own unsynchronized buffer, which writes numbers without
+     * creating strings where possible.
+     */
+    static final class JsonWriter {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+        private final Writer out;
+        private final char[] buffer = new char[8192];
+        private int pos;
+        private boolean first = true;
+
+        JsonWriter(Writer out) {
+            this.out = out;
+        }
+
+        JsonWriter object() throws IOException {
+            separate();
+            write('{');
+            first = true;
+            return this;
+        }
+
+        JsonWriter endObject() throws IOException {
+            write('}');
+            first = false;
+            return this;
+        }
+
+        JsonWriter key(String key) throws IOException {
+            separate();
+            string(key);
+            write(':');
+            first = true;
+            return this;
+        }
+
+        JsonWriter value(long value) throws IOException {
+            separate();
+            number(value);
+            first = false;
+            return this;
+        }
+
+        JsonWriter value(double value) throws IOException {
+            separate();
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                // Json does not allow NaN or infinite doubles
+                string(Double.toString(value));
+            } else if (value == (long) value && Math.abs(value) < 1e15) {
+                number((long) value);
+                write('.');
+                write('0');
+            } else {
+                write(Double.toString(value));
+            }
+            first = false;
+            return this;
+        }
+
+        JsonWriter value(String value) throws IOException {
+            separate();
+            if (value == null) {
+                write("null");
+            } else {
+                string(value);
+            }
+            first = false;
+            return this;
+        }
+
+        JsonWriter value(Object value) throws IOException {
+            if (value == null || value instanceof String) {
+                return value((String) value);
+            } else if (value instanceof Double || value instanceof Float) {
+                return value(((Number) value).doubleValue());
+            } else if (value instanceof Long
+                    || value instanceof Integer
+                    || value instanceof Short
+                    || value instanceof Byte) {
+                return value(((Number) value).longValue());
+            } else if (value instanceof Number || value instanceof Boolean) {
+                separate();
+                write(value.toString());
+                first = false;
+            } else if (value instanceof Map) {
+                object();
+                for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                    key(String.valueOf(e.getKey())).value(e.getValue());
+                }
+                endObject();
+            } else if (value instanceof Collection) {
+                array();
+                for (Object element : (Collection<?>) value) {
+                    value(element);
+                }
+                endArray();
+            } else if (value.getClass().isArray()) {
+                array();
+                for (int i = 0; i < Array.getLength(value); i++) {
+                    value(Array.get(value, i));
+                }
+                endArray();
+            } else {
+                value(value.toString());
+            }
+            return this;
+        }
+
+        void flush() throws IOException {
+            out.write(buffer, 0, pos);
+            pos = 0;
+            out.flush();
+        }
+
+        private void array() throws IOException {
+            separate();
+            write('[');
+            first = true;
+        }
+
+        private void endArray() throws IOException {
+            write(']');
+            first = false;
+        }
+
+        private void separate() throws IOException {
+            if (!first) {
+                write(',');
+            }
+        }
+
+        private void number(long value) throws IOException {
+            if (value == Long.MIN_VALUE) {
+                write(Long.toString(value));
+                return;
+            }
+            if (value < 0) {
+                write('-');
+                value = -value;
+            }
+            if (pos + 19 > buffer.length) {
+                drain();
+            }
+            int digits = 1;
+            for (long v = value / 10; v > 0; v /= 10) {
+                digits++;
+            }
+            for (int i = pos + digits - 1; i >= pos; i--) {
+                buffer[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+            pos += digits;
+        }
+
+        private void string(String s) throws IOException {
+            write('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    write('\\');
+                    write(c);
+                } else if (c < 0x20) {
+                    write("\\u00");
+                    write(HEX[c >> 4]);
+                    write(HEX[c & 0xF]);
+                } else {
+                    write(c);
+                }
+            }
+            write('"');
+        }
+
+        private void write(char c) throws IOException {
+            if (pos == buffer.length) {
+                drain();
+            }
+            buffer[pos++] = c;
+        }
+
+        private void write(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                write(s.charAt(i));
+            }
+        }
+
+        private void drain() throws IOException {
+            out.write(buffer, 0, pos);
+            pos = 0;
+        }
+    }
 }
@@ -18,18 +18,17 @@
  */
 package org.apache.sling.commons.metrics.internal;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
+import javax.management.Descriptor;
 import javax.management.InstanceNotFoundException;
 import javax.management.IntrospectionException;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanException;
 import javax.management.MBeanInfo;
 import javax.management.MBeanServer;
-import javax.management.MBeanServerDelegate;
-import javax.management.MBeanServerNotification;
 import javax.management.MalformedObjectNameException;
-import javax.management.Notification;
-import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
 
@@ -37,15 +36,23 @@ import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
 
+import com.codahale.metrics.Clock;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.commons.metrics.MetricsService;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
@@ -72,132 +79,289 @@ public class JmxExporterFactory {
                                 + "(see https://docs.oracle.com/en/java/javase/11/docs/api/java.management/javax/management/ObjectName.html")
         String[] objectnames();
 
+        @AttributeDefinition(
+                name = "Polling period",
+                description = "Period in milliseconds during which the metrics of an MBean are served from a single "
+                        + "read of all its exported attributes. With 0 every read of a metric reads its attribute.")
+        long pollingPeriod() default 0;
+
         @AttributeDefinition
         String webconsole_configurationFactory_nameHint() default "Pattern: {objectnames}"; // NOSONAR
     }
 
     String[] patterns;
 
+    private static final Set<String> EXPORTED_TYPES =
+            new HashSet<>(Arrays.asList("int", "long", "double", "boolean", "java.lang.String"));
+
     private static final Logger LOG = LoggerFactory.getLogger(JmxExporterFactory.class);
 
     @Reference
     MetricsService metrics;
 
+    @Reference
+    JmxNotificationDispatcher dispatcher;
+
     MBeanServer server;
+
+    Clock clock = Clock.defaultClock();
+
     /**
-     * This listener is registered to the MBeanServerDelegate to listen for MBean registrations.
-     * When an MBean is registered, the listener checks if the objectname matches the configured patterns,
-     * and if so, registers all attributes of the MBean as metrics if they are not registered already.
+     * The polling period in nanoseconds, or 0 to read the attributes one by one
      */
-    NotificationListener listener = new NotificationListener() {
-        /**
-         * The handler is invoked for every notification,
-         * however gauges are only registered if they do not exist yet.
-         * See {@link #MetricsService#gauge(String, Supplier)} and {@link #MetricsServiceImpl#getOrAddGauge(String, Supplier)}
-         */
-        public void handleNotification(Notification notification, Object handback) {
-            if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
-                ObjectName objectname = null;
-                try {
-                    if (notification instanceof MBeanServerNotification) {
-                        MBeanServerNotification mbeanNotification = (MBeanServerNotification) notification;
-                        objectname = mbeanNotification.getMBeanName();
-                        LOG.debug("JMX Notification : match {} with pattern = {}", objectname, Arrays.asList(patterns));
-                        for (String pattern : patterns) {
-                            if (objectname.toString().matches(pattern)) {
-                                LOG.debug("JMX Notification : register metrics for MBean: {}", objectname);
-                                registerMBeanProperties(objectname);
-                                break;
-                            }
-                        }
-                    } else {
-                        LOG.debug(
-                                "JMX Notification : Cannot handle notification, because it's not a MBeanServerNotification ({})",
-                                notification);
-                    }
-                } catch (InstanceNotFoundException | ReflectionException | IntrospectionException e) {
-                    LOG.error("JMX Notification : Cannot register metrics for objectname = {}", objectname, e);
-                }
-            }
+    private long pollingPeriod;
+
+    /**
+     * The parsed patterns of the configuration
+     */
+    private volatile List<ObjectName> objectNames = Collections.emptyList();
+
+    /**
+     * Per exported MBean, the names of the metrics claimed for it, to release them again
+     * when the MBean is unregistered or no longer matches the configuration. The list also
+     * identifies the claims of the MBean in the {@link JmxNotificationDispatcher}.
+     * Guarded by this instance.
+     */
+    private final Map<ObjectName, List<String>> exported = new HashMap<>();
+
+    /**
+     * Per immutable {@link MBeanInfo}, which includes the class name, the exported attributes, as long as an MBean
+     * with that info is exported. Classes of the same name from different bundles, or wrapped with different
+     * interfaces, have different infos. Guarded by this instance.
+     */
+    private final Map<MBeanInfo, ClassAttributes> exportedAttributes = new HashMap<>();
+
+    /**
+     * The infos of the exported MBeans counted in {@link #exportedAttributes}. Guarded by this instance.
+     */
+    private final Map<ObjectName, MBeanInfo> exportedInfos = new HashMap<>();
+
+    /**
+     * Subscribed to the {@link JmxNotificationDispatcher} to (un)register the metrics of the MBeans matching the
+     * configured patterns in the background.
+     */
+    private final JmxNotificationDispatcher.Subscriber subscriber = new JmxNotificationDispatcher.Subscriber() {
+        @Override
+        public void registered(ObjectName name) {
+            export(name);
+        }
+
+        @Override
+        public void unregistered(ObjectName name) {
+            unexport(name);
         }
     };
 
     @Activate
     @Modified
-    public void activate(Config config) {
+    public synchronized void activate(Config config) {
         server = ManagementFactory.getPlatformMBeanServer();
         patterns = config.objectnames();
+        objectNames = toObjectNames(patterns);
+        long period = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.pollingPeriod()));
+        boolean periodChanged = period != pollingPeriod;
+        pollingPeriod = period;
+        for (ObjectName name : new ArrayList<>(exported.keySet())) {
+            // the metrics are registered again with the new polling period by the scan below
+            if (periodChanged || !matches(name)) {
+                unexport(name);
+            }
+        }
+        dispatcher.subscribe(subscriber, objectNames);
+        registerMetrics(objectNames);
+    }
+
+    @Deactivate
+    public synchronized void deactivate() {
+        dispatcher.unsubscribe(subscriber);
+        objectNames = Collections.emptyList();
+        for (ObjectName name : new ArrayList<>(exported.keySet())) {
+            unexport(name);
+        }
+        exportedAttributes.clear();
+        exportedInfos.clear();
+    }
+
+    /**
+     * Registers the metrics of the MBean, unless they are registered already, or the configuration changed
+     * since it got queued and the MBean does not match anymore
+     */
+    synchronized void export(ObjectName objectname) {
+        if (exported.containsKey(objectname) || !matches(objectname)) {
+            return;
+        }
         try {
-            server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener, null, null);
-        } catch (InstanceNotFoundException e) {
-            LOG.error("Cannot add notification listener to MBeanServerDelegate", e);
+            registerMBeanProperties(objectname);
+        } catch (InstanceNotFoundException | ReflectionException | IntrospectionException e) {
+            LOG.error("JMX Notification : Cannot register metrics for objectname = {}", objectname, e);
         }
-        registerMetrics(patterns);
     }
 
     /**
-     * Register all applicable metrics for an objectname pattern
-     * @param pattern describes a objectname pattern
+     * Releases the metrics claimed for the MBean, whose suppliers cannot read it anymore
      */
-    private void registerMetrics(String[] patterns) {
+    synchronized void unexport(ObjectName objectname) {
+        List<String> metricNames = exported.remove(objectname);
+        if (metricNames != null) {
+            LOG.info("Releasing metrics {} of MBean (objectname=[{}])", metricNames, objectname);
+            metricNames.forEach(metricName -> dispatcher.release(metricName, metricNames));
+        }
+        MBeanInfo info = exportedInfos.remove(objectname);
+        if (info != null) {
+            releaseInfo(info);
+        }
+    }
+
+    private void releaseInfo(MBeanInfo info) {
+        ClassAttributes cached = exportedAttributes.get(info);
+        if (cached != null && --cached.instances == 0) {
+            exportedAttributes.remove(info);
+        }
+    }
+
+    private boolean matches(ObjectName name) {
+        for (ObjectName pattern : objectNames) {
+            if (pattern.apply(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    private static List<ObjectName> toObjectNames(String[] patterns) {
+        List<ObjectName> objectNames = new ArrayList<>();
         for (String patternString : patterns) {
             try {
-                ObjectName pattern = new ObjectName(patternString);
-                Set<ObjectName> allMBeans = server.queryNames(pattern, null);
-                if (allMBeans.isEmpty()) {
-                    LOG.info("pattern {} does not match any MBean", patternString);
-                } else {
-                    allMBeans.forEach(objectname -> {
-                        LOG.debug("registering properties for {}", objectname);
-                        try {
-                            registerMBeanProperties(objectname);
-                        } catch (IntrospectionException | InstanceNotFoundException | ReflectionException e) {
-                            LOG.error("Cannot register metrics for objectname = {}", objectname, e);
-                        }
-                    });
-                }
+                objectNames.add(new ObjectName(patternString));
             } catch (MalformedObjectNameException e) {
                 LOG.error("cannot create an objectname from pattern {}", patternString, e);
             }
         }
+        return objectNames;
     }
 
-    protected void registerMBeanProperties(ObjectName objectname)
+    /**
+     * Queue the registration of all applicable metrics for the objectname patterns
+     * @param patterns describe objectname patterns
+     */
+    private void registerMetrics(List<ObjectName> patterns) {
+
+        for (ObjectName pattern : patterns) {
+            Set<ObjectName> allMBeans = server.queryNames(pattern, null);
+            if (allMBeans.isEmpty()) {
+                LOG.info("pattern {} does not match any MBean", pattern);
+            } else {
+                LOG.debug("queueing the registration of properties for {}", allMBeans);
+                dispatcher.enqueue(subscriber, allMBeans, true);
+            }
+        }
+    }
+
+    /**
+     * Gauges are only registered if they do not exist yet.
+     * See {@link MetricsService#gauge(String, Supplier)} and {@link MetricsServiceImpl#getOrAddGauge(String, Supplier)}
+     */
+    protected synchronized void registerMBeanProperties(ObjectName objectname)
             throws InstanceNotFoundException, ReflectionException, IntrospectionException {
-        MBeanInfo info = server.getMBeanInfo(objectname);
-        MBeanAttributeInfo[] attributes = info.getAttributes();
+        List<MBeanAttributeInfo> attributes = getExportedAttributes(objectname);
+        List<String> metricNames = exported.computeIfAbsent(objectname, n -> new ArrayList<>());
+        AttributeSnapshot snapshot = pollingPeriod > 0 ? new AttributeSnapshot(objectname, pollingPeriod) : null;
         for (MBeanAttributeInfo attr : attributes) {
-            LOG.debug("Checking mbean = {}, name = {}, type={}", objectname, attr.getName(), attr.getType());
-
-            Supplier<?> supplier = null;
-            if ("int".equals(attr.getType())) {
-                supplier = getSupplier(objectname, attr.getName(), 0);
-            } else if ("long".equals(attr.getType())) {
-                supplier = getSupplier(objectname, attr.getName(), 0L);
-            } else if ("java.lang.String".equals(attr.getType())) {
-                supplier = getSupplier(objectname, attr.getName(), "");
-            } else if ("double".equals(attr.getType())) {
-                supplier = getSupplier(objectname, attr.getName(), Double.valueOf(0.0));
-            } else if ("boolean".equals(attr.getType())) {
-                supplier = getSupplier(objectname, attr.getName(), Boolean.FALSE);
+            String type = attr.getType();
+            String metricName = toMetricName(objectname, attr.getName());
+            LOG.info(
+                    "Registering metric {} from MBean (objectname=[{}], name={}, type={})",
+                    metricName,
+                    objectname,
+                    attr.getName(),
+                    type);
+            metricNames.add(metricName);
+            if (snapshot != null) {
+                snapshot.add(attr.getName());
             }
+            Runnable register;
+            switch (type) {
+                case "int":
+                case "long":
+                    LongSupplier longSupplier = getLongSupplier(objectname, attr.getName(), snapshot);
+                    register = () -> metrics.longGauge(metricName, longSupplier);
+                    break;
+                case "double":
+                    DoubleSupplier doubleSupplier = getDoubleSupplier(objectname, attr.getName(), snapshot);
+                    register = () -> metrics.doubleGauge(metricName, doubleSupplier);
+                    break;
+                case "boolean":
+                    Supplier<Boolean> booleanSupplier =
+                            getSupplier(objectname, attr.getName(), Boolean.FALSE, snapshot);
+                    register = () -> metrics.gauge(metricName, booleanSupplier);
+                    break;
+                default:
+                    Supplier<String> stringSupplier = getSupplier(objectname, attr.getName(), "", snapshot);
+                    register = () -> metrics.gauge(metricName, stringSupplier);
+            }
+            dispatcher.claim(metricName, metricNames, register, () -> metrics.unregister(metricName));
+        }
+    }
 
-            if (supplier != null) {
-                String metricName = toMetricName(objectname, attr.getName());
-                LOG.info(
-                        "Registering metric {} from MBean (objectname=[{}], name={}, type={})",
-                        metricName,
-                        objectname,
-                        attr.getName(),
-                        attr.getType());
-                metrics.gauge(metricName, supplier);
+    /**
+     * MBeans with immutable info, like standard MBeans and MXBeans, expose the same attributes for all instances
+     * of their class, and the MBean server returns the same info for all of them. Their exported attributes are
+     * only looked up once per info, as there can be thousands of instances of one class.
+     */
+    private List<MBeanAttributeInfo> getExportedAttributes(ObjectName objectname)
+            throws InstanceNotFoundException, ReflectionException, IntrospectionException {
+        MBeanInfo info = server.getMBeanInfo(objectname);
+        ClassAttributes cached = exportedAttributes.get(info);
+        if (cached == null) {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (MBeanAttributeInfo attr : info.getAttributes()) {
+                LOG.debug("Checking mbean = {}, name = {}, type={}", objectname, attr.getName(), attr.getType());
+                if (EXPORTED_TYPES.contains(attr.getType())) {
+                    attributes.add(attr);
+                }
+            }
+            if (!isImmutable(info)) {
+                return attributes;
             }
+            cached = new ClassAttributes(attributes);
+            exportedAttributes.put(info, cached);
         }
+        MBeanInfo previous = exportedInfos.put(objectname, info);
+        if (previous == null || !previous.equals(info)) {
+            if (previous != null) {
+                releaseInfo(previous);
+            }
+            cached.instances++;
+        }
+        return cached.attributes;
+    }
+
+    private static boolean isImmutable(MBeanInfo info) {
+        Descriptor descriptor = info.getDescriptor();
+        return descriptor != null && "true".equalsIgnoreCase(String.valueOf(descriptor.getFieldValue("immutableInfo")));
+    }
+
+    /**
+     * Numeric attributes are exported as primitive gauges, which are read without boxing them again
+     */
+    private LongSupplier getLongSupplier(ObjectName name, String attributeName, AttributeSnapshot snapshot) {
+        Supplier<Number> supplier = getSupplier(name, attributeName, 0L, snapshot);
+        return () -> supplier.get().longValue();
     }
 
-    private <T> Supplier<T> getSupplier(ObjectName name, String attributeName, T defaultValue) {
+    private DoubleSupplier getDoubleSupplier(ObjectName name, String attributeName, AttributeSnapshot snapshot) {
+        Supplier<Number> supplier = getSupplier(name, attributeName, 0.0, snapshot);
+        return () -> supplier.get().doubleValue();
+    }
 
+    private <T> Supplier<T> getSupplier(
+            ObjectName name, String attributeName, T defaultValue, AttributeSnapshot snapshot) {
+        if (snapshot != null) {
+            return () -> {
+                Object value = snapshot.get(attributeName);
+                return value != null ? (T) value : defaultValue;
+            };
+        }
         return () -> {
             try {
                 return (T) server.getAttribute(name, attributeName);
@@ -229,4 +393,63 @@ public class JmxExporterFactory {
         builder.append("." + attributeName);
         return builder.toString();
     }
+
+    private static final class ClassAttributes {
+        final List<MBeanAttributeInfo> attributes;
+        int instances;
+
+        ClassAttributes(List<MBeanAttributeInfo> attributes) {
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * The values of the exported attributes of one MBean, read all at once with a single {@code getAttributes}
+     * call on the first read of any of them in a polling period
+     */
+    private final class AttributeSnapshot {
+        private final ObjectName name;
+        private final long period;
+        private final List<String> attributeNames = new ArrayList<>();
+        private Map<String, Object> values = Collections.emptyMap();
+        private long readAt;
+        private boolean read;
+
+        AttributeSnapshot(ObjectName name, long period) {
+            this.name = name;
+            this.period = period;
+        }
+
+        synchronized void add(String attributeName) {
+            attributeNames.add(attributeName);
+            read = false;
+        }
+
+        synchronized Object get(String attributeName) {
+            long now = clock.getTick();
+            if (!read || now - readAt >= period) {
+                values = readAll();
+                readAt = now;
+                read = true;
+            }
+            return values.get(attributeName);
+        }
+
+        private Map<String, Object> readAll() {
+            Map<String, Object> result = new HashMap<>();
+            try {
+                AttributeList attributes = server.getAttributes(name, attributeNames.toArray(new String[0]));
+                for (Attribute attribute : attributes.asList()) {
+                    result.put(attribute.getName(), attribute.getValue());
+                }
+            } catch (InstanceNotFoundException | ReflectionException e) {
+                LOG.warn(
+                        "error when retrieving values for MBean (objectname=[{}], attributes={})",
+                        name,
+                        attributeNames,
+                        e);
+            }
+            return result;
+        }
+    }
 }
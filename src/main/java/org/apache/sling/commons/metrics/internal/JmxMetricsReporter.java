@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers a {@link MetricMBean} for each metric of a registry, replacing the codahale
+ * {@code JmxReporter}. The MBeans keep the object names, attributes and units of the
+ * {@code JmxReporter}, but serve all attributes of histograms and timers read within the
+ * time to live of the {@link SnapshotCache} of the metrics service from the same snapshot.
+ *
+ * <p>In aggregated mode a single {@link MetricGroupMBean} is registered per bundle domain and
+ * group instead, named {@code <domain>:type=Metrics,group=<group>}. Metrics are assigned to the
+ * group of the longest configured name prefix they start with, or to {@link #DEFAULT_GROUP}.
+ * The number of registered MBeans then no longer grows with the number of metrics.</p>
+ */
+final class JmxMetricsReporter implements MetricRegistryListener, Closeable {
+    static final String DEFAULT_GROUP = "all";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final MetricRegistry registry;
+    private final MBeanServer server;
+    private final BundleMetricsMapper metricsMapper;
+    private final String domain;
+    private final String[] groups;
+    private final SnapshotCache snapshots;
+    private final Map<String, ObjectName> registered = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private final Map<ObjectName, MetricGroupMBean> groupMBeans = new HashMap<>();
+
+    /**
+     * @param groups the name prefixes grouping the metrics in aggregated mode, or {@code null} to
+     *               register one MBean per metric
+     * @param snapshots the cache of the metrics service, which the MBeans share
+     */
+    JmxMetricsReporter(
+            MetricRegistry registry,
+            MBeanServer server,
+            BundleMetricsMapper metricsMapper,
+            String domain,
+            String[] groups,
+            SnapshotCache snapshots) {
+        this.registry = registry;
+        this.server = server;
+        this.metricsMapper = metricsMapper;
+        this.domain = domain;
+        this.groups = groups;
+        this.snapshots = snapshots;
+    }
+
+    /**
+     * Registers the MBeans of all current metrics, and of all metrics added later on
+     */
+    void start() {
+        registry.addListener(this);
+    }
+
+    @Override
+    public void close() {
+        registry.removeListener(this);
+        for (String name : registered.keySet()) {
+            removed(name);
+        }
+    }
+
+    @Override
+    public void onGaugeAdded(String name, Gauge<?> gauge) {
+        added("gauges", name, () -> MetricMBean.forGauge(gauge));
+    }
+
+    @Override
+    public void onGaugeRemoved(String name) {
+        removed(name);
+    }
+
+    @Override
+    public void onCounterAdded(String name, Counter counter) {
+        added("counters", name, () -> MetricMBean.forCounter(counter));
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+        removed(name);
+    }
+
+    @Override
+    public void onHistogramAdded(String name, Histogram histogram) {
+        added("histograms", name, () -> MetricMBean.forHistogram(histogram, snapshots));
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+        removed(name);
+    }
+
+    @Override
+    public void onMeterAdded(String name, Meter meter) {
+        added("meters", name, () -> MetricMBean.forMeter(meter));
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+        removed(name);
+    }
+
+    @Override
+    public void onTimerAdded(String name, Timer timer) {
+        added("timers", name, () -> MetricMBean.forTimer(timer, snapshots));
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+        removed(name);
+    }
+
+    private void added(String type, String name, Supplier<MetricMBean> mbean) {
+        try {
+            if (groups != null) {
+                addToGroup(name, type.equals("gauges"));
+            } else {
+                ObjectName objectName = metricsMapper.createName(type, domain, name);
+                server.registerMBean(mbean.get(), objectName);
+                registered.put(name, objectName);
+            }
+        } catch (InstanceAlreadyExistsException e) {
+            log.debug("Unable to register {} {}", type, name, e);
+        } catch (JMException | RuntimeException e) {
+            log.warn("Unable to register {} {}", type, name, e);
+        }
+    }
+
+    private void removed(String name) {
+        try {
+            if (groups != null) {
+                removeFromGroup(name);
+            } else {
+                ObjectName objectName = registered.remove(name);
+                if (objectName != null) {
+                    server.unregisterMBean(objectName);
+                }
+            }
+        } catch (InstanceNotFoundException e) {
+            log.debug("Unable to unregister {}", name, e);
+        } catch (JMException e) {
+            log.warn("Unable to unregister {}", name, e);
+        }
+    }
+
+    private synchronized void addToGroup(String name, boolean gauge) throws JMException {
+        ObjectName objectName = getGroupName(name);
+        MetricGroupMBean group = groupMBeans.get(objectName);
+        if (group == null) {
+            group = new MetricGroupMBean(registry, snapshots);
+            server.registerMBean(group, objectName);
+            groupMBeans.put(objectName, group);
+        }
+        group.add(name, gauge);
+        registered.put(name, objectName);
+    }
+
+    private synchronized void removeFromGroup(String name) throws JMException {
+        ObjectName objectName = registered.remove(name);
+        MetricGroupMBean group = objectName == null ? null : groupMBeans.get(objectName);
+        if (group != null && group.remove(name)) {
+            groupMBeans.remove(objectName);
+            server.unregisterMBean(objectName);
+        }
+    }
+
+    private ObjectName getGroupName(String name) throws MalformedObjectNameException {
+        String group = DEFAULT_GROUP;
+        int matched = 0;
+        for (String prefix : groups) {
+            if (prefix.length() > matched && name.startsWith(prefix)) {
+                group = prefix;
+                matched = prefix.length();
+            }
+        }
+        Hashtable<String, String> table = new Hashtable<>();
+        table.put("type", BundleMetricsMapper.JMX_TYPE_METRICS);
+        table.put("group", JmxUtil.quoteValueIfRequired(group));
+        return new ObjectName(metricsMapper.getDomain(name, domain), table);
+    }
+}
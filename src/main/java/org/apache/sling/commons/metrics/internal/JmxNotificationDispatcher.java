@@ -0,0 +1,385 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The single listener for MBean registrations and unregistrations of all {@link JmxExporterFactory}
+ * configurations. Each subscriber is notified of the registered and unregistered MBeans whose names
+ * match one of its {@link ObjectName} patterns.
+ *
+ * <p>The patterns are indexed by their domain, so that a registration is only matched against
+ * the patterns of its domain and those with a domain pattern. The index is rebuilt when the
+ * subscriptions change, which is rare compared to MBean registrations.</p>
+ *
+ * <p>The matching names are not passed to the subscribers on the thread registering the MBean,
+ * which is usually busy starting some component. They are queued instead, and passed in batches
+ * by a single background thread. A name queued again before its batch ran is passed only once,
+ * with its latest state.</p>
+ *
+ * <p>It also keeps track of the metrics claimed by the exporters. All of them share the same
+ * {@code MetricsService}, and different MBeans, or the same MBean matched by two configurations,
+ * can be exported as the same metric. Only the first claim registers it, the metric is handed
+ * over to the next claim when it is released, and unregistered with the last one.</p>
+ */
+@Component(service = JmxNotificationDispatcher.class)
+public class JmxNotificationDispatcher implements NotificationListener {
+    private static final Logger LOG = LoggerFactory.getLogger(JmxNotificationDispatcher.class);
+
+    /**
+     * Notified of the MBeans matching the patterns it subscribed with
+     */
+    interface Subscriber {
+        void registered(ObjectName name);
+
+        void unregistered(ObjectName name);
+    }
+
+    private final Map<Subscriber, List<ObjectName>> subscriptions = new LinkedHashMap<>();
+
+    /**
+     * Delay before a batch runs, during which further registrations of a burst are queued
+     */
+    static final long BATCH_DELAY_MILLIS = 100;
+
+    /**
+     * Per subscriber, the queued names, mapped to whether they were registered or unregistered last
+     */
+    private final Map<Subscriber, Map<ObjectName, Boolean>> pending = new LinkedHashMap<>();
+
+    private boolean batchScheduled;
+
+    private volatile Index index = Index.EMPTY;
+
+    /**
+     * Per metric name, the claims for it. The first one registered the metric.
+     */
+    private final Map<String, List<Claim>> claims = new HashMap<>();
+
+    private MBeanServer server;
+
+    ScheduledExecutorService worker;
+
+    @Activate
+    void activate() {
+        server = ManagementFactory.getPlatformMBeanServer();
+        worker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sling-metrics-jmx-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        NotificationFilterSupport filter = new NotificationFilterSupport();
+        filter.enableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+        filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+        try {
+            server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+        } catch (InstanceNotFoundException e) {
+            LOG.error("Cannot add notification listener to MBeanServerDelegate", e);
+        }
+    }
+
+    @Deactivate
+    void deactivate() {
+        try {
+            server.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+        } catch (InstanceNotFoundException | ListenerNotFoundException e) {
+            LOG.debug("Cannot remove notification listener from MBeanServerDelegate", e);
+        }
+        worker.shutdownNow();
+        synchronized (subscriptions) {
+            subscriptions.clear();
+            index = Index.EMPTY;
+        }
+        synchronized (pending) {
+            pending.clear();
+        }
+    }
+
+    /**
+     * Notifies the subscriber of the MBeans (un)registered from now on matching one of the patterns,
+     * replacing its previous subscription
+     */
+    void subscribe(Subscriber subscriber, Collection<ObjectName> patterns) {
+        synchronized (subscriptions) {
+            subscriptions.put(subscriber, new ArrayList<>(patterns));
+            index = new Index(subscriptions);
+        }
+    }
+
+    void unsubscribe(Subscriber subscriber) {
+        synchronized (subscriptions) {
+            if (subscriptions.remove(subscriber) != null) {
+                index = new Index(subscriptions);
+            }
+        }
+        synchronized (pending) {
+            pending.remove(subscriber);
+        }
+    }
+
+    /**
+     * Queues the names to be passed to the subscriber with the next batch
+     * @param registered whether the MBeans were registered or unregistered
+     */
+    void enqueue(Subscriber subscriber, Collection<ObjectName> names, boolean registered) {
+        if (names.isEmpty()) {
+            return;
+        }
+        synchronized (pending) {
+            Map<ObjectName, Boolean> queued = pending.computeIfAbsent(subscriber, s -> new LinkedHashMap<>());
+            for (ObjectName name : names) {
+                // moves the name to the end, so that the states of different names keep their order
+                queued.remove(name);
+                queued.put(name, registered);
+            }
+            if (!batchScheduled) {
+                try {
+                    worker.schedule(this::runBatch, BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                    batchScheduled = true;
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("Dispatcher is deactivated, dropping the queued MBeans", e);
+                    pending.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers the metric unless it was claimed already
+     * @param owner the owner of the claim, compared by identity
+     * @param register registers the metric of this claim
+     * @param unregister unregisters the metric of this claim
+     */
+    void claim(String metricName, Object owner, Runnable register, Runnable unregister) {
+        synchronized (claims) {
+            List<Claim> metricClaims = claims.get(metricName);
+            if (metricClaims == null) {
+                register.run();
+                metricClaims = new ArrayList<>(1);
+                claims.put(metricName, metricClaims);
+            }
+            metricClaims.add(new Claim(owner, register, unregister));
+        }
+    }
+
+    /**
+     * Releases the claim of the owner, and unregisters the metric if it was registered by this claim.
+     * It is registered again by the next claim, if there is any.
+     */
+    void release(String metricName, Object owner) {
+        synchronized (claims) {
+            List<Claim> metricClaims = claims.get(metricName);
+            if (metricClaims == null) {
+                return;
+            }
+            for (int i = 0; i < metricClaims.size(); i++) {
+                Claim claim = metricClaims.get(i);
+                if (claim.owner == owner) {
+                    metricClaims.remove(i);
+                    if (i == 0) {
+                        claim.unregister.run();
+                        if (!metricClaims.isEmpty()) {
+                            try {
+                                metricClaims.get(0).register.run();
+                            } catch (RuntimeException e) {
+                                LOG.error("Cannot register metric {} again", metricName, e);
+                            }
+                        }
+                    }
+                    break;
+                }
+            }
+            if (metricClaims.isEmpty()) {
+                claims.remove(metricName);
+            }
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (notification instanceof MBeanServerNotification) {
+            ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+            if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                dispatch(name, true);
+            } else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                dispatch(name, false);
+            }
+        }
+    }
+
+    void dispatch(ObjectName name, boolean registered) {
+        for (Subscription subscription : index.get(name.getDomain())) {
+            if (subscription.matches(name)) {
+                enqueue(subscription.subscriber, Collections.singleton(name), registered);
+            }
+        }
+    }
+
+    void runBatch() {
+        Map<Subscriber, Map<ObjectName, Boolean>> batch;
+        synchronized (pending) {
+            batch = new LinkedHashMap<>(pending);
+            pending.clear();
+            batchScheduled = false;
+        }
+        for (Map.Entry<Subscriber, Map<ObjectName, Boolean>> e : batch.entrySet()) {
+            Subscriber subscriber = e.getKey();
+            for (Map.Entry<ObjectName, Boolean> queued : e.getValue().entrySet()) {
+                if (!isSubscribed(subscriber)) {
+                    break;
+                }
+                ObjectName name = queued.getKey();
+                try {
+                    if (queued.getValue()) {
+                        LOG.debug("JMX Notification : register metrics for MBean: {}", name);
+                        subscriber.registered(name);
+                    } else {
+                        LOG.debug("JMX Notification : unregister metrics for MBean: {}", name);
+                        subscriber.unregistered(name);
+                    }
+                } catch (RuntimeException ex) {
+                    LOG.error("JMX Notification : Cannot update metrics for objectname = {}", name, ex);
+                }
+            }
+        }
+    }
+
+    private boolean isSubscribed(Subscriber subscriber) {
+        synchronized (subscriptions) {
+            return subscriptions.containsKey(subscriber);
+        }
+    }
+
+    private static final class Claim {
+        final Object owner;
+        final Runnable register;
+        final Runnable unregister;
+
+        Claim(Object owner, Runnable register, Runnable unregister) {
+            this.owner = owner;
+            this.register = register;
+            this.unregister = unregister;
+        }
+    }
+
+    /**
+     * The patterns of a subscriber which can match the names of one domain
+     */
+    private static final class Subscription {
+        final Subscriber subscriber;
+        final ObjectName[] patterns;
+
+        Subscription(Subscriber subscriber, Collection<ObjectName> patterns) {
+            this.subscriber = subscriber;
+            this.patterns = patterns.toArray(new ObjectName[0]);
+        }
+
+        boolean matches(ObjectName name) {
+            for (ObjectName pattern : patterns) {
+                if (pattern.apply(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Index {
+        static final Index EMPTY = new Index(Collections.emptyMap());
+
+        /**
+         * Per domain, the subscriptions with patterns of that domain, or a domain pattern
+         */
+        private final Map<String, Subscription[]> byDomain = new HashMap<>();
+
+        /**
+         * The subscriptions with a domain pattern, for the names of all other domains
+         */
+        private final Subscription[] anyDomain;
+
+        Index(Map<Subscriber, List<ObjectName>> subscriptions) {
+            Set<String> domains = new LinkedHashSet<>();
+            for (List<ObjectName> patterns : subscriptions.values()) {
+                for (ObjectName pattern : patterns) {
+                    if (!pattern.isDomainPattern()) {
+                        domains.add(pattern.getDomain());
+                    }
+                }
+            }
+            for (String domain : domains) {
+                byDomain.put(domain, select(subscriptions, domain));
+            }
+            anyDomain = select(subscriptions, null);
+        }
+
+        Subscription[] get(String domain) {
+            Subscription[] subscriptions = byDomain.get(domain);
+            return subscriptions != null ? subscriptions : anyDomain;
+        }
+
+        /**
+         * @return the subscriptions reduced to the patterns of the domain and the domain patterns
+         */
+        private static Subscription[] select(Map<Subscriber, List<ObjectName>> subscriptions, String domain) {
+            List<Subscription> selected = new ArrayList<>();
+            for (Map.Entry<Subscriber, List<ObjectName>> e : subscriptions.entrySet()) {
+                List<ObjectName> patterns = new ArrayList<>();
+                for (ObjectName pattern : e.getValue()) {
+                    if (pattern.isDomainPattern() || pattern.getDomain().equals(domain)) {
+                        patterns.add(pattern);
+                    }
+                }
+                if (!patterns.isEmpty()) {
+                    selected.add(new Subscription(e.getKey(), patterns));
+                }
+            }
+            return selected.toArray(new Subscription[0]);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Timer;
+import org.apache.sling.commons.metrics.DoubleGauge;
+import org.apache.sling.commons.metrics.LongGauge;
+
+/**
+ * Exposes the metrics of a {@link MetricRegistry} as JSON, in the format of the JSON inventory
+ * printer, for dashboards which poll a few metrics frequently. The request parameters select
+ * the metrics:
+ *
+ * <ul>
+ *     <li>{@code prefix}: the names start with this prefix</li>
+ *     <li>{@code regex}: the names match this regular expression</li>
+ *     <li>{@code type}: the type of the metric, gauge, counter, histogram, meter or timer. Can be
+ *     repeated or comma separated.</li>
+ *     <li>{@code fields}: only these fields of each metric are reported, comma separated</li>
+ *     <li>{@code limit}: the maximum number of metrics reported. If more metrics match, the name
+ *     of the last metric reported is returned as {@code next}.</li>
+ *     <li>{@code after}: the {@code next} value of the previous page</li>
+ *     <li>{@code lastInterval}: {@code true} to report the distributions of histograms and timers
+ *     with an {@code INTERVAL} reservoir over their last completed interval only.</li>
+ * </ul>
+ *
+ * <p>The response carries an ETag computed from the names and counts of the metrics on the
+ * page, and the values of the gauges. As the rates and distributions of meters, histograms and
+ * timers change without their counts, pages with any of them also get a new ETag with each time
+ * to live period of the {@link SnapshotCache}. The gauges are only evaluated once, for both the
+ * ETag and the response. If it matches the {@code If-None-Match} header of the
+ * request, nothing is rendered and {@code 304 Not Modified} is returned. The cost of a request
+ * thus mostly depends on the metrics of the page, only matching the names scans the registry.</p>
+ */
+class JsonMetricsServlet extends HttpServlet {
+    static final int DEFAULT_LIMIT = 1000;
+    static final int MAX_LIMIT = 10_000;
+    private static final long serialVersionUID = 1L;
+
+    private final transient MetricRegistry registry;
+    private final transient SnapshotCache snapshotCache;
+
+    JsonMetricsServlet(MetricRegistry registry, SnapshotCache snapshotCache) {
+        this.registry = registry;
+        this.snapshotCache = snapshotCache;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Query query;
+        try {
+            query = new Query(req);
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        // Only keep the first metrics after the cursor, in name order
+        TreeMap<String, Metric> page = new TreeMap<>();
+        boolean more = false;
+        for (Map.Entry<String, Metric> e : registry.getMetrics().entrySet()) {
+            if (query.matches(e.getKey(), e.getValue())) {
+                page.put(e.getKey(), e.getValue());
+                if (page.size() > query.limit) {
+                    page.pollLastEntry();
+                    more = true;
+                }
+            }
+        }
+        String next = more ? page.lastKey() : null;
+        page.replaceAll((name, metric) -> metric instanceof Gauge ? evaluate((Gauge<?>) metric) : metric);
+
+        String etag = etag(page, next, query.lastInterval, snapshotCache.currentPeriod());
+        resp.setHeader("ETag", etag);
+        resp.setHeader("Cache-Control", "no-cache");
+        if (matches(req.getHeader("If-None-Match"), etag)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        JSONReporter reporter = JSONReporter.forRegistry(registry)
+                .outputTo(resp.getOutputStream())
+                .fields(query.fields)
+                .reportLastInterval(query.lastInterval)
+                .build();
+        reporter.report(
+                select(page, Gauge.class),
+                select(page, Counter.class),
+                select(page, Histogram.class),
+                select(page, Meter.class),
+                select(page, Timer.class),
+                next);
+        reporter.close();
+    }
+
+    static String etag(Map<String, Metric> metrics, String next, boolean lastInterval, long period) {
+        long hash = 31 * Objects.hashCode(next) + Boolean.hashCode(lastInterval);
+        boolean changing = false;
+        for (Map.Entry<String, Metric> e : metrics.entrySet()) {
+            hash = 31 * hash + e.getKey().hashCode();
+            Metric metric = e.getValue();
+            changing |= metric instanceof Metered || metric instanceof Sampling;
+            if (metric instanceof Counting) {
+                hash = 31 * hash + ((Counting) metric).getCount();
+            } else if (metric instanceof LongGauge) {
+                hash = 31 * hash + ((LongGauge) metric).getLong();
+            } else if (metric instanceof DoubleGauge) {
+                hash = 31 * hash + Double.hashCode(((DoubleGauge) metric).getDouble());
+            } else if (metric instanceof Gauge) {
+                hash = 31 * hash + Objects.hashCode(((Gauge<?>) metric).getValue());
+            }
+        }
+        if (changing) {
+            hash = 31 * hash + period;
+        }
+        return '"' + Long.toHexString(hash) + '"';
+    }
+
+    /**
+     * @return a gauge serving the current value of the given gauge
+     */
+    private static Gauge<?> evaluate(Gauge<?> gauge) {
+        Object value;
+        if (gauge instanceof LongGauge) {
+            value = ((LongGauge) gauge).getLong();
+        } else if (gauge instanceof DoubleGauge) {
+            value = ((DoubleGauge) gauge).getDouble();
+        } else {
+            value = gauge.getValue();
+        }
+        return (Gauge<Object>) () -> value;
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || tag.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Metric> SortedMap<String, T> select(SortedMap<String, Metric> page, Class<T> type) {
+        SortedMap<String, T> selected = new TreeMap<>();
+        for (Map.Entry<String, Metric> e : page.entrySet()) {
+            if (type.isInstance(e.getValue())) {
+                selected.put(e.getKey(), (T) e.getValue());
+            }
+        }
+        return selected;
+    }
+
+    private static final class Query {
+        private final String prefix;
+        private final Pattern regex;
+        private final String after;
+        private final int limit;
+        private final String[] fields;
+        private final boolean lastInterval;
+        private boolean gauges;
+        private boolean counters;
+        private boolean histograms;
+        private boolean meters;
+        private boolean timers;
+
+        Query(HttpServletRequest req) {
+            prefix = req.getParameter("prefix");
+            after = req.getParameter("after");
+            String regexParam = req.getParameter("regex");
+            try {
+                regex = regexParam != null ? Pattern.compile(regexParam) : null;
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid regex: " + e.getDescription());
+            }
+            limit = parseLimit(req.getParameter("limit"));
+            String fieldsParam = req.getParameter("fields");
+            fields = fieldsParam != null ? fieldsParam.split(",") : new String[0];
+            lastInterval = Boolean.parseBoolean(req.getParameter("lastInterval"));
+
+            String[] types = req.getParameterValues("type");
+            if (types == null) {
+                gauges = counters = histograms = meters = timers = true;
+            } else {
+                for (String type : types) {
+                    for (String t : type.split(",")) {
+                        selectType(t.trim());
+                    }
+                }
+            }
+        }
+
+        boolean matches(String name, Metric metric) {
+            return (after == null || name.compareTo(after) > 0)
+                    && (prefix == null || name.startsWith(prefix))
+                    && isSelected(metric)
+                    && (regex == null || regex.matcher(name).matches());
+        }
+
+        private boolean isSelected(Metric metric) {
+            if (metric instanceof Gauge) {
+                return gauges;
+            } else if (metric instanceof Counter) {
+                return counters;
+            } else if (metric instanceof Histogram) {
+                return histograms;
+            } else if (metric instanceof Meter) {
+                return meters;
+            } else if (metric instanceof Timer) {
+                return timers;
+            }
+            return false;
+        }
+
+        private void selectType(String type) {
+            switch (type) {
+                case "gauge":
+                    gauges = true;
+                    break;
+                case "counter":
+                    counters = true;
+                    break;
+                case "histogram":
+                    histograms = true;
+                    break;
+                case "meter":
+                    meters = true;
+                    break;
+                case "timer":
+                    timers = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown metric type: " + type);
+            }
+        }
+
+        private static int parseLimit(String limit) {
+            if (limit == null) {
+                return DEFAULT_LIMIT;
+            }
+            try {
+                int value = Integer.parseInt(limit);
+                if (value > 0 && value <= MAX_LIMIT) {
+                    return value;
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException("The limit must be between 1 and " + MAX_LIMIT + ": " + limit);
+        }
+    }
+}
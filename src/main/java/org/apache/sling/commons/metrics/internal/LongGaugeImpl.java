@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.function.LongSupplier;
+
+import org.apache.sling.commons.metrics.LongGauge;
+import org.apache.sling.commons.metrics.Metric;
+
+/**
+ * Registered as is with the {@code MetricRegistry}, so that reporters can read the primitive
+ * value through {@link #getLong()}
+ */
+final class LongGaugeImpl implements LongGauge, com.codahale.metrics.Gauge<Long>, Metric {
+    private final LongSupplier supplier;
+
+    LongGaugeImpl(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    @Override
+    public long getLong() {
+        return supplier.getAsLong();
+    }
+
+    @Override
+    public Long getValue() {
+        return getLong();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <A> A adaptTo(Class<A> type) {
+        if (type == com.codahale.metrics.Gauge.class) {
+            return (A) this;
+        }
+        return null;
+    }
+}
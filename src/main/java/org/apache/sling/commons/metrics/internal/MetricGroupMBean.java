@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+import javax.management.openmbean.OpenDataException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Read-only MBean exposing a group of metrics as its attributes, named after the metrics.
+ * Gauges are exposed with their value, all other metrics as {@code CompositeData} with the
+ * attributes of their {@link MetricMBean}.
+ *
+ * <p>The group only keeps the names of its metrics and whether they are gauges, which is all
+ * its {@link MBeanInfo} is built from. The metrics are looked up in the registry when an
+ * attribute is read for the first time, so adding a metric to a group, or browsing the group,
+ * costs next to nothing.</p>
+ */
+final class MetricGroupMBean implements DynamicMBean {
+    private final MetricRegistry registry;
+    private final SnapshotCache snapshots;
+    // The open types of the attributes per metric name
+    private final ConcurrentMap<String, String> names = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, MetricMBean> resolved = new ConcurrentHashMap<>();
+
+    // Guarded by this, rebuilt after the group changed
+    private MBeanInfo info;
+
+    MetricGroupMBean(MetricRegistry registry, SnapshotCache snapshots) {
+        this.registry = registry;
+        this.snapshots = snapshots;
+    }
+
+    synchronized void add(String name, boolean gauge) {
+        names.put(name, MetricMBean.getOpenType(gauge));
+        info = null;
+    }
+
+    /**
+     * @return {@code true} if the group is empty afterwards
+     */
+    synchronized boolean remove(String name) {
+        names.remove(name);
+        resolved.remove(name);
+        info = null;
+        return names.isEmpty();
+    }
+
+    @Override
+    public Object getAttribute(String name) throws AttributeNotFoundException, MBeanException {
+        MetricMBean metric = resolve(name);
+        if (metric == null) {
+            throw new AttributeNotFoundException(name);
+        }
+        try {
+            return metric.getOpenValue();
+        } catch (OpenDataException e) {
+            throw new MBeanException(e, "Unable to read " + name);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributeNames) {
+        AttributeList list = new AttributeList(attributeNames.length);
+        for (String name : attributeNames) {
+            try {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch (AttributeNotFoundException | MBeanException e) {
+                // Like the MBeanServer skip attributes which cannot be read
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public synchronized MBeanInfo getMBeanInfo() {
+        MBeanInfo current = info;
+        if (current == null) {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, String> e : new TreeMap<>(names).entrySet()) {
+                attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue(), e.getKey(), true, false, false));
+            }
+            current = new MBeanInfo(
+                    getClass().getName(),
+                    "Metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]),
+                    null,
+                    new MBeanOperationInfo[0],
+                    null);
+            info = current;
+        }
+        return current;
+    }
+
+    private MetricMBean resolve(String name) {
+        if (!names.containsKey(name)) {
+            return null;
+        }
+        return resolved.computeIfAbsent(name, n -> {
+            Metric metric = registry.getMetrics().get(n);
+            return metric == null ? null : MetricMBean.forMetric(metric, snapshots);
+        });
+    }
+}
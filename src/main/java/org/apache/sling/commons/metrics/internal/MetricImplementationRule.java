@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+/**
+ * Selects the implementation of the histograms and timers whose name matches one of the
+ * configured patterns. The rules are applied by {@link MetricsServiceImpl} when a metric is
+ * created, so cheap implementations can be used for metrics on very hot paths and rich ones
+ * on slow paths without changing the code recording them.
+ */
+@Component(service = MetricImplementationRule.class, configurationPolicy = ConfigurationPolicy.REQUIRE)
+@Designate(ocd = MetricImplementationRule.Config.class, factory = true)
+public class MetricImplementationRule {
+
+    @ObjectClassDefinition(
+            name = "Apache Sling Metrics Implementation Rule",
+            description = "Selects the implementation of histograms and timers by their name. "
+                    + "Only applies to metrics created after the rule got active.")
+    @interface Config {
+
+        @AttributeDefinition(
+                name = "Name patterns",
+                description = "Names of the metrics this rule applies to. A '*' matches any sequence "
+                        + "of characters, e.g. 'sling.request.*'")
+        String[] names();
+
+        @AttributeDefinition(
+                name = "Implementation",
+                description = "LITE only maintains the count and rates. All other values select the "
+                        + "reservoir used to compute the percentiles.")
+        ReservoirFactory.Type implementation() default ReservoirFactory.Type.EXPONENTIALLY_DECAYING;
+
+        @AttributeDefinition(
+                name = "Reservoir size",
+                description = "Number of values kept by EXPONENTIALLY_DECAYING, UNIFORM and SLIDING_WINDOW")
+        int size() default ReservoirFactory.DEFAULT_SIZE;
+
+        @AttributeDefinition(
+                name = "Sliding time window",
+                description = "Time window in seconds of SLIDING_TIME_WINDOW")
+        long window() default ReservoirFactory.DEFAULT_WINDOW_SECONDS;
+
+        @AttributeDefinition(
+                name = "HDR significant digits",
+                description = "Number of significant decimal digits maintained by HDR, STRIPED_HDR and INTERVAL (1-5)")
+        int hdrSignificantDigits() default ReservoirFactory.DEFAULT_SIGNIFICANT_DIGITS;
+
+        @AttributeDefinition(
+                name = "HDR highest trackable value",
+                description = "Highest value tracked with full precision by HDR, STRIPED_HDR and INTERVAL")
+        long hdrHighestTrackableValue() default ReservoirFactory.DEFAULT_HIGHEST_TRACKABLE_VALUE;
+
+        @AttributeDefinition(
+                name = "HDR stripes",
+                description = "Maximum number of histograms used by STRIPED_HDR, 0 for up to one per core")
+        int hdrStripes() default ReservoirFactory.DEFAULT_STRIPES;
+
+        @AttributeDefinition(name = "Interval", description = "Length in seconds of the intervals of INTERVAL")
+        long interval() default ReservoirFactory.DEFAULT_INTERVAL_SECONDS;
+
+        @AttributeDefinition(
+                name = "Intervals",
+                description = "Number of intervals covered by the percentiles of INTERVAL")
+        int intervals() default ReservoirFactory.DEFAULT_INTERVALS;
+
+        @AttributeDefinition(
+                name = "Ranking",
+                description = "If the name of a metric matches multiple rules the one with the highest ranking is used")
+        int ranking() default 0;
+
+        @AttributeDefinition
+        String webconsole_configurationFactory_nameHint() default "{implementation}: {names}"; // NOSONAR
+    }
+
+    private List<Pattern> patterns;
+    private ReservoirFactory reservoirFactory;
+    private int ranking;
+
+    @Activate
+    protected void activate(Config config) {
+        List<Pattern> compiled = new ArrayList<>();
+        if (config.names() != null) {
+            for (String name : config.names()) {
+                compiled.add(toPattern(name.trim()));
+            }
+        }
+        this.patterns = compiled;
+        this.ranking = config.ranking();
+        this.reservoirFactory = new ReservoirFactory(
+                config.implementation(),
+                config.size(),
+                config.window(),
+                config.hdrSignificantDigits(),
+                config.hdrHighestTrackableValue(),
+                config.hdrStripes(),
+                config.interval(),
+                config.intervals());
+    }
+
+    boolean matches(String metricName) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(metricName).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    ReservoirFactory getReservoirFactory() {
+        return reservoirFactory;
+    }
+
+    int getRanking() {
+        return ranking;
+    }
+
+    static Pattern toPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        int wildcard;
+        while ((wildcard = glob.indexOf('*', start)) >= 0) {
+            if (wildcard > start) {
+                regex.append(Pattern.quote(glob.substring(start, wildcard)));
+            }
+            regex.append(".*");
+            start = wildcard + 1;
+        }
+        if (start < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(start)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    @Override
+    public String toString() {
+        return "MetricImplementationRule{patterns=" + patterns + ", ranking=" + ranking + ", " + reservoirFactory + '}';
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import org.apache.sling.commons.metrics.DoubleGauge;
+import org.apache.sling.commons.metrics.LongGauge;
+
+/**
+ * Read-only MBean exposing a single metric with the same attributes and operations as the
+ * MBeans of the codahale {@code JmxReporter}.
+ *
+ * <p>All attributes of histograms and timers read within the validity of the passed
+ * {@link SnapshotCache} are served from the same snapshot, and {@link #getAttributes(String[])}
+ * reads all requested attributes from a single snapshot, so that a client reading all
+ * percentiles of a timer only copies and sorts its reservoir once.</p>
+ */
+final class MetricMBean implements DynamicMBean {
+    private interface Reader {
+        Object read(Snapshot snapshot);
+    }
+
+    private static final class MetricAttribute {
+        final MBeanAttributeInfo info;
+        final boolean sampled;
+        final Reader reader;
+
+        MetricAttribute(MBeanAttributeInfo info, boolean sampled, Reader reader) {
+            this.info = info;
+            this.sampled = sampled;
+            this.reader = reader;
+        }
+    }
+
+    private static final String VALUES = "values";
+
+    private static final String GAUGE_VALUE = "Value";
+
+    private static final Map<String, OpenType<?>> OPEN_TYPES = new HashMap<>();
+
+    static {
+        OPEN_TYPES.put(long.class.getName(), SimpleType.LONG);
+        OPEN_TYPES.put(Long.class.getName(), SimpleType.LONG);
+        OPEN_TYPES.put(double.class.getName(), SimpleType.DOUBLE);
+        OPEN_TYPES.put(Double.class.getName(), SimpleType.DOUBLE);
+        OPEN_TYPES.put(Integer.class.getName(), SimpleType.INTEGER);
+        OPEN_TYPES.put(Float.class.getName(), SimpleType.FLOAT);
+        OPEN_TYPES.put(Boolean.class.getName(), SimpleType.BOOLEAN);
+        OPEN_TYPES.put(String.class.getName(), SimpleType.STRING);
+    }
+
+    // Same units as the defaults of the codahale JmxReporter
+    private static final String RATE_UNIT = "events/second";
+    private static final double RATE_FACTOR = TimeUnit.SECONDS.toSeconds(1);
+    private static final String DURATION_UNIT = TimeUnit.MILLISECONDS.toString().toLowerCase(Locale.US);
+    private static final double DURATION_FACTOR = 1.0 / TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Map<String, MetricAttribute> attributes;
+    private final Sampling sampling;
+    private final Reader values;
+    private final MBeanInfo info;
+    private final String description;
+
+    // Only needed by aggregated MBeans, created on first use
+    private volatile CompositeType compositeType;
+
+    private MetricMBean(String description, Map<String, MetricAttribute> attributes, Sampling sampling, Reader values) {
+        this.attributes = attributes;
+        this.sampling = sampling;
+        this.values = values;
+
+        MBeanAttributeInfo[] attributeInfos = new MBeanAttributeInfo[attributes.size()];
+        int i = 0;
+        for (MetricAttribute attribute : attributes.values()) {
+            attributeInfos[i++] = attribute.info;
+        }
+        MBeanOperationInfo[] operations = values == null
+                ? new MBeanOperationInfo[0]
+                : new MBeanOperationInfo[] {
+                    new MBeanOperationInfo(
+                            VALUES,
+                            "Values of the current snapshot",
+                            new MBeanParameterInfo[0],
+                            sampling instanceof Timer ? double[].class.getName() : long[].class.getName(),
+                            MBeanOperationInfo.INFO)
+                };
+        this.info = new MBeanInfo(getClass().getName(), description, attributeInfos, null, operations, null);
+        this.description = description;
+    }
+
+    static MetricMBean forMetric(Metric metric, SnapshotCache snapshots) {
+        if (metric instanceof Gauge) {
+            return forGauge((Gauge<?>) metric);
+        } else if (metric instanceof Counter) {
+            return forCounter((Counter) metric);
+        } else if (metric instanceof Histogram) {
+            return forHistogram((Histogram) metric, snapshots);
+        } else if (metric instanceof Timer) {
+            return forTimer((Timer) metric, snapshots);
+        } else if (metric instanceof Meter) {
+            return forMeter((Meter) metric);
+        }
+        throw new IllegalArgumentException("Unsupported metric " + metric);
+    }
+
+    static MetricMBean forGauge(Gauge<?> gauge) {
+        Map<String, MetricAttribute> attributes = new LinkedHashMap<>();
+        if (gauge instanceof LongGauge) {
+            add(attributes, GAUGE_VALUE, long.class, false, s -> ((LongGauge) gauge).getLong());
+        } else if (gauge instanceof DoubleGauge) {
+            add(attributes, GAUGE_VALUE, double.class, false, s -> ((DoubleGauge) gauge).getDouble());
+        } else {
+            add(attributes, GAUGE_VALUE, Object.class, false, s -> gauge.getValue());
+        }
+        return new MetricMBean("Gauge", attributes, null, null);
+    }
+
+    static MetricMBean forCounter(Counter counter) {
+        Map<String, MetricAttribute> attributes = new LinkedHashMap<>();
+        add(attributes, "Count", long.class, false, s -> counter.getCount());
+        return new MetricMBean("Counter", attributes, null, null);
+    }
+
+    static MetricMBean forMeter(Meter meter) {
+        Map<String, MetricAttribute> attributes = new LinkedHashMap<>();
+        addMetered(attributes, meter);
+        return new MetricMBean("Meter", attributes, null, null);
+    }
+
+    static MetricMBean forHistogram(Histogram histogram, SnapshotCache snapshots) {
+        Map<String, MetricAttribute> attributes = new LinkedHashMap<>();
+        add(attributes, "Count", long.class, false, s -> histogram.getCount());
+        add(attributes, "Min", long.class, true, Snapshot::getMin);
+        add(attributes, "Max", long.class, true, Snapshot::getMax);
+        add(attributes, "Mean", double.class, true, Snapshot::getMean);
+        add(attributes, "StdDev", double.class, true, Snapshot::getStdDev);
+        add(attributes, "50thPercentile", double.class, true, Snapshot::getMedian);
+        add(attributes, "75thPercentile", double.class, true, Snapshot::get75thPercentile);
+        add(attributes, "95thPercentile", double.class, true, Snapshot::get95thPercentile);
+        add(attributes, "98thPercentile", double.class, true, Snapshot::get98thPercentile);
+        add(attributes, "99thPercentile", double.class, true, Snapshot::get99thPercentile);
+        add(attributes, "999thPercentile", double.class, true, Snapshot::get999thPercentile);
+        add(attributes, "SnapshotSize", long.class, true, s -> (long) s.size());
+        return new MetricMBean("Histogram", attributes, snapshots.wrap(histogram), Snapshot::getValues);
+    }
+
+    static MetricMBean forTimer(Timer timer, SnapshotCache snapshots) {
+        Map<String, MetricAttribute> attributes = new LinkedHashMap<>();
+        addMetered(attributes, timer);
+        add(attributes, "Min", double.class, true, s -> s.getMin() * DURATION_FACTOR);
+        add(attributes, "Max", double.class, true, s -> s.getMax() * DURATION_FACTOR);
+        add(attributes, "Mean", double.class, true, s -> s.getMean() * DURATION_FACTOR);
+        add(attributes, "StdDev", double.class, true, s -> s.getStdDev() * DURATION_FACTOR);
+        add(attributes, "50thPercentile", double.class, true, s -> s.getMedian() * DURATION_FACTOR);
+        add(attributes, "75thPercentile", double.class, true, s -> s.get75thPercentile() * DURATION_FACTOR);
+        add(attributes, "95thPercentile", double.class, true, s -> s.get95thPercentile() * DURATION_FACTOR);
+        add(attributes, "98thPercentile", double.class, true, s -> s.get98thPercentile() * DURATION_FACTOR);
+        add(attributes, "99thPercentile", double.class, true, s -> s.get99thPercentile() * DURATION_FACTOR);
+        add(attributes, "999thPercentile", double.class, true, s -> s.get999thPercentile() * DURATION_FACTOR);
+        add(attributes, "DurationUnit", String.class, false, s -> DURATION_UNIT);
+        return new MetricMBean("Timer", attributes, snapshots.wrap(timer), s -> {
+            long[] values = s.getValues();
+            double[] converted = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                converted[i] = values[i] * DURATION_FACTOR;
+            }
+            return converted;
+        });
+    }
+
+    private static void addMetered(Map<String, MetricAttribute> attributes, Metered meter) {
+        add(attributes, "Count", long.class, false, s -> meter.getCount());
+        add(attributes, "MeanRate", double.class, false, s -> meter.getMeanRate() * RATE_FACTOR);
+        add(attributes, "OneMinuteRate", double.class, false, s -> meter.getOneMinuteRate() * RATE_FACTOR);
+        add(attributes, "FiveMinuteRate", double.class, false, s -> meter.getFiveMinuteRate() * RATE_FACTOR);
+        add(attributes, "FifteenMinuteRate", double.class, false, s -> meter.getFifteenMinuteRate() * RATE_FACTOR);
+        add(attributes, "RateUnit", String.class, false, s -> RATE_UNIT);
+    }
+
+    private static void add(
+            Map<String, MetricAttribute> attributes, String name, Class<?> type, boolean sampled, Reader reader) {
+        MBeanAttributeInfo info = new MBeanAttributeInfo(name, type.getName(), name, true, false, false);
+        attributes.put(name, new MetricAttribute(info, sampled, reader));
+    }
+
+    private CompositeType getCompositeType() {
+        CompositeType type = compositeType;
+        if (type == null) {
+            type = createCompositeType();
+            compositeType = type;
+        }
+        return type;
+    }
+
+    private CompositeType createCompositeType() {
+        String[] names = new String[info.getAttributes().length];
+        OpenType<?>[] types = new OpenType<?>[names.length];
+        for (int i = 0; i < names.length; i++) {
+            MBeanAttributeInfo attribute = info.getAttributes()[i];
+            names[i] = attribute.getName();
+            types[i] = OPEN_TYPES.get(attribute.getType());
+        }
+        try {
+            return new CompositeType(description, description, names, names, types);
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the value of a gauge, or all attributes of other metrics as {@link CompositeData}
+     *         read from a single snapshot
+     */
+    Object getOpenValue() throws OpenDataException {
+        if (isGauge()) {
+            Object value = attributes.get(GAUGE_VALUE).reader.read(null);
+            return value == null || OPEN_TYPES.containsKey(value.getClass().getName()) ? value : value.toString();
+        }
+        CompositeType type = getCompositeType();
+        String[] names = type.keySet().toArray(new String[0]);
+        Object[] values = new Object[names.length];
+        int i = 0;
+        for (Object attribute : getAttributes(names)) {
+            values[i++] = ((Attribute) attribute).getValue();
+        }
+        return new CompositeDataSupport(type, names, values);
+    }
+
+    /**
+     * @return the type of {@link #getOpenValue()} of gauges, or of all other metrics
+     */
+    static String getOpenType(boolean gauge) {
+        return gauge ? Object.class.getName() : CompositeData.class.getName();
+    }
+
+    private boolean isGauge() {
+        return attributes.containsKey(GAUGE_VALUE);
+    }
+
+    @Override
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+        MetricAttribute attribute = attributes.get(name);
+        if (attribute == null) {
+            throw new AttributeNotFoundException(name);
+        }
+        return attribute.reader.read(attribute.sampled ? sampling.getSnapshot() : null);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList(names.length);
+        Snapshot snapshot = null;
+        for (String name : names) {
+            MetricAttribute attribute = attributes.get(name);
+            if (attribute == null) {
+                continue;
+            }
+            if (attribute.sampled && snapshot == null) {
+                snapshot = sampling.getSnapshot();
+            }
+            list.add(new Attribute(name, attribute.reader.read(snapshot)));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws MBeanException, ReflectionException {
+        if (values != null && VALUES.equals(actionName)) {
+            return values.read(sampling.getSnapshot());
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+}
@@ -26,16 +26,23 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.codahale.metrics.ConsoleReporter;
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
@@ -53,8 +60,6 @@ import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 @Component(
         service = {InventoryPrinter.class, Servlet.class},
@@ -75,16 +80,38 @@ public class MetricWebConsolePlugin extends HttpServlet
      */
     public static final String METRIC_REGISTRY_NAME = "name";
 
-    private final Logger log = LoggerFactory.getLogger(getClass());
+    static final String TYPE_ALL = "all";
+    static final String TYPE_COUNTERS = "counters";
+    static final String TYPE_GAUGES = "gauges";
+    static final String TYPE_METERS = "meters";
+    static final String TYPE_TIMERS = "timers";
+    static final String TYPE_HISTOGRAMS = "histograms";
+    private static final List<String> TYPES =
+            Arrays.asList(TYPE_ALL, TYPE_COUNTERS, TYPE_GAUGES, TYPE_METERS, TYPE_TIMERS, TYPE_HISTOGRAMS);
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int MAX_PAGE_SIZE = 1000;
+    static final String STREAM_PATH = "/stream";
+    static final int DEFAULT_STREAM_INTERVAL_SECONDS = 5;
+    static final int MAX_STREAM_INTERVAL_SECONDS = 60;
+    /**
+     * Each stream holds a request thread, so only that many are served at once, and each only for
+     * {@link #MAX_STREAM_MILLIS}. Browsers reconnect on their own after the retry delay sent first.
+     */
+    static final int MAX_STREAMS = 4;
+
+    private static final long MAX_STREAM_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
     private BundleContext context;
     private ServiceTracker<MetricRegistry, MetricRegistry> tracker;
-    private ConcurrentMap<ServiceReference, MetricRegistry> registries = new ConcurrentHashMap<>();
+    private final ConsolidatedMetricRegistry consolidatedRegistry = new ConsolidatedMetricRegistry();
 
     private TimeUnit rateUnit = TimeUnit.SECONDS;
     private TimeUnit durationUnit = TimeUnit.MILLISECONDS;
     private Map<String, TimeUnit> specificDurationUnits = Collections.emptyMap();
     private Map<String, TimeUnit> specificRateUnits = Collections.emptyMap();
     private MetricTimeUnits timeUnit;
+    private final CountDownLatch deactivated = new CountDownLatch(1);
+    final AtomicInteger streams = new AtomicInteger();
 
     @Activate
     private void activate(BundleContext context) {
@@ -96,6 +123,7 @@ public class MetricWebConsolePlugin extends HttpServlet
 
     @Deactivate
     private void deactivate(BundleContext context) {
+        deactivated.countDown();
         tracker.close();
     }
 
@@ -112,9 +140,8 @@ public class MetricWebConsolePlugin extends HttpServlet
             reporter.close();
         } else if (format == Format.JSON) {
             MetricRegistry registry = getConsolidatedRegistry();
-            JSONReporter reporter = JSONReporter.forRegistry(registry)
-                    .outputTo(new PrintStream(new WriterOutputStream(printWriter)))
-                    .build();
+            JSONReporter reporter =
+                    JSONReporter.forRegistry(registry).outputTo(printWriter).build();
             reporter.report();
             reporter.close();
         }
@@ -125,46 +152,265 @@ public class MetricWebConsolePlugin extends HttpServlet
     @Override
     public MetricRegistry addingService(ServiceReference<MetricRegistry> serviceReference) {
         MetricRegistry registry = context.getService(serviceReference);
-        registries.put(serviceReference, registry);
+        consolidatedRegistry.put(serviceReference, registry);
         return registry;
     }
 
     @Override
     public void modifiedService(ServiceReference<MetricRegistry> serviceReference, MetricRegistry registry) {
-        registries.put(serviceReference, registry);
+        consolidatedRegistry.put(serviceReference, registry);
     }
 
     @Override
     public void removedService(ServiceReference<MetricRegistry> serviceReference, MetricRegistry registry) {
-        registries.remove(serviceReference);
+        consolidatedRegistry.remove(serviceReference);
     }
 
     // ~----------------------------------------------< Servlet >
 
     @Override
     protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        if (req.getPathInfo() != null && req.getPathInfo().endsWith(STREAM_PATH)) {
+            stream(req, resp);
+            return;
+        }
         final PrintWriter pw = resp.getWriter();
-        MetricRegistry registry = getConsolidatedRegistry();
+        final PageRequest request = new PageRequest(req);
+        // Iterate over the views of the registries, the sorted maps of getCounters() & co. are copies
+        ConsolidatedMetricRegistry registry = consolidatedRegistry;
 
         appendMetricStatus(pw, registry);
-        addCounterDetails(pw, registry.getCounters());
-        addGaugeDetails(pw, registry.getGauges());
-        addMeterDetails(pw, registry.getMeters());
-        addTimerDetails(pw, registry.getTimers());
-        addHistogramDetails(pw, registry.getHistograms());
+        appendNavigation(pw, request);
+        if (request.shows(TYPE_COUNTERS)) {
+            Page<Counter> counters = request.select(registry.getMetrics(Counter.class));
+            addCounterDetails(pw, counters.rows);
+            appendPagination(pw, request, TYPE_COUNTERS, counters);
+        }
+        if (request.shows(TYPE_GAUGES)) {
+            Page<Gauge> gauges = request.select(registry.getMetrics(Gauge.class));
+            addGaugeDetails(pw, gauges.rows);
+            appendPagination(pw, request, TYPE_GAUGES, gauges);
+        }
+        if (request.shows(TYPE_METERS)) {
+            Page<Meter> meters = request.select(registry.getMetrics(Meter.class));
+            addMeterDetails(pw, meters.rows);
+            appendPagination(pw, request, TYPE_METERS, meters);
+        }
+        if (request.shows(TYPE_TIMERS)) {
+            Page<Timer> timers = request.select(registry.getMetrics(Timer.class));
+            addTimerDetails(pw, timers.rows);
+            appendPagination(pw, request, TYPE_TIMERS, timers);
+        }
+        if (request.shows(TYPE_HISTOGRAMS)) {
+            Page<Histogram> histograms = request.select(registry.getMetrics(Histogram.class));
+            addHistogramDetails(pw, histograms.rows);
+            appendPagination(pw, request, TYPE_HISTOGRAMS, histograms);
+        }
+        appendLiveUpdates(pw, req, request);
+    }
+
+    /**
+     * Sends the rows of the requested page as Server-Sent Events. Every interval only the rows of
+     * the metrics whose count or value changed since the previous tick of this connection are sent.
+     * Beyond {@link #MAX_STREAMS} concurrent streams, the client is only told to retry later.
+     */
+    private void stream(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        PageRequest request = new PageRequest(req);
+        long interval = TimeUnit.SECONDS.toMillis(Math.min(
+                Math.max(PageRequest.parseInt(req.getParameter("interval"), DEFAULT_STREAM_INTERVAL_SECONDS), 1),
+                MAX_STREAM_INTERVAL_SECONDS));
+        List<String> names = visibleNames(request);
+
+        resp.setContentType("text/event-stream");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        PrintWriter pw = resp.getWriter();
+        pw.print("retry: " + interval + "\n\n");
+        if (streams.incrementAndGet() > MAX_STREAMS) {
+            streams.decrementAndGet();
+            pw.flush();
+            return;
+        }
+        RowWriter row = new RowWriter(pw);
+        Map<String, Object> cursor = new HashMap<>();
+        long end = System.currentTimeMillis() + MAX_STREAM_MILLIS;
+        try {
+            do {
+                boolean changed = false;
+                for (String name : names) {
+                    Metric metric = consolidatedRegistry.getMetrics().get(name);
+                    Object state = state(metric);
+                    if (state != null && !state.equals(cursor.put(name, state))) {
+                        pw.print("event: row\ndata: ");
+                        addRow(row, name, metric, state);
+                        pw.print('\n');
+                        changed = true;
+                    }
+                }
+                if (!changed) {
+                    // Keeps the connection alive, and detects clients which went away
+                    pw.print(":\n\n");
+                }
+                pw.flush();
+            } while (!pw.checkError()
+                    && System.currentTimeMillis() < end
+                    && !deactivated.await(interval, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            streams.decrementAndGet();
+        }
+    }
+
+    private List<String> visibleNames(PageRequest request) {
+        List<String> names = new ArrayList<>();
+        addNames(names, request, TYPE_COUNTERS, Counter.class);
+        addNames(names, request, TYPE_GAUGES, Gauge.class);
+        addNames(names, request, TYPE_METERS, Meter.class);
+        addNames(names, request, TYPE_TIMERS, Timer.class);
+        addNames(names, request, TYPE_HISTOGRAMS, Histogram.class);
+        return names;
+    }
+
+    private <T extends Metric> void addNames(
+            List<String> names, PageRequest request, String type, Class<T> metricType) {
+        if (request.shows(type)) {
+            for (Map.Entry<String, T> e : request.select(consolidatedRegistry.getMetrics(metricType)).rows) {
+                names.add(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return what a row is updated for, the count or the value of a gauge
+     */
+    private static Object state(Metric metric) {
+        if (metric instanceof Gauge) {
+            return String.valueOf(((Gauge<?>) metric).getValue());
+        } else if (metric instanceof Counting) {
+            return ((Counting) metric).getCount();
+        }
+        return null;
+    }
+
+    private void addRow(RowWriter row, String name, Metric metric, Object state) {
+        if (metric instanceof Gauge) {
+            addGaugeRow(row, name, (String) state);
+        } else if (metric instanceof Timer) {
+            addTimerRow(row, name, (Timer) metric);
+        } else if (metric instanceof Meter) {
+            addMeterRow(row, name, (Meter) metric);
+        } else if (metric instanceof Counter) {
+            addCounterRow(row, name, (Counter) metric);
+        } else if (metric instanceof Histogram) {
+            addHistogramRow(row, name, (Histogram) metric);
+        }
     }
 
-    private static void appendMetricStatus(PrintWriter pw, MetricRegistry registry) {
+    private static void appendLiveUpdates(PrintWriter pw, HttpServletRequest req, PageRequest request) {
+        Object pluginRoot = req.getAttribute("felix.webconsole.pluginRoot");
+        String streamUrl = (pluginRoot instanceof String ? (String) pluginRoot : "slingmetrics")
+                + STREAM_PATH
+                + request.toQueryString();
+        pw.println("<p><button id='metrics-live' type='button' data-stream='" + escape(streamUrl)
+                + "'>Live updates</button></p>");
+        pw.println("<script>");
+        pw.println("(function() {");
+        pw.println("    var button = document.getElementById('metrics-live');");
+        pw.println("    var source = null;");
+        pw.println("    if (!window.EventSource) { button.disabled = true; return; }");
+        pw.println("    button.onclick = function() {");
+        pw.println("        if (source) {");
+        pw.println("            source.close();");
+        pw.println("            source = null;");
+        pw.println("            button.textContent = 'Live updates';");
+        pw.println("            return;");
+        pw.println("        }");
+        pw.println("        button.textContent = 'Stop live updates';");
+        pw.println("        source = new EventSource(button.getAttribute('data-stream'));");
+        pw.println("        source.addEventListener('row', function(e) {");
+        pw.println("            var body = document.createElement('tbody');");
+        pw.println("            body.innerHTML = e.data;");
+        pw.println("            var row = body.firstChild;");
+        pw.println("            var rows = document.querySelectorAll('tr[data-name]');");
+        pw.println("            for (var i = 0; i < rows.length; i++) {");
+        pw.println("                if (rows[i].getAttribute('data-name') === row.getAttribute('data-name')) {");
+        pw.println("                    row.className = rows[i].className;");
+        pw.println("                    rows[i].parentNode.replaceChild(row, rows[i]);");
+        pw.println("                    return;");
+        pw.println("                }");
+        pw.println("            }");
+        pw.println("        });");
+        pw.println("    };");
+        pw.println("})();");
+        pw.println("</script>");
+    }
+
+    private static void appendMetricStatus(PrintWriter pw, ConsolidatedMetricRegistry registry) {
+        int gauges = 0, timers = 0, meters = 0, counters = 0, histograms = 0;
+        for (Metric metric : registry.getMetrics().values()) {
+            if (metric instanceof Gauge) {
+                gauges++;
+            } else if (metric instanceof Timer) {
+                timers++;
+            } else if (metric instanceof Meter) {
+                meters++;
+            } else if (metric instanceof Counter) {
+                counters++;
+            } else if (metric instanceof Histogram) {
+                histograms++;
+            }
+        }
         pw.printf(
                 "<p class='statline'>Metrics: %d gauges, %d timers, %d meters, %d counters, %d histograms</p>%n",
-                registry.getGauges().size(),
-                registry.getTimers().size(),
-                registry.getMeters().size(),
-                registry.getCounters().size(),
-                registry.getHistograms().size());
+                gauges, timers, meters, counters, histograms);
+    }
+
+    private static void appendNavigation(PrintWriter pw, PageRequest request) {
+        pw.println("<p class='statline'>");
+        pw.print("<form method='get'>");
+        pw.print("<input type='hidden' name='type' value='" + escape(request.type) + "'>");
+        pw.print(
+                "<input type='text' name='q' placeholder='Search metric names' value='" + escape(request.query) + "'>");
+        pw.print("<input type='submit' value='Search'>");
+        pw.println("</form>");
+        for (String type : TYPES) {
+            String label = Character.toUpperCase(type.charAt(0)) + type.substring(1);
+            pw.print(type.equals(request.type) ? "<b>" + label + "</b>" : link(request.with(type, 0), label));
+            pw.print(" | ");
+        }
+        pw.print("Sort by ");
+        pw.print(link(request.sorted(false, request.descending), "name"));
+        pw.print(" / ");
+        pw.print(link(request.sorted(true, request.descending), "count"));
+        pw.print(", ");
+        pw.print(link(request.sorted(request.sortByCount, !request.descending), request.descending ? "asc" : "desc"));
+        pw.println("</p>");
+    }
+
+    private static void appendPagination(PrintWriter pw, PageRequest request, String type, Page<?> page) {
+        if (page.rows.isEmpty()) {
+            return;
+        }
+        int first = page.first;
+        pw.print("<p>");
+        pw.print("Showing " + (first + 1) + "-" + (first + page.rows.size()) + " of " + page.total);
+        if (!type.equals(request.type)) {
+            if (page.total > page.rows.size()) {
+                pw.print(" " + link(request.with(type, 0), "Show all"));
+            }
+        } else {
+            if (request.page > 0) {
+                pw.print(" " + link(request.with(type, request.page - 1), "Previous"));
+            }
+            if (first + page.rows.size() < page.total) {
+                pw.print(" " + link(request.with(type, request.page + 1), "Next"));
+            }
+        }
+        pw.println("</p>");
     }
 
-    private void addMeterDetails(PrintWriter pw, SortedMap<String, Meter> meters) {
+    private void addMeterDetails(PrintWriter pw, List<Map.Entry<String, Meter>> meters) {
         if (meters.isEmpty()) {
             return;
         }
@@ -185,25 +431,9 @@ public class MetricWebConsolePlugin extends HttpServlet
         pw.println("</thead>");
         pw.println("<tbody>");
 
-        String rowClass = "odd";
-        for (Map.Entry<String, Meter> e : meters.entrySet()) {
-            Meter m = e.getValue();
-            String name = e.getKey();
-
-            double rateFactor = timeUnit.rateFor(name).toSeconds(1);
-            String rateUnit = "events/" + calculateRateUnit(timeUnit.rateFor(name));
-            pw.printf("<tr class='%s ui-state-default'>%n", rowClass);
-
-            pw.printf("<td>%s</td>", name);
-            pw.printf("<td>%d</td>", m.getCount());
-            pw.printf("<td>%f</td>", m.getMeanRate() * rateFactor);
-            pw.printf("<td>%f</td>", m.getOneMinuteRate() * rateFactor);
-            pw.printf("<td>%f</td>", m.getFiveMinuteRate() * rateFactor);
-            pw.printf("<td>%f</td>", m.getFifteenMinuteRate() * rateFactor);
-            pw.printf("<td>%s</td>", rateUnit);
-
-            pw.println("</tr>");
-            rowClass = "odd".equals(rowClass) ? "even" : "odd";
+        RowWriter row = new RowWriter(pw);
+        for (Map.Entry<String, Meter> e : meters) {
+            addMeterRow(row, e.getKey(), e.getValue());
         }
 
         pw.println("</tbody>");
@@ -211,7 +441,22 @@ public class MetricWebConsolePlugin extends HttpServlet
         pw.println("</div>");
     }
 
-    private void addTimerDetails(PrintWriter pw, SortedMap<String, Timer> timers) {
+    private void addMeterRow(RowWriter row, String name, Meter m) {
+        double rateFactor = timeUnit.rateFor(name).toSeconds(1);
+        String rateUnit = "events/" + calculateRateUnit(timeUnit.rateFor(name));
+
+        row.start(name);
+        row.text(name);
+        row.cell(m.getCount());
+        row.cell(m.getMeanRate() * rateFactor);
+        row.cell(m.getOneMinuteRate() * rateFactor);
+        row.cell(m.getFiveMinuteRate() * rateFactor);
+        row.cell(m.getFifteenMinuteRate() * rateFactor);
+        row.text(rateUnit);
+        row.end();
+    }
+
+    private void addTimerDetails(PrintWriter pw, List<Map.Entry<String, Timer>> timers) {
         if (timers.isEmpty()) {
             return;
         }
@@ -244,44 +489,9 @@ public class MetricWebConsolePlugin extends HttpServlet
         pw.println("</thead>");
         pw.println("<tbody>");
 
-        String rowClass = "odd";
-        for (Map.Entry<String, Timer> e : timers.entrySet()) {
-            Timer t = e.getValue();
-            Snapshot s = t.getSnapshot();
-            String name = e.getKey();
-
-            double rateFactor = timeUnit.rateFor(name).toSeconds(1);
-            String rateUnit = "events/" + calculateRateUnit(timeUnit.rateFor(name));
-
-            double durationFactor = 1.0 / timeUnit.durationFor(name).toNanos(1);
-            String durationUnit = timeUnit.durationFor(name).toString().toLowerCase(Locale.US);
-
-            pw.printf("<tr class='%s ui-state-default'>%n", rowClass);
-
-            pw.printf("<td>%s</td>", name);
-            pw.printf("<td>%d</td>", t.getCount());
-            pw.printf("<td>%f</td>", t.getMeanRate() * rateFactor);
-            pw.printf("<td>%f</td>", t.getOneMinuteRate() * rateFactor);
-            pw.printf("<td>%f</td>", t.getFiveMinuteRate() * rateFactor);
-            pw.printf("<td>%f</td>", t.getFifteenMinuteRate() * rateFactor);
-
-            pw.printf("<td>%f</td>", s.getMedian() * durationFactor);
-            pw.printf("<td>%f</td>", s.getMin() * durationFactor);
-            pw.printf("<td>%f</td>", s.getMax() * durationFactor);
-            pw.printf("<td>%f</td>", s.getMean() * durationFactor);
-            pw.printf("<td>%f</td>", s.getStdDev() * durationFactor);
-
-            pw.printf("<td>%f</td>", s.get75thPercentile() * durationFactor);
-            pw.printf("<td>%f</td>", s.get95thPercentile() * durationFactor);
-            pw.printf("<td>%f</td>", s.get98thPercentile() * durationFactor);
-            pw.printf("<td>%f</td>", s.get99thPercentile() * durationFactor);
-            pw.printf("<td>%f</td>", s.get999thPercentile() * durationFactor);
-
-            pw.printf("<td>%s</td>", rateUnit);
-            pw.printf("<td>%s</td>", durationUnit);
-
-            pw.println("</tr>");
-            rowClass = "odd".equals(rowClass) ? "even" : "odd";
+        RowWriter row = new RowWriter(pw);
+        for (Map.Entry<String, Timer> e : timers) {
+            addTimerRow(row, e.getKey(), e.getValue());
         }
 
         pw.println("</tbody>");
@@ -289,7 +499,41 @@ public class MetricWebConsolePlugin extends HttpServlet
         pw.println("</div>");
     }
 
-    private void addHistogramDetails(PrintWriter pw, SortedMap<String, Histogram> histograms) {
+    private void addTimerRow(RowWriter row, String name, Timer t) {
+        Snapshot s = t.getSnapshot();
+
+        double rateFactor = timeUnit.rateFor(name).toSeconds(1);
+        String rateUnit = "events/" + calculateRateUnit(timeUnit.rateFor(name));
+
+        double durationFactor = 1.0 / timeUnit.durationFor(name).toNanos(1);
+        String durationUnit = timeUnit.durationFor(name).toString().toLowerCase(Locale.US);
+
+        row.start(name);
+        row.text(name);
+        row.cell(t.getCount());
+        row.cell(t.getMeanRate() * rateFactor);
+        row.cell(t.getOneMinuteRate() * rateFactor);
+        row.cell(t.getFiveMinuteRate() * rateFactor);
+        row.cell(t.getFifteenMinuteRate() * rateFactor);
+
+        row.cell(s.getMedian() * durationFactor);
+        row.cell(s.getMin() * durationFactor);
+        row.cell(s.getMax() * durationFactor);
+        row.cell(s.getMean() * durationFactor);
+        row.cell(s.getStdDev() * durationFactor);
+
+        row.cell(s.get75thPercentile() * durationFactor);
+        row.cell(s.get95thPercentile() * durationFactor);
+        row.cell(s.get98thPercentile() * durationFactor);
+        row.cell(s.get99thPercentile() * durationFactor);
+        row.cell(s.get999thPercentile() * durationFactor);
+
+        row.text(rateUnit);
+        row.text(durationUnit);
+        row.end();
+    }
+
+    private void addHistogramDetails(PrintWriter pw, List<Map.Entry<String, Histogram>> histograms) {
         if (histograms.isEmpty()) {
             return;
         }
@@ -316,30 +560,9 @@ public class MetricWebConsolePlugin extends HttpServlet
         pw.println("</thead>");
         pw.println("<tbody>");
 
-        String rowClass = "odd";
-        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
-            Histogram h = e.getValue();
-            Snapshot s = h.getSnapshot();
-            String name = e.getKey();
-
-            pw.printf("<tr class='%s ui-state-default'>%n", rowClass);
-
-            pw.printf("<td>%s</td>", name);
-            pw.printf("<td>%d</td>", h.getCount());
-            pw.printf("<td>%f</td>", s.getMedian());
-            pw.printf("<td>%d</td>", s.getMin());
-            pw.printf("<td>%d</td>", s.getMax());
-            pw.printf("<td>%f</td>", s.getMean());
-            pw.printf("<td>%f</td>", s.getStdDev());
-
-            pw.printf("<td>%f</td>", s.get75thPercentile());
-            pw.printf("<td>%f</td>", s.get95thPercentile());
-            pw.printf("<td>%f</td>", s.get98thPercentile());
-            pw.printf("<td>%f</td>", s.get99thPercentile());
-            pw.printf("<td>%f</td>", s.get999thPercentile());
-
-            pw.println("</tr>");
-            rowClass = "odd".equals(rowClass) ? "even" : "odd";
+        RowWriter row = new RowWriter(pw);
+        for (Map.Entry<String, Histogram> e : histograms) {
+            addHistogramRow(row, e.getKey(), e.getValue());
         }
 
         pw.println("</tbody>");
@@ -347,7 +570,26 @@ public class MetricWebConsolePlugin extends HttpServlet
         pw.println("</div>");
     }
 
-    private void addCounterDetails(PrintWriter pw, SortedMap<String, Counter> counters) {
+    private static void addHistogramRow(RowWriter row, String name, Histogram h) {
+        Snapshot s = h.getSnapshot();
+
+        row.start(name);
+        row.text(name);
+        row.cell(h.getCount());
+        row.cell(s.getMedian());
+        row.cell(s.getMin());
+        row.cell(s.getMax());
+        row.cell(s.getMean());
+        row.cell(s.getStdDev());
+        row.cell(s.get75thPercentile());
+        row.cell(s.get95thPercentile());
+        row.cell(s.get98thPercentile());
+        row.cell(s.get99thPercentile());
+        row.cell(s.get999thPercentile());
+        row.end();
+    }
+
+    private void addCounterDetails(PrintWriter pw, List<Map.Entry<String, Counter>> counters) {
         if (counters.isEmpty()) {
             return;
         }
@@ -363,18 +605,9 @@ public class MetricWebConsolePlugin extends HttpServlet
         pw.println("</thead>");
         pw.println("<tbody>");
 
-        String rowClass = "odd";
-        for (Map.Entry<String, Counter> e : counters.entrySet()) {
-            Counter c = e.getValue();
-            String name = e.getKey();
-
-            pw.printf("<tr class='%s ui-state-default'>%n", rowClass);
-
-            pw.printf("<td>%s</td>", name);
-            pw.printf("<td>%d</td>", c.getCount());
-
-            pw.println("</tr>");
-            rowClass = "odd".equals(rowClass) ? "even" : "odd";
+        RowWriter row = new RowWriter(pw);
+        for (Map.Entry<String, Counter> e : counters) {
+            addCounterRow(row, e.getKey(), e.getValue());
         }
 
         pw.println("</tbody>");
@@ -382,7 +615,14 @@ public class MetricWebConsolePlugin extends HttpServlet
         pw.println("</div>");
     }
 
-    private void addGaugeDetails(PrintWriter pw, SortedMap<String, Gauge> gauges) {
+    private static void addCounterRow(RowWriter row, String name, Counter c) {
+        row.start(name);
+        row.text(name);
+        row.cell(c.getCount());
+        row.end();
+    }
+
+    private void addGaugeDetails(PrintWriter pw, List<Map.Entry<String, Gauge>> gauges) {
         if (gauges.isEmpty()) {
             return;
         }
@@ -399,18 +639,9 @@ public class MetricWebConsolePlugin extends HttpServlet
         pw.println("</thead>");
         pw.println("<tbody>");
 
-        String rowClass = "odd";
-        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
-            Gauge g = e.getValue();
-            String name = e.getKey();
-
-            pw.printf("<tr class='%s ui-state-default'>%n", rowClass);
-
-            pw.printf("<td>%s</td>", name);
-            pw.printf("<td>%s</td>", g.getValue());
-
-            pw.println("</tr>");
-            rowClass = "odd".equals(rowClass) ? "even" : "odd";
+        RowWriter row = new RowWriter(pw);
+        for (Map.Entry<String, Gauge> e : gauges) {
+            addGaugeRow(row, e.getKey(), String.valueOf(e.getValue().getValue()));
         }
 
         pw.println("</tbody>");
@@ -418,26 +649,17 @@ public class MetricWebConsolePlugin extends HttpServlet
         pw.println("</div>");
     }
 
+    private static void addGaugeRow(RowWriter row, String name, String value) {
+        row.start(name);
+        row.text(name);
+        row.text(value);
+        row.end();
+    }
+
     // ~----------------------------------------------< internal >
 
     MetricRegistry getConsolidatedRegistry() {
-        MetricRegistry registry = new MetricRegistry();
-        for (Map.Entry<ServiceReference, MetricRegistry> registryEntry : registries.entrySet()) {
-            String metricRegistryName = (String) registryEntry.getKey().getProperty(METRIC_REGISTRY_NAME);
-            for (Map.Entry<String, Metric> metricEntry :
-                    registryEntry.getValue().getMetrics().entrySet()) {
-                String metricName = metricEntry.getKey();
-                try {
-                    if (metricRegistryName != null) {
-                        metricName = metricRegistryName + ":" + metricName;
-                    }
-                    registry.register(metricName, metricEntry.getValue());
-                } catch (IllegalArgumentException ex) {
-                    log.warn("Duplicate Metric name found {}", metricName, ex);
-                }
-            }
-        }
-        return registry;
+        return consolidatedRegistry;
     }
 
     private static String calculateRateUnit(TimeUnit unit) {
@@ -445,6 +667,237 @@ public class MetricWebConsolePlugin extends HttpServlet
         return s.substring(0, s.length() - 1);
     }
 
+    private static String link(PageRequest request, String label) {
+        return "<a href='" + escape(request.toQueryString()) + "'>" + escape(label) + "</a>";
+    }
+
+    static String escape(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        appendEscaped(sb, text);
+        return sb.toString();
+    }
+
+    private static void appendEscaped(StringBuilder sb, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '\'':
+                    sb.append("&#39;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                case '\n':
+                    sb.append("&#10;");
+                    break;
+                case '\r':
+                    sb.append("&#13;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * Appends the value with six decimals like {@code %f}, without going through a {@link java.util.Formatter}
+     */
+    static void appendFixed(StringBuilder sb, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= 1e12) {
+            sb.append(String.format(Locale.ROOT, "%f", value));
+            return;
+        }
+        long micros = Math.round(Math.abs(value) * 1_000_000);
+        if (Double.doubleToRawLongBits(value) < 0) {
+            sb.append('-');
+        }
+        sb.append(micros / 1_000_000).append('.');
+        String fraction = Long.toString(micros % 1_000_000);
+        for (int i = fraction.length(); i < 6; i++) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+
+    private static boolean containsIgnoreCase(String text, String part) {
+        for (int i = 0; i <= text.length() - part.length(); i++) {
+            if (text.regionMatches(true, i, part, 0, part.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The metrics shown by a request: the metrics of one type, or the first page of each type,
+     * whose names contain the query, sorted by name or count.
+     */
+    private static final class PageRequest {
+        final String query;
+        final String type;
+        final int page;
+        final int size;
+        final boolean sortByCount;
+        final boolean descending;
+
+        PageRequest(HttpServletRequest req) {
+            String q = req.getParameter("q");
+            String t = req.getParameter("type");
+            this.query = q != null ? q.trim() : "";
+            this.type = TYPES.contains(t) ? t : TYPE_ALL;
+            this.page = TYPE_ALL.equals(type) ? 0 : Math.max(parseInt(req.getParameter("page"), 0), 0);
+            this.size = Math.min(Math.max(parseInt(req.getParameter("size"), DEFAULT_PAGE_SIZE), 1), MAX_PAGE_SIZE);
+            this.sortByCount = "count".equals(req.getParameter("sort"));
+            this.descending = "desc".equals(req.getParameter("order"));
+        }
+
+        private PageRequest(String query, String type, int page, int size, boolean sortByCount, boolean descending) {
+            this.query = query;
+            this.type = type;
+            this.page = page;
+            this.size = size;
+            this.sortByCount = sortByCount;
+            this.descending = descending;
+        }
+
+        boolean shows(String t) {
+            return TYPE_ALL.equals(type) || type.equals(t);
+        }
+
+        PageRequest with(String t, int p) {
+            return new PageRequest(query, t, p, size, sortByCount, descending);
+        }
+
+        PageRequest sorted(boolean byCount, boolean desc) {
+            return new PageRequest(query, type, 0, size, byCount, desc);
+        }
+
+        /**
+         * @return the metrics of the requested page, only these get evaluated when rendered
+         */
+        <T extends Metric> Page<T> select(Map<String, T> metrics) {
+            List<Map.Entry<String, T>> matching = new ArrayList<>();
+            for (Map.Entry<String, T> e : metrics.entrySet()) {
+                if (query.isEmpty() || containsIgnoreCase(e.getKey(), query)) {
+                    matching.add(e);
+                }
+            }
+            Comparator<Map.Entry<String, T>> order = Map.Entry.comparingByKey();
+            if (sortByCount) {
+                order = Comparator.comparingLong((Map.Entry<String, T> e) -> count(e.getValue()))
+                        .thenComparing(order);
+            }
+            matching.sort(descending ? order.reversed() : order);
+
+            // Computed as long, as the page number is only bounded by the request
+            int from = (int) Math.min((long) page * size, matching.size());
+            int to = Math.min(from + size, matching.size());
+            return new Page<>(matching.subList(from, to), from, matching.size());
+        }
+
+        String toQueryString() {
+            StringBuilder sb = new StringBuilder("?type=").append(type);
+            try {
+                if (!query.isEmpty()) {
+                    sb.append("&q=").append(URLEncoder.encode(query, "UTF-8"));
+                }
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            if (page > 0) {
+                sb.append("&page=").append(page);
+            }
+            if (size != DEFAULT_PAGE_SIZE) {
+                sb.append("&size=").append(size);
+            }
+            if (sortByCount) {
+                sb.append("&sort=count");
+            }
+            if (descending) {
+                sb.append("&order=desc");
+            }
+            return sb.toString();
+        }
+
+        private static long count(Metric metric) {
+            return metric instanceof Counting ? ((Counting) metric).getCount() : 0;
+        }
+
+        private static int parseInt(String value, int defaultValue) {
+            try {
+                return value != null ? Integer.parseInt(value) : defaultValue;
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+    }
+
+    private static final class Page<T> {
+        final List<Map.Entry<String, T>> rows;
+        final int first;
+        final int total;
+
+        Page(List<Map.Entry<String, T>> rows, int first, int total) {
+            this.rows = rows;
+            this.first = first;
+            this.total = total;
+        }
+    }
+
+    /**
+     * Writes the rows of a table, through a reused buffer instead of formatting each cell
+     */
+    private static final class RowWriter {
+        private final PrintWriter pw;
+        private final StringBuilder sb = new StringBuilder(256);
+        private boolean odd = true;
+
+        RowWriter(PrintWriter pw) {
+            this.pw = pw;
+        }
+
+        /**
+         * Starts a row, tagged with the metric name so that live updates can replace it
+         */
+        void start(String name) {
+            sb.setLength(0);
+            sb.append("<tr class='").append(odd ? "odd" : "even").append(" ui-state-default' data-name='");
+            appendEscaped(sb, name);
+            sb.append("'>");
+            odd = !odd;
+        }
+
+        void text(String text) {
+            sb.append("<td>");
+            appendEscaped(sb, text);
+            sb.append("</td>");
+        }
+
+        void cell(long value) {
+            sb.append("<td>").append(value).append("</td>");
+        }
+
+        void cell(double value) {
+            sb.append("<td>");
+            appendFixed(sb, value);
+            sb.append("</td>");
+        }
+
+        void end() {
+            sb.append("</tr>\n");
+            pw.append(sb);
+        }
+    }
+
     private static class MetricTimeUnits {
         private final TimeUnit defaultRate;
         private final TimeUnit defaultDuration;
@@ -23,20 +23,28 @@ import javax.management.MBeanServer;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
 
-import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Clock;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.MetricRegistry.MetricSupplier;
+import com.codahale.metrics.Reservoir;
 import org.apache.sling.commons.metrics.Counter;
+import org.apache.sling.commons.metrics.DoubleGauge;
 import org.apache.sling.commons.metrics.Gauge;
 import org.apache.sling.commons.metrics.Histogram;
+import org.apache.sling.commons.metrics.LongGauge;
 import org.apache.sling.commons.metrics.Meter;
 import org.apache.sling.commons.metrics.Metric;
 import org.apache.sling.commons.metrics.MetricsService;
@@ -47,34 +55,173 @@ import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @Component(
         service = {},
         immediate = true)
+@Designate(ocd = MetricsServiceImpl.Config.class)
 public class MetricsServiceImpl implements MetricsService {
+    private static final long DEFAULT_SNAPSHOT_CACHE_TTL = 1000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @ObjectClassDefinition(
+            name = "Apache Sling Metrics Service",
+            description = "Configures how the metrics created through the MetricsService are implemented. "
+                    + "Changes only apply to metrics created afterwards.")
+    @interface Config {
+
+        @AttributeDefinition(
+                name = "Reservoir",
+                description = "The reservoir used by histograms and timers to compute the percentiles. "
+                        + "EXPONENTIALLY_DECAYING samples the last minutes, HDR keeps a fixed size "
+                        + "histogram of all values with bounded relative error and lock-free recording. "
+                        + "STRIPED_HDR additionally spreads concurrent writers over up to one histogram "
+                        + "per core. INTERVAL reports the exact distribution of the last intervals. "
+                        + "LITE only maintains the count and rates. Can be overridden per metric name "
+                        + "with Apache Sling Metrics Implementation Rule configurations.")
+        ReservoirFactory.Type reservoir() default ReservoirFactory.Type.EXPONENTIALLY_DECAYING;
+
+        @AttributeDefinition(
+                name = "Reservoir size",
+                description = "Number of values kept by the EXPONENTIALLY_DECAYING, UNIFORM and SLIDING_WINDOW "
+                        + "reservoirs")
+        int reservoirSize() default ReservoirFactory.DEFAULT_SIZE;
+
+        @AttributeDefinition(
+                name = "Sliding time window",
+                description = "Time window in seconds of the SLIDING_TIME_WINDOW reservoir")
+        long slidingTimeWindow() default ReservoirFactory.DEFAULT_WINDOW_SECONDS;
+
+        @AttributeDefinition(
+                name = "HDR significant digits",
+                description = "Number of significant decimal digits maintained by the HDR reservoir (1-5). "
+                        + "The memory used per histogram grows tenfold with each digit.")
+        int hdrSignificantDigits() default ReservoirFactory.DEFAULT_SIGNIFICANT_DIGITS;
+
+        @AttributeDefinition(
+                name = "HDR highest trackable value",
+                description = "Highest value tracked with full precision by the HDR reservoir. "
+                        + "Timers record nanoseconds, the default covers one hour.")
+        long hdrHighestTrackableValue() default ReservoirFactory.DEFAULT_HIGHEST_TRACKABLE_VALUE;
+
+        @AttributeDefinition(
+                name = "HDR stripes",
+                description = "Maximum number of histograms used by the STRIPED_HDR reservoir, 0 for up to "
+                        + "one per core. Each histogram takes about 36KB with the default settings, so a "
+                        + "contended timer on a machine with many cores may use a few MB.")
+        int hdrStripes() default ReservoirFactory.DEFAULT_STRIPES;
+
+        @AttributeDefinition(
+                name = "Interval",
+                description = "Length in seconds of the intervals of the INTERVAL reservoir. Set it to "
+                        + "the period of the reporters to get the values recorded since their last report.")
+        long interval() default ReservoirFactory.DEFAULT_INTERVAL_SECONDS;
+
+        @AttributeDefinition(
+                name = "Intervals",
+                description = "Number of intervals covered by the percentiles of the INTERVAL reservoir")
+        int intervals() default ReservoirFactory.DEFAULT_INTERVALS;
+
+        @AttributeDefinition(
+                name = "Snapshot cache time to live",
+                description = "Time in milliseconds for which the percentiles of a histogram or timer are "
+                        + "computed only once and shared by all reporters, the web console and JMX. "
+                        + "0 computes them on every read. Applies to existing metrics as well.")
+        long snapshotCacheTtl() default DEFAULT_SNAPSHOT_CACHE_TTL;
+
+        @AttributeDefinition(
+                name = "Aggregated JMX export",
+                description = "Registers one MBean per bundle domain and group instead of one MBean per metric. "
+                        + "The metrics are exposed as attributes of these MBeans and only looked up when read. "
+                        + "Recommended with many thousands of metrics.")
+        boolean jmxAggregated() default false;
+
+        @AttributeDefinition(
+                name = "JMX groups",
+                description = "Name prefixes of metrics exposed by a separate MBean in aggregated mode. Metrics are "
+                        + "assigned to the longest matching prefix, all others to the group 'all'.")
+        String[] jmxGroups() default {};
+
+        @AttributeDefinition(
+                name = "Prometheus servlet path",
+                description = "Path of the HTTP whiteboard servlet exposing all metrics in the Prometheus and "
+                        + "OpenMetrics text formats, e.g. /metrics. Disabled if empty.")
+        String prometheusPath() default "";
+
+        @AttributeDefinition(
+                name = "Prometheus quantiles",
+                description = "Quantiles exposed by the Prometheus servlet for histograms and timers")
+        double[] prometheusQuantiles() default {0.5, 0.75, 0.95, 0.98, 0.99, 0.999};
+
+        @AttributeDefinition(
+                name = "JSON servlet path",
+                description = "Path of the HTTP whiteboard servlet exposing the metrics as JSON, filtered by name "
+                        + "and type, paged and with ETag support, e.g. /metrics.json. Disabled if empty.")
+        String jsonPath() default "";
+
+        @AttributeDefinition(
+                name = "Gauge threads",
+                description = "Maximum number of threads refreshing the gauges which declare a refresh interval, "
+                        + "through the refreshInterval service property or the MetricsService")
+        int gaugeThreads() default AsyncGaugeEvaluator.DEFAULT_THREADS;
+
+        @AttributeDefinition(
+                name = "Gauge timeout",
+                description = "Time in milliseconds after which the refresh of a gauge gets interrupted. "
+                        + "The gauge then keeps its previous value.")
+        long gaugeTimeout() default AsyncGaugeEvaluator.DEFAULT_TIMEOUT_MILLIS;
+    }
+
     private final List<ServiceRegistration> regs = new ArrayList<>();
     private final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<>();
     private final MetricRegistry registry = new MetricRegistry();
     private final BundleMetricsMapper metricsMapper = new BundleMetricsMapper(this, registry);
+    private final AsyncGaugeEvaluator gaugeEvaluator = new AsyncGaugeEvaluator(registry, Clock.defaultClock());
     private GaugeManager gaugeManager;
+    private BundleContext context;
 
     @Reference(cardinality = ReferenceCardinality.OPTIONAL)
     private MBeanServer server;
 
-    private JmxReporter reporter;
+    private JmxMetricsReporter reporter;
 
-    /*  WARNING: if any OSGi configuration parameters are added to this class
-     *  we’ll need to handle the service restart case to prevent service
-     *  references retrieved using MetricsServiceFactory from becoming
-     *  stale. See discussion in SLING-6702.
+    private String[] jmxGroups;
+
+    /**
+     * Created once a servlet path is configured, as it requires the optional servlet API
+     */
+    private MetricsServlets servlets;
+
+    private volatile ReservoirFactory reservoirFactory = ReservoirFactory.DEFAULT;
+
+    private final SnapshotCache snapshotCache = new SnapshotCache(Clock.defaultClock());
+
+    private volatile List<MetricImplementationRule> rules = Collections.emptyList();
+
+    /*  Configuration changes are applied through the @Modified method, so that
+     *  they do not restart the service. A restart would make the service
+     *  references retrieved using MetricsServiceFactory stale. See discussion
+     *  in SLING-6702.
      */
     @Activate
-    private void activate(BundleContext context, Map<String, Object> config) {
+    private void activate(BundleContext context, Config config) {
+        this.context = context;
+        modified(config);
+        context.addBundleListener(metricsMapper);
         enableJMXReporter();
 
-        gaugeManager = new GaugeManager(context, registry, metricsMapper);
+        gaugeManager = new GaugeManager(context, registry, metricsMapper, gaugeEvaluator);
 
         final Dictionary<String, String> svcProps = new Hashtable<>();
         svcProps.put(Constants.SERVICE_DESCRIPTION, "Apache Sling Metrics Service");
@@ -89,14 +236,72 @@ public class MetricsServiceImpl implements MetricsService {
         regs.add(context.registerService(MetricRegistry.class.getName(), registry, regProps));
     }
 
+    @Modified
+    private void modified(Config config) {
+        snapshotCache.setTtl(config.snapshotCacheTtl(), TimeUnit.MILLISECONDS);
+        gaugeEvaluator.configure(config.gaugeThreads(), config.gaugeTimeout(), TimeUnit.MILLISECONDS);
+
+        String[] groups = config.jmxAggregated() ? config.jmxGroups() : null;
+        if (!Arrays.equals(groups, jmxGroups)) {
+            jmxGroups = groups;
+            if (reporter != null) {
+                reporter.close();
+                enableJMXReporter();
+            }
+        }
+        configureServlets(config);
+        try {
+            reservoirFactory = new ReservoirFactory(
+                    config.reservoir(),
+                    config.reservoirSize(),
+                    config.slidingTimeWindow(),
+                    config.hdrSignificantDigits(),
+                    config.hdrHighestTrackableValue(),
+                    config.hdrStripes(),
+                    config.interval(),
+                    config.intervals());
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid reservoir configuration, using {}", ReservoirFactory.DEFAULT, e);
+            reservoirFactory = ReservoirFactory.DEFAULT;
+        }
+    }
+
+    /*  The rules are bound dynamically for the same reason, adding or changing
+     *  a rule must not restart the service.
+     */
+    @Reference(
+            service = MetricImplementationRule.class,
+            cardinality = ReferenceCardinality.MULTIPLE,
+            policy = ReferencePolicy.DYNAMIC,
+            policyOption = ReferencePolicyOption.GREEDY,
+            unbind = "unbindRule")
+    synchronized void bindRule(MetricImplementationRule rule) {
+        List<MetricImplementationRule> updated = new ArrayList<>(rules);
+        updated.add(rule);
+        // Stable sort, rules with the same ranking are applied in the order they got bound
+        updated.sort(
+                Comparator.comparingInt(MetricImplementationRule::getRanking).reversed());
+        rules = Collections.unmodifiableList(updated);
+    }
+
+    synchronized void unbindRule(MetricImplementationRule rule) {
+        List<MetricImplementationRule> updated = new ArrayList<>(rules);
+        updated.remove(rule);
+        rules = Collections.unmodifiableList(updated);
+    }
+
     @Deactivate
     private void deactivate() throws IOException {
+        context.removeBundleListener(metricsMapper);
+        closeServlets();
+
         for (ServiceRegistration reg : regs) {
             reg.unregister();
         }
         regs.clear();
 
         gaugeManager.close();
+        gaugeEvaluator.close();
 
         metrics.clear();
 
@@ -126,7 +331,22 @@ public class MetricsServiceImpl implements MetricsService {
     }
 
     public <T> Gauge<T> gauge(String name, Supplier<T> supplier) {
-        return getOrAddGauge(name, supplier);
+        return getOrAddGauge(name, supplier, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public <T> Gauge<T> gauge(String name, Supplier<T> supplier, long refreshInterval, TimeUnit unit) {
+        return getOrAddGauge(name, supplier, Math.max(refreshInterval, 1), unit);
+    }
+
+    @Override
+    public LongGauge longGauge(String name, LongSupplier supplier) {
+        return getOrAddPrimitiveGauge(name, LongGaugeImpl.class, () -> new LongGaugeImpl(supplier));
+    }
+
+    @Override
+    public DoubleGauge doubleGauge(String name, DoubleSupplier supplier) {
+        return getOrAddPrimitiveGauge(name, DoubleGaugeImpl.class, () -> new DoubleGaugeImpl(supplier));
     }
 
     @SuppressWarnings("unchecked")
@@ -140,13 +360,19 @@ public class MetricsServiceImpl implements MetricsService {
 
     @Override
     public boolean unregister(String name) {
+        gaugeEvaluator.stop(name);
         return registry.remove(name);
     }
 
     void remove(String name) {
+        gaugeEvaluator.stop(name);
         metrics.remove(name);
     }
 
+    SnapshotCache getSnapshotCache() {
+        return snapshotCache;
+    }
+
     MetricRegistry getRegistry() {
         return registry;
     }
@@ -158,7 +384,9 @@ public class MetricsServiceImpl implements MetricsService {
             return (T) metric;
         } else if (metric == null) {
             try {
-                return register(name, builder.newMetric(registry, name));
+                T created = builder.newMetric(registry, name, () -> newReservoir(name));
+                // all reservoirs are cached or share their snapshots, see newReservoir
+                return register(name, snapshotCache.markCached(created));
             } catch (IllegalArgumentException e) {
                 final Metric added = metrics.get(name);
                 if (builder.isInstance(added)) {
@@ -169,14 +397,29 @@ public class MetricsServiceImpl implements MetricsService {
         throw new IllegalArgumentException(name + " is already used for a different type of metric");
     }
 
+    private Reservoir newReservoir(String name) {
+        ReservoirFactory factory = getReservoirFactory(name);
+        Reservoir reservoir = factory.create();
+        return factory.isSnapshotShared() ? reservoir : snapshotCache.wrap(reservoir);
+    }
+
+    private ReservoirFactory getReservoirFactory(String name) {
+        for (MetricImplementationRule rule : rules) {
+            if (rule.matches(name)) {
+                return rule.getReservoirFactory();
+            }
+        }
+        return reservoirFactory;
+    }
+
     @SuppressWarnings("unchecked")
-    private <T> Gauge<T> getOrAddGauge(String name, Supplier<T> supplier) {
+    private <T> Gauge<T> getOrAddGauge(String name, Supplier<T> supplier, long refreshInterval, TimeUnit unit) {
         final Metric metric = metrics.get(name);
         if (metric instanceof Gauge<?>) {
             return (Gauge<T>) metric;
         } else {
             try {
-                return registerGauge(name, supplier);
+                return registerGauge(name, supplier, refreshInterval, unit);
             } catch (IllegalArgumentException e) {
                 final Metric added = metrics.get(name);
                 if (added instanceof Gauge<?>) {
@@ -187,6 +430,29 @@ public class MetricsServiceImpl implements MetricsService {
         throw new IllegalArgumentException(name + " is already used for a different type of metric");
     }
 
+    private <G extends com.codahale.metrics.Gauge<?> & Metric> G getOrAddPrimitiveGauge(
+            String name, Class<G> type, Supplier<G> factory) {
+        final Metric metric = metrics.get(name);
+        if (type.isInstance(metric)) {
+            return type.cast(metric);
+        } else if (metric == null) {
+            // Registered as is, so that reporters can read the primitive value
+            G gauge = factory.get();
+            @SuppressWarnings("rawtypes")
+            MetricSupplier<com.codahale.metrics.Gauge> metricSupplier = () -> gauge;
+            try {
+                com.codahale.metrics.Gauge<?> registered = registry.gauge(name, metricSupplier);
+                if (type.isInstance(registered)) {
+                    metrics.putIfAbsent(name, type.cast(registered));
+                    return type.cast(registered);
+                }
+            } catch (IllegalArgumentException e) {
+                // Registered concurrently as a different type of metric
+            }
+        }
+        throw new IllegalArgumentException(name + " is already used for a different type of metric");
+    }
+
     private <T extends Metric> T register(String name, T metric) throws IllegalArgumentException {
         final Metric existing = metrics.putIfAbsent(name, metric);
         if (existing != null) {
@@ -195,13 +461,21 @@ public class MetricsServiceImpl implements MetricsService {
         return metric;
     }
 
-    private <T> Gauge<T> registerGauge(String name, Supplier<T> supplier) {
-        com.codahale.metrics.Gauge<T> codahaleGauge = supplier::get;
+    /**
+     * @param refreshInterval the interval at which the gauge is refreshed in the background,
+     *        {@code 0} evaluates the supplier on every read
+     */
+    private <T> Gauge<T> registerGauge(String name, Supplier<T> supplier, long refreshInterval, TimeUnit unit) {
+        com.codahale.metrics.Gauge<T> codahaleGauge =
+                refreshInterval > 0 ? gaugeEvaluator.newGauge(supplier, refreshInterval, unit) : supplier::get;
         @SuppressWarnings("rawtypes")
         MetricSupplier<com.codahale.metrics.Gauge> metricSupplier = () -> codahaleGauge;
 
         @SuppressWarnings("unchecked")
         com.codahale.metrics.Gauge<T> g = registry.gauge(name, metricSupplier);
+        if (g == codahaleGauge && g instanceof AsyncGaugeEvaluator.AsyncGauge) {
+            gaugeEvaluator.start(name, (AsyncGaugeEvaluator.AsyncGauge<?>) g);
+        }
         GaugeImpl<T> gauge = new GaugeImpl<>(g);
         metrics.put(name, gauge);
         return gauge;
@@ -213,7 +487,7 @@ public class MetricsServiceImpl implements MetricsService {
     private interface MetricBuilder<T extends Metric> {
         MetricBuilder<Counter> COUNTERS = new MetricBuilder<Counter>() {
             @Override
-            public Counter newMetric(MetricRegistry registry, String name) {
+            public Counter newMetric(MetricRegistry registry, String name, Supplier<Reservoir> reservoirs) {
                 return new CounterImpl(registry.counter(name));
             }
 
@@ -225,8 +499,9 @@ public class MetricsServiceImpl implements MetricsService {
 
         MetricBuilder<Histogram> HISTOGRAMS = new MetricBuilder<Histogram>() {
             @Override
-            public Histogram newMetric(MetricRegistry registry, String name) {
-                return new HistogramImpl(registry.histogram(name));
+            public Histogram newMetric(MetricRegistry registry, String name, Supplier<Reservoir> reservoirs) {
+                return new HistogramImpl(
+                        registry.histogram(name, () -> new com.codahale.metrics.Histogram(reservoirs.get())));
             }
 
             @Override
@@ -237,7 +512,7 @@ public class MetricsServiceImpl implements MetricsService {
 
         MetricBuilder<Meter> METERS = new MetricBuilder<Meter>() {
             @Override
-            public Meter newMetric(MetricRegistry registry, String name) {
+            public Meter newMetric(MetricRegistry registry, String name, Supplier<Reservoir> reservoirs) {
                 return new MeterImpl(registry.meter(name));
             }
 
@@ -249,8 +524,8 @@ public class MetricsServiceImpl implements MetricsService {
 
         MetricBuilder<Timer> TIMERS = new MetricBuilder<Timer>() {
             @Override
-            public Timer newMetric(MetricRegistry registry, String name) {
-                return new TimerImpl(registry.timer(name));
+            public Timer newMetric(MetricRegistry registry, String name, Supplier<Reservoir> reservoirs) {
+                return new TimerImpl(registry.timer(name, () -> new com.codahale.metrics.Timer(reservoirs.get())));
             }
 
             @Override
@@ -259,21 +534,41 @@ public class MetricsServiceImpl implements MetricsService {
             }
         };
 
-        T newMetric(MetricRegistry registry, String name);
+        T newMetric(MetricRegistry registry, String name, Supplier<Reservoir> reservoirs);
 
         boolean isInstance(Metric metric);
     }
 
+    private synchronized void configureServlets(Config config) {
+        String prometheusPath = config.prometheusPath().trim();
+        String jsonPath = config.jsonPath().trim();
+        if (servlets == null && prometheusPath.isEmpty() && jsonPath.isEmpty()) {
+            return;
+        }
+        try {
+            if (servlets == null) {
+                servlets = new MetricsServlets(context, registry, metricsMapper, snapshotCache);
+            }
+            servlets.configure(prometheusPath, config.prometheusQuantiles(), jsonPath);
+        } catch (NoClassDefFoundError e) {
+            log.warn("The servlet API is not available, the metrics servlets are not registered", e);
+        }
+    }
+
+    private synchronized void closeServlets() {
+        if (servlets != null) {
+            servlets.close();
+            servlets = null;
+        }
+    }
+
     private void enableJMXReporter() {
         if (server == null) {
             server = ManagementFactory.getPlatformMBeanServer();
         }
 
-        reporter = JmxReporter.forRegistry(registry)
-                .inDomain(BundleMetricsMapper.DEFAULT_DOMAIN_NAME)
-                .createsObjectNamesWith(metricsMapper)
-                .registerWith(server)
-                .build();
+        reporter = new JmxMetricsReporter(
+                registry, server, metricsMapper, BundleMetricsMapper.DEFAULT_DOMAIN_NAME, jmxGroups, snapshotCache);
         reporter.start();
     }
 }
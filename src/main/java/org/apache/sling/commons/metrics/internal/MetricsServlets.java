@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import javax.servlet.Servlet;
+
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import com.codahale.metrics.MetricRegistry;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the Prometheus and JSON servlets of the {@link MetricsServiceImpl} with the HTTP
+ * whiteboard. The servlet API is an optional import, so this class is only loaded by the
+ * service once a servlet path is configured.
+ */
+final class MetricsServlets {
+    private static final String HTTP_WHITEBOARD_SERVLET_PATTERN = "osgi.http.whiteboard.servlet.pattern";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final BundleContext context;
+    private final MetricRegistry registry;
+    private final BundleMetricsMapper metricsMapper;
+    private final SnapshotCache snapshotCache;
+
+    private ServiceRegistration<Servlet> prometheusReg;
+
+    private String prometheusPath = "";
+
+    private double[] prometheusQuantiles;
+
+    private ServiceRegistration<Servlet> jsonReg;
+
+    private String jsonPath = "";
+
+    MetricsServlets(
+            BundleContext context,
+            MetricRegistry registry,
+            BundleMetricsMapper metricsMapper,
+            SnapshotCache snapshotCache) {
+        this.context = context;
+        this.registry = registry;
+        this.metricsMapper = metricsMapper;
+        this.snapshotCache = snapshotCache;
+    }
+
+    /**
+     * Registers the servlets for the given paths, replacing those whose configuration changed.
+     * An empty path unregisters the servlet.
+     */
+    synchronized void configure(String prometheusPath, double[] prometheusQuantiles, String jsonPath) {
+        configurePrometheus(prometheusPath, prometheusQuantiles);
+        configureJson(jsonPath);
+    }
+
+    synchronized void close() {
+        unregisterPrometheusServlet();
+        unregisterJsonServlet();
+    }
+
+    private void configurePrometheus(String path, double[] quantiles) {
+        if (path.equals(prometheusPath) && Arrays.equals(quantiles, prometheusQuantiles)) {
+            return;
+        }
+        unregisterPrometheusServlet();
+        prometheusPath = path;
+        prometheusQuantiles = quantiles;
+        if (path.isEmpty()) {
+            return;
+        }
+        try {
+            prometheusReg = registerServlet(
+                    new PrometheusServlet(registry, metricsMapper, quantiles),
+                    path,
+                    "Apache Sling Metrics Prometheus Servlet");
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid Prometheus servlet configuration, the servlet is not registered", e);
+        }
+    }
+
+    private void unregisterPrometheusServlet() {
+        if (prometheusReg != null) {
+            prometheusReg.unregister();
+            prometheusReg = null;
+        }
+    }
+
+    private void configureJson(String path) {
+        if (path.equals(jsonPath)) {
+            return;
+        }
+        unregisterJsonServlet();
+        jsonPath = path;
+        if (!path.isEmpty()) {
+            jsonReg = registerServlet(
+                    new JsonMetricsServlet(registry, snapshotCache), path, "Apache Sling Metrics JSON Servlet");
+        }
+    }
+
+    private void unregisterJsonServlet() {
+        if (jsonReg != null) {
+            jsonReg.unregister();
+            jsonReg = null;
+        }
+    }
+
+    private ServiceRegistration<Servlet> registerServlet(Servlet servlet, String path, String description) {
+        Dictionary<String, Object> props = new Hashtable<>();
+        props.put(Constants.SERVICE_DESCRIPTION, description);
+        props.put(Constants.SERVICE_VENDOR, "The Apache Software Foundation");
+        props.put(HTTP_WHITEBOARD_SERVLET_PATTERN, path);
+        return context.registerService(Servlet.class, servlet, props);
+    }
+}
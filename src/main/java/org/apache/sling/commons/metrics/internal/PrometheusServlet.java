@@ -0,0 +1,332 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import org.apache.sling.commons.metrics.DoubleGauge;
+import org.apache.sling.commons.metrics.LongGauge;
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exposes the metrics of the Sling {@link MetricRegistry} in the Prometheus text format, or in
+ * the OpenMetrics text format if the scraper asks for it.
+ *
+ * <p>The metrics are written one by one straight from the registry to the (gzipped) response,
+ * nothing but the snapshots of histograms and timers is copied. Counters and gauges are exposed
+ * as gauges, meters as counters and histograms and timers as summaries with the configured
+ * quantiles. Timers are reported in seconds. The symbolic name of the bundle which registered a
+ * metric is added as the {@code bundle} label. Metrics whose names collide with those of another
+ * metric once sanitized are skipped, and so are those whose value cannot be read.</p>
+ */
+class PrometheusServlet extends HttpServlet {
+    static final String CONTENT_TYPE_PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+    static final String CONTENT_TYPE_OPENMETRICS = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+    private static final long serialVersionUID = 1L;
+
+    private final transient MetricRegistry registry;
+    private final transient BundleMetricsMapper metricsMapper;
+    private final double[] quantiles;
+
+    /**
+     * The metrics whose name collision was logged already, to log it only once and not on every scrape
+     */
+    private final transient Set<String> reportedCollisions = ConcurrentHashMap.newKeySet();
+
+    private final transient Logger log = LoggerFactory.getLogger(getClass());
+
+    PrometheusServlet(MetricRegistry registry, BundleMetricsMapper metricsMapper, double[] quantiles) {
+        this.registry = registry;
+        this.metricsMapper = metricsMapper;
+        this.quantiles = quantiles.clone();
+        for (double quantile : quantiles) {
+            if (quantile < 0 || quantile > 1) {
+                throw new IllegalArgumentException("Quantiles must be between 0 and 1: " + quantile);
+            }
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String accept = req.getHeader("Accept");
+        boolean openMetrics = accept != null && accept.contains("application/openmetrics-text");
+        boolean gzip = acceptsGzip(req.getHeader("Accept-Encoding"));
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(openMetrics ? CONTENT_TYPE_OPENMETRICS : CONTENT_TYPE_PROMETHEUS);
+        if (gzip) {
+            resp.setHeader("Content-Encoding", "gzip");
+        }
+
+        OutputStream out = gzip ? new GZIPOutputStream(resp.getOutputStream(), 8192) : resp.getOutputStream();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            write(writer, openMetrics);
+        }
+    }
+
+    void write(Writer writer, boolean openMetrics) throws IOException {
+        // the names of the families and samples written so far, as different metric names can be
+        // sanitized to the same name, and duplicate families are rejected by the scrapers
+        Set<String> names = new HashSet<>();
+        // getMetrics() is a view of the registry, unlike getCounters() & co. it does not copy it
+        for (Map.Entry<String, Metric> e : registry.getMetrics().entrySet()) {
+            try {
+                writeMetric(writer, e.getKey(), e.getValue(), openMetrics, names);
+            } catch (RuntimeException ex) {
+                // the values are read before anything of the metric is written, so the output stays valid
+                log.warn("Cannot export metric {}", e.getKey(), ex);
+            }
+        }
+        if (openMetrics) {
+            writer.write("# EOF\n");
+        }
+    }
+
+    private void writeMetric(Writer writer, String key, Metric metric, boolean openMetrics, Set<String> names)
+            throws IOException {
+        String name = sanitize(key);
+        if (metric instanceof Counter) {
+            long count = ((Counter) metric).getCount();
+            if (claim(names, key, name)) {
+                writeType(writer, name, "gauge");
+                writeSample(writer, name, "", labels(key), Long.toString(count));
+            }
+        } else if (metric instanceof LongGauge) {
+            long value = ((LongGauge) metric).getLong();
+            if (claim(names, key, name)) {
+                writeType(writer, name, "gauge");
+                writeSample(writer, name, "", labels(key), Long.toString(value));
+            }
+        } else if (metric instanceof DoubleGauge) {
+            double value = ((DoubleGauge) metric).getDouble();
+            if (claim(names, key, name)) {
+                writeType(writer, name, "gauge");
+                writeSample(writer, name, "", labels(key), format(value));
+            }
+        } else if (metric instanceof Gauge) {
+            Object value = ((Gauge<?>) metric).getValue();
+            double number;
+            if (value instanceof Number) {
+                number = ((Number) value).doubleValue();
+            } else if (value instanceof Boolean) {
+                number = ((Boolean) value) ? 1 : 0;
+            } else {
+                // Prometheus only knows numbers
+                return;
+            }
+            if (claim(names, key, name)) {
+                writeType(writer, name, "gauge");
+                writeSample(writer, name, "", labels(key), format(number));
+            }
+        } else if (metric instanceof Meter) {
+            long count = ((Meter) metric).getCount();
+            if (claim(names, key, name, name + "_total")) {
+                writeType(writer, openMetrics ? name : name + "_total", "counter");
+                writeSample(writer, name, "_total", labels(key), Long.toString(count));
+            }
+        } else if (metric instanceof Timer) {
+            Timer timer = (Timer) metric;
+            long count = timer.getCount();
+            Snapshot snapshot = timer.getSnapshot();
+            if (claim(names, key, name, name + "_count", name + "_sum")) {
+                writeSummary(writer, name, labels(key), snapshot, count, NANOS_PER_SECOND);
+            }
+        } else if (metric instanceof Histogram) {
+            Histogram histogram = (Histogram) metric;
+            long count = histogram.getCount();
+            Snapshot snapshot = histogram.getSnapshot();
+            if (claim(names, key, name, name + "_count", name + "_sum")) {
+                writeSummary(writer, name, labels(key), snapshot, count, 1);
+            }
+        }
+    }
+
+    /**
+     * @return whether none of the names of the metric was written yet, in which case they are added
+     */
+    private boolean claim(Set<String> names, String key, String... metricNames) {
+        for (String metricName : metricNames) {
+            if (names.contains(metricName)) {
+                if (reportedCollisions.add(key)) {
+                    log.warn("Metric {} is not exported, its name collides with another one as {}", key, metricName);
+                }
+                return false;
+            }
+        }
+        Collections.addAll(names, metricNames);
+        return true;
+    }
+
+    /**
+     * The sum of a summary is estimated from the mean of the snapshot, as the reservoirs do not keep
+     * the sum of all recorded values
+     */
+    private void writeSummary(Writer writer, String name, String labels, Snapshot snapshot, long count, double unit)
+            throws IOException {
+        writeType(writer, name, "summary");
+        String separator = labels.isEmpty() ? "" : ",";
+        for (double quantile : quantiles) {
+            writer.write(name);
+            writer.write('{');
+            writer.write(labels);
+            writer.write(separator);
+            writer.write("quantile=\"");
+            writer.write(format(quantile));
+            writer.write("\"} ");
+            writer.write(format(snapshot.getValue(quantile) / unit));
+            writer.write('\n');
+        }
+        writeSample(writer, name, "_sum", labels, format(snapshot.getMean() * count / unit));
+        writeSample(writer, name, "_count", labels, Long.toString(count));
+    }
+
+    private static void writeType(Writer writer, String name, String type) throws IOException {
+        writer.write("# TYPE ");
+        writer.write(name);
+        writer.write(' ');
+        writer.write(type);
+        writer.write('\n');
+    }
+
+    private static void writeSample(Writer writer, String name, String suffix, String labels, String value)
+            throws IOException {
+        writer.write(name);
+        writer.write(suffix);
+        if (!labels.isEmpty()) {
+            writer.write('{');
+            writer.write(labels);
+            writer.write('}');
+        }
+        writer.write(' ');
+        writer.write(value);
+        writer.write('\n');
+    }
+
+    private String labels(String name) {
+        Bundle bundle = metricsMapper.getBundle(name);
+        String symbolicName = bundle != null ? bundle.getSymbolicName() : null;
+        return symbolicName != null ? "bundle=\"" + escape(symbolicName) + "\"" : "";
+    }
+
+    /**
+     * @return {@code true} if the given Accept-Encoding header allows gzip, either by name or
+     *         by the {@code *} wildcard, with a non-zero quality value
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (String element : acceptEncoding.split(",")) {
+            String[] params = element.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                return quality(params) > 0;
+            }
+            if (coding.equals("*")) {
+                wildcard = quality(params) > 0;
+            }
+        }
+        return wildcard;
+    }
+
+    private static double quality(String[] params) {
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            if (param.length() > 2 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q') && param.charAt(1) == '=') {
+                try {
+                    return Double.parseDouble(param.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    // an invalid quality value does not allow the coding
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @return the name with all characters not allowed by Prometheus replaced by underscores
+     */
+    static String sanitize(String name) {
+        StringBuilder sb = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z')
+                    || (c >= 'A' && c <= 'Z')
+                    || c == '_'
+                    || c == ':'
+                    || (i > 0 && c >= '0' && c <= '9');
+            if (!valid && sb == null) {
+                sb = new StringBuilder(name.length() + 1).append(name, 0, i);
+            }
+            if (sb != null) {
+                if (i == 0 && c >= '0' && c <= '9') {
+                    sb.append('_').append(c);
+                } else {
+                    sb.append(valid ? c : '_');
+                }
+            }
+        }
+        return sb != null ? sb.toString() : name;
+    }
+
+    static String escape(String labelValue) {
+        if (labelValue.indexOf('\\') < 0 && labelValue.indexOf('"') < 0 && labelValue.indexOf('\n') < 0) {
+            return labelValue;
+        }
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        } else if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return Double.toString(value);
+    }
+}
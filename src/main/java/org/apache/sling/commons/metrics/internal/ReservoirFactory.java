@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.SlidingTimeWindowReservoir;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+import com.codahale.metrics.UniformSnapshot;
+
+/**
+ * Creates the {@link Reservoir} for newly created histograms and timers.
+ */
+final class ReservoirFactory {
+
+    enum Type {
+        /**
+         * The Metrics library default, a sample of {@code size} values biased towards the last 5 minutes
+         */
+        EXPONENTIALLY_DECAYING,
+        /**
+         * A uniform sample of {@code size} values over the lifetime of the metric
+         */
+        UNIFORM,
+        /**
+         * The last {@code size} values
+         */
+        SLIDING_WINDOW,
+        /**
+         * All values of the last {@code window} seconds. Memory grows with the rate of updates
+         */
+        SLIDING_TIME_WINDOW,
+        /**
+         * Lock-free log-linear histogram of all recorded values, see {@link HdrReservoir}
+         */
+        HDR,
+        /**
+         * Like {@code HDR}, but threads record into separate stripes once they contend, see
+         * {@link StripedHdrReservoir}. Uses up to one histogram per core, or {@code stripes}
+         * histograms if configured
+         */
+        STRIPED_HDR,
+        /**
+         * Exact distribution of the values recorded in the last {@code intervals} intervals of
+         * {@code interval} seconds each, see {@link IntervalReservoir}
+         */
+        INTERVAL,
+        /**
+         * No distribution at all, histograms and timers only maintain their count and rates. Meant
+         * for metrics on very hot paths
+         */
+        LITE
+    }
+
+    static final int DEFAULT_SIZE = 1028;
+
+    static final long DEFAULT_WINDOW_SECONDS = 60;
+
+    static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+
+    /**
+     * Up to one stripe per available processor
+     */
+    static final int DEFAULT_STRIPES = 0;
+
+    static final long DEFAULT_INTERVAL_SECONDS = 60;
+
+    static final int DEFAULT_INTERVALS = 5;
+
+    /**
+     * One hour in nanoseconds, which covers the durations recorded by timers
+     */
+    static final long DEFAULT_HIGHEST_TRACKABLE_VALUE = 3_600_000_000_000L;
+
+    static final ReservoirFactory DEFAULT = new ReservoirFactory(
+            Type.EXPONENTIALLY_DECAYING,
+            DEFAULT_SIZE,
+            DEFAULT_WINDOW_SECONDS,
+            DEFAULT_SIGNIFICANT_DIGITS,
+            DEFAULT_HIGHEST_TRACKABLE_VALUE,
+            DEFAULT_STRIPES,
+            DEFAULT_INTERVAL_SECONDS,
+            DEFAULT_INTERVALS);
+
+    private final Type type;
+    private final int size;
+    private final long windowSeconds;
+    private final int significantDigits;
+    private final long highestTrackableValue;
+    private final int stripes;
+    private final long intervalSeconds;
+    private final int intervals;
+
+    /**
+     * @throws IllegalArgumentException if the parameters required by {@code type} are invalid
+     */
+    ReservoirFactory(
+            Type type,
+            int size,
+            long windowSeconds,
+            int significantDigits,
+            long highestTrackableValue,
+            int stripes,
+            long intervalSeconds,
+            int intervals) {
+        this.type = type;
+        this.size = size;
+        this.windowSeconds = windowSeconds;
+        this.significantDigits = significantDigits;
+        this.highestTrackableValue = highestTrackableValue;
+        this.stripes = stripes;
+        this.intervalSeconds = intervalSeconds;
+        this.intervals = intervals;
+
+        // Fail early instead of on the first metric creation
+        create();
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    /**
+     * @return {@code true} if the created reservoirs already return the same snapshot to all
+     *         readers until new values get reported, so they gain nothing from a {@link SnapshotCache}
+     */
+    boolean isSnapshotShared() {
+        return type == Type.INTERVAL || type == Type.LITE;
+    }
+
+    Reservoir create() {
+        switch (type) {
+            case UNIFORM:
+                return new UniformReservoir(checkSize());
+            case SLIDING_WINDOW:
+                return new SlidingWindowReservoir(checkSize());
+            case SLIDING_TIME_WINDOW:
+                if (windowSeconds <= 0) {
+                    throw new IllegalArgumentException("window must be > 0: " + windowSeconds);
+                }
+                return new SlidingTimeWindowReservoir(windowSeconds, TimeUnit.SECONDS);
+            case HDR:
+                return new HdrReservoir(significantDigits, highestTrackableValue);
+            case STRIPED_HDR:
+                return new StripedHdrReservoir(significantDigits, highestTrackableValue, stripes);
+            case INTERVAL:
+                return new IntervalReservoir(
+                        significantDigits, highestTrackableValue, intervalSeconds, intervals, Clock.defaultClock());
+            case LITE:
+                return EmptyReservoir.INSTANCE;
+            case EXPONENTIALLY_DECAYING:
+            default:
+                return size == DEFAULT_SIZE
+                        ? new ExponentiallyDecayingReservoir()
+                        : new ExponentiallyDecayingReservoir(checkSize(), 0.015);
+        }
+    }
+
+    private int checkSize() {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be > 0: " + size);
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "ReservoirFactory{type=" + type + ", size=" + size + ", window=" + windowSeconds + "s, "
+                + "significantDigits=" + significantDigits + ", highestTrackableValue=" + highestTrackableValue + ", "
+                + "stripes=" + stripes + ", interval=" + intervalSeconds + "s, intervals=" + intervals + '}';
+    }
+
+    private enum EmptyReservoir implements Reservoir {
+        INSTANCE;
+
+        private static final Snapshot EMPTY = new UniformSnapshot(new long[0]);
+
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        @Override
+        public void update(long value) {}
+
+        @Override
+        public Snapshot getSnapshot() {
+            return EMPTY;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * Shares the snapshots of histograms and timers between all their readers. The web console,
+ * the inventory printer, the JMX beans and the log reporters all call {@code getSnapshot()}
+ * independently, and for most reservoirs each call copies and sorts all sampled values. The
+ * reservoirs and metrics wrapped by this cache instead take at most one snapshot per time to
+ * live, which all readers within that period share.
+ *
+ * <p>Snapshots are only taken when read, so metrics nobody reports on cost nothing. The time
+ * to live applies to all wrapped reservoirs and can be changed at any time.</p>
+ */
+final class SnapshotCache {
+    private final Clock clock;
+
+    /**
+     * The metrics whose snapshots are cached or shared already, and are thus not wrapped again.
+     * Caching them twice would only serve older snapshots.
+     */
+    private final Set<Sampling> cached = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private volatile long ttlNanos;
+
+    SnapshotCache(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @param ttl the time to live of the snapshots, {@code 0} disables caching
+     */
+    void setTtl(long ttl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(Math.max(ttl, 0));
+    }
+
+    /**
+     * @return the number of the current time to live period, or second if caching is disabled, e.g. to tell
+     *         clients when the snapshots and rates they were served may have changed
+     */
+    long currentPeriod() {
+        long ttl = ttlNanos;
+        return clock.getTick() / (ttl > 0 ? ttl : TimeUnit.SECONDS.toNanos(1));
+    }
+
+    Reservoir wrap(Reservoir reservoir) {
+        return new CachingReservoir(reservoir);
+    }
+
+    /**
+     * @return the sampling, if its snapshots are cached already, or a sampling caching them
+     */
+    Sampling wrap(Sampling sampling) {
+        return cached.contains(sampling) ? sampling : new CachedSnapshot(sampling::getSnapshot)::get;
+    }
+
+    /**
+     * Marks the metric as caching or sharing its snapshots already, like those built on a wrapped reservoir
+     */
+    <T> T markCached(T metric) {
+        if (metric instanceof Sampling) {
+            cached.add((Sampling) metric);
+        }
+        return metric;
+    }
+
+    private static final class TimedSnapshot {
+        final Snapshot snapshot;
+        final long takenAt;
+
+        TimedSnapshot(Snapshot snapshot, long takenAt) {
+            this.snapshot = snapshot;
+            this.takenAt = takenAt;
+        }
+    }
+
+    private final class CachedSnapshot {
+        private final Supplier<Snapshot> source;
+
+        private volatile TimedSnapshot cached;
+
+        CachedSnapshot(Supplier<Snapshot> source) {
+            this.source = source;
+        }
+
+        Snapshot get() {
+            long ttl = ttlNanos;
+            if (ttl == 0) {
+                return source.get();
+            }
+            TimedSnapshot current = cached;
+            if (current != null && clock.getTick() - current.takenAt < ttl) {
+                return current.snapshot;
+            }
+            synchronized (this) {
+                // Concurrent readers wait for the snapshot taken by the first one
+                long now = clock.getTick();
+                current = cached;
+                if (current == null || now - current.takenAt >= ttl) {
+                    current = new TimedSnapshot(source.get(), now);
+                    cached = current;
+                }
+                return current.snapshot;
+            }
+        }
+    }
+
+    private final class CachingReservoir implements Reservoir {
+        private final Reservoir reservoir;
+        private final CachedSnapshot snapshot;
+
+        CachingReservoir(Reservoir reservoir) {
+            this.reservoir = reservoir;
+            this.snapshot = new CachedSnapshot(reservoir::getSnapshot);
+        }
+
+        @Override
+        public int size() {
+            return reservoir.size();
+        }
+
+        @Override
+        public void update(long value) {
+            reservoir.update(value);
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            return snapshot.get();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * A {@link HdrReservoir} variant for metrics updated by many threads at once. Values are
+ * recorded into one of several {@link HdrHistogram} stripes selected by the recording thread,
+ * so that concurrent writers do not compete for the same counters. The stripes are only merged
+ * when a snapshot is taken.
+ *
+ * <p>The reservoir starts with a single stripe and doubles the number of stripes whenever a
+ * thread detects contention, up to the number of available processors or the configured
+ * number of stripes. Uncontended metrics therefore use as much memory as a {@link HdrReservoir},
+ * but a heavily contended one ends up with a full histogram per stripe. With the default
+ * settings a histogram takes about 36KB, so a single timer on a 64 core machine may grow to
+ * about 2.3MB unless the stripes are limited.</p>
+ */
+final class StripedHdrReservoir implements Reservoir {
+    private static final int DEFAULT_MAX_STRIPES =
+            maxStripes(Runtime.getRuntime().availableProcessors());
+
+    private final int significantDigits;
+    private final long highestTrackableValue;
+    private final int maxStripes;
+
+    private volatile HdrHistogram[] stripes;
+
+    /**
+     * @param stripes the maximum number of stripes, rounded down to a power of two, or {@code 0}
+     *                for up to one stripe per available processor
+     * @throws IllegalArgumentException if a parameter is invalid
+     */
+    StripedHdrReservoir(int significantDigits, long highestTrackableValue, int stripes) {
+        if (stripes < 0) {
+            throw new IllegalArgumentException("stripes must be >= 0: " + stripes);
+        }
+        this.significantDigits = significantDigits;
+        this.highestTrackableValue = highestTrackableValue;
+        this.maxStripes = stripes > 0 ? Integer.highestOneBit(stripes) : DEFAULT_MAX_STRIPES;
+        this.stripes = new HdrHistogram[] {new HdrHistogram(significantDigits, highestTrackableValue)};
+    }
+
+    @Override
+    public int size() {
+        return getSnapshot().size();
+    }
+
+    @Override
+    public void update(long value) {
+        HdrHistogram[] current = stripes;
+        if (!current[stripeIndex(current.length)].recordValue(value) && current.length < maxStripes) {
+            grow(current);
+        }
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        HdrHistogram[] current = stripes;
+        long[] counts = current[0].newCountsArray();
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (HdrHistogram stripe : current) {
+            stripe.addTo(counts);
+            min = Math.min(min, stripe.getMin());
+            max = Math.max(max, stripe.getMax());
+        }
+        return new HdrSnapshot(current[0], counts, min, max);
+    }
+
+    int getStripeCount() {
+        return stripes.length;
+    }
+
+    private synchronized void grow(HdrHistogram[] current) {
+        if (stripes != current) {
+            // Another thread grew it in the meantime
+            return;
+        }
+        HdrHistogram[] grown = new HdrHistogram[current.length * 2];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        for (int i = current.length; i < grown.length; i++) {
+            grown[i] = new HdrHistogram(significantDigits, highestTrackableValue);
+        }
+        stripes = grown;
+    }
+
+    private static int stripeIndex(int stripeCount) {
+        // Fibonacci hashing spreads consecutive thread ids over the stripes, and threads sharing
+        // a stripe are likely separated once the number of stripes doubles
+        long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & (stripeCount - 1);
+    }
+
+    static int maxStripes(int processors) {
+        return Integer.highestOneBit(Math.max(processors, 1) * 2 - 1);
+    }
+}
@@ -19,14 +19,27 @@
 package org.apache.sling.commons.metrics.internal;
 
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+import com.codahale.metrics.Clock;
 import org.apache.sling.commons.metrics.Timer;
 
 final class TimerImpl implements Timer {
     private final com.codahale.metrics.Timer timer;
+    private final Clock clock;
 
     TimerImpl(com.codahale.metrics.Timer timer) {
+        this(timer, Clock.defaultClock());
+    }
+
+    /**
+     * @param timer the timer to record to
+     * @param clock the clock used for {@link #start()} and {@link #stop(long)}. It should
+     *              be the same clock as used by {@code timer} for its own contexts
+     */
+    TimerImpl(com.codahale.metrics.Timer timer, Clock clock) {
         this.timer = timer;
+        this.clock = clock;
     }
 
     @Override
@@ -39,6 +52,38 @@ final class TimerImpl implements Timer {
         return new ContextImpl(timer.time());
     }
 
+    @Override
+    public long start() {
+        return clock.getTick();
+    }
+
+    @Override
+    public long stop(long start) {
+        final long elapsed = clock.getTick() - start;
+        timer.update(elapsed, TimeUnit.NANOSECONDS);
+        return elapsed;
+    }
+
+    @Override
+    public void record(Runnable operation) {
+        final long start = start();
+        try {
+            operation.run();
+        } finally {
+            stop(start);
+        }
+    }
+
+    @Override
+    public <T> T record(Supplier<T> operation) {
+        final long start = start();
+        try {
+            return operation.get();
+        } finally {
+            stop(start);
+        }
+    }
+
     @Override
     public long getCount() {
         return timer.getCount();
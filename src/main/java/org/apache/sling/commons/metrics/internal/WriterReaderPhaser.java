@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coordinates wait-free writers with a reader which needs to know when all writers have left
+ * a data structure it swapped out, following the
+ * <a href="http://stuff-gil-says.blogspot.com/2014/11/writerreaderphaser-story-about-new.html">
+ * WriterReaderPhaser</a> of HdrHistogram.
+ *
+ * <p>Writers wrap their updates with {@link #writerCriticalSectionEnter()} and
+ * {@link #writerCriticalSectionExit(long)}. A reader holding the {@link #readerLock()} swaps the
+ * active data structure and then calls {@link #flipPhase()}, which returns once all writers
+ * which might still have seen the previous one have exited.</p>
+ */
+final class WriterReaderPhaser {
+    private final AtomicLong startEpoch = new AtomicLong(0);
+    private final AtomicLong evenEndEpoch = new AtomicLong(0);
+    private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+    private final ReentrantLock readerLock = new ReentrantLock();
+
+    /**
+     * @return the value to be passed to {@link #writerCriticalSectionExit(long)}
+     */
+    long writerCriticalSectionEnter() {
+        return startEpoch.getAndIncrement();
+    }
+
+    void writerCriticalSectionExit(long criticalValueAtEnter) {
+        (criticalValueAtEnter < 0 ? oddEndEpoch : evenEndEpoch).getAndIncrement();
+    }
+
+    void readerLock() {
+        readerLock.lock();
+    }
+
+    void readerUnlock() {
+        readerLock.unlock();
+    }
+
+    /**
+     * Waits until all writers which entered before the call have exited. Must be called while
+     * holding the {@link #readerLock()}.
+     */
+    void flipPhase() {
+        if (!readerLock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("flipPhase() requires the reader lock");
+        }
+        boolean nextPhaseIsEven = startEpoch.get() < 0;
+        long initialStartValue = nextPhaseIsEven ? 0 : Long.MIN_VALUE;
+        (nextPhaseIsEven ? evenEndEpoch : oddEndEpoch).set(initialStartValue);
+
+        long startValueAtFlip = startEpoch.getAndSet(initialStartValue);
+        AtomicLong previousPhaseEndEpoch = nextPhaseIsEven ? oddEndEpoch : evenEndEpoch;
+        while (previousPhaseEndEpoch.get() != startValueAtFlip) {
+            Thread.yield();
+        }
+    }
+}
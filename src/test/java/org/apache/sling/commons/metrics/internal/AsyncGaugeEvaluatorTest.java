@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.sling.commons.metrics.internal.AsyncGaugeEvaluator.AsyncGauge;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncGaugeEvaluatorTest {
+    private final VirtualClock clock = new VirtualClock();
+
+    private final MetricRegistry registry = new MetricRegistry();
+
+    private final AsyncGaugeEvaluator evaluator = new AsyncGaugeEvaluator(registry, clock);
+
+    @After
+    public void close() {
+        evaluator.close();
+    }
+
+    @Test
+    public void servesLastValue() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        AsyncGauge<Integer> gauge = evaluator.newGauge(calls::incrementAndGet, 10, TimeUnit.MILLISECONDS);
+        assertNull(gauge.getValue());
+        assertFalse(registry.getNames().contains(AsyncGaugeEvaluator.STALE));
+
+        evaluator.start("test", gauge);
+        waitFor(() -> calls.get() >= 3);
+        assertTrue(gauge.getValue() >= 2);
+        assertTrue(registry.getNames().contains(AsyncGaugeEvaluator.TIMEOUTS));
+        assertTrue(registry.getNames().contains(AsyncGaugeEvaluator.FAILURES));
+        assertTrue(registry.getNames().contains(AsyncGaugeEvaluator.STALE));
+
+        evaluator.stop("test");
+        Thread.sleep(50);
+        int stopped = calls.get();
+        Thread.sleep(50);
+        assertEquals(stopped, calls.get());
+
+        evaluator.close();
+        assertFalse(registry.getNames().contains(AsyncGaugeEvaluator.STALE));
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        evaluator.configure(1, 20, TimeUnit.MILLISECONDS);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        AsyncGauge<Integer> gauge = evaluator.newGauge(
+                () -> {
+                    try {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                        return 42;
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                        throw new IllegalStateException(e);
+                    }
+                },
+                1,
+                TimeUnit.MINUTES);
+        evaluator.start("test", gauge);
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        waitFor(() -> evaluator.getTimeouts() == 1);
+        assertEquals(0, evaluator.getFailures());
+        assertNull(gauge.getValue());
+    }
+
+    @Test
+    public void timeoutIgnoringInterrupt() throws Exception {
+        evaluator.configure(1, 20, TimeUnit.MILLISECONDS);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncGauge<Integer> stuck = evaluator.newGauge(
+                () -> {
+                    blocked.countDown();
+                    while (true) {
+                        try {
+                            release.await();
+                            return 42;
+                        } catch (InterruptedException e) {
+                            // ignored
+                        }
+                    }
+                },
+                1,
+                TimeUnit.MINUTES);
+        AtomicInteger calls = new AtomicInteger();
+        AsyncGauge<Integer> gauge = evaluator.newGauge(calls::incrementAndGet, 10, TimeUnit.MILLISECONDS);
+        evaluator.start("stuck", stuck);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        evaluator.start("test", gauge);
+
+        // The only worker is stuck, but written off and replaced after the timeout
+        waitFor(() -> calls.get() >= 2);
+        assertEquals(1, evaluator.getTimeouts());
+        assertNull(stuck.getValue());
+
+        release.countDown();
+        waitFor(() -> stuck.getValue() != null);
+    }
+
+    @Test
+    public void failures() throws Exception {
+        AsyncGauge<Integer> gauge = evaluator.newGauge(
+                () -> {
+                    throw new IllegalStateException();
+                },
+                10,
+                TimeUnit.MILLISECONDS);
+        evaluator.start("test", gauge);
+
+        waitFor(() -> evaluator.getFailures() >= 2);
+        assertEquals(0, evaluator.getTimeouts());
+        assertNull(gauge.getValue());
+    }
+
+    @Test
+    public void stale() throws Exception {
+        evaluator.configure(1, 10, TimeUnit.SECONDS);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncGauge<Integer> gauge = evaluator.newGauge(
+                () -> {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return 42;
+                },
+                100,
+                TimeUnit.MILLISECONDS);
+        evaluator.start("test", gauge);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        // Stale after twice the interval plus the timeout
+        clock.tick += TimeUnit.MILLISECONDS.toNanos(10_200);
+        assertEquals(0, evaluator.getStale());
+        clock.tick += 1;
+        assertEquals(1, evaluator.getStale());
+
+        release.countDown();
+        waitFor(() -> gauge.getValue() != null);
+        assertEquals(0, evaluator.getStale());
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    private static class VirtualClock extends Clock {
+        volatile long tick;
+
+        @Override
+        public long getTick() {
+            return tick;
+        }
+    }
+}
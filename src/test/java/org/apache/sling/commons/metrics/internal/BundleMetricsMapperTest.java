@@ -20,12 +20,15 @@ package org.apache.sling.commons.metrics.internal;
 
 import javax.management.ObjectName;
 
+import java.util.Collections;
+
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableMap;
 import org.apache.sling.testing.mock.osgi.MockBundle;
 import org.apache.sling.testing.mock.osgi.junit.OsgiContext;
 import org.junit.Rule;
 import org.junit.Test;
+import org.osgi.framework.BundleEvent;
 
 import static org.junit.Assert.*;
 
@@ -65,4 +68,36 @@ public class BundleMetricsMapperTest {
         ObjectName name = mapper.createName("counter", "foo", "bar");
         assertEquals("com.test", name.getDomain());
     }
+
+    @Test
+    public void cachedNames() throws Exception {
+        MockBundle bundle = new MockBundle(context.bundleContext());
+        bundle.setSymbolicName("com.example");
+        mapper.addMapping("bar", bundle);
+
+        ObjectName name = mapper.createName("counter", "foo", "bar");
+        assertSame(name, mapper.createName("counter", "foo", "bar"));
+
+        // Re-registering the metric after a bundle restart reuses the name
+        mapper.unregister(Collections.singleton("bar"));
+        mapper.addMapping("bar", bundle);
+        assertSame(name, mapper.createName("counter", "foo", "bar"));
+
+        // Not mapped to the bundle anymore
+        mapper.unregister(Collections.singleton("bar"));
+        assertEquals("foo", mapper.createName("counter", "foo", "bar").getDomain());
+    }
+
+    @Test
+    public void domainUpdatedWithBundle() throws Exception {
+        MockBundle bundle = new MockBundle(context.bundleContext());
+        bundle.setSymbolicName("com.example");
+        mapper.addMapping("bar", bundle);
+        assertEquals("com.example", mapper.createName("counter", "foo", "bar").getDomain());
+
+        bundle.setHeaders(ImmutableMap.of(BundleMetricsMapper.HEADER_DOMAIN_NAME, "com.test"));
+        mapper.bundleChanged(new BundleEvent(BundleEvent.UPDATED, bundle));
+
+        assertEquals("com.test", mapper.createName("counter", "foo", "bar").getDomain());
+    }
 }
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.codahale.metrics.Snapshot;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HdrReservoirTest {
+    private static final long HOUR_IN_NANOS = 3_600_000_000_000L;
+
+    @Test
+    public void emptySnapshot() throws Exception {
+        Snapshot snapshot = new HdrReservoir(2, HOUR_IN_NANOS).getSnapshot();
+
+        assertEquals(0, snapshot.size());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getMean(), 0);
+        assertEquals(0, snapshot.get999thPercentile(), 0);
+        assertEquals(0, snapshot.getValues().length);
+    }
+
+    @Test
+    public void percentilesWithinPrecision() throws Exception {
+        HdrReservoir reservoir = new HdrReservoir(2, HOUR_IN_NANOS);
+        for (long i = 1; i <= 100_000; i++) {
+            reservoir.update(i * 1000);
+        }
+
+        Snapshot snapshot = reservoir.getSnapshot();
+        assertEquals(100_000, snapshot.size());
+        assertEquals(1000, snapshot.getMin());
+        assertEquals(100_000_000, snapshot.getMax());
+
+        assertWithinOnePercent(50_000_000, snapshot.getMedian());
+        assertWithinOnePercent(99_000_000, snapshot.get99thPercentile());
+        assertWithinOnePercent(99_900_000, snapshot.get999thPercentile());
+        assertWithinOnePercent(50_000_500, snapshot.getMean());
+        assertEquals(100_000_000, snapshot.getValue(1.0), 0);
+        assertEquals(HdrSnapshot.MAX_VALUES, snapshot.getValues().length);
+    }
+
+    @Test
+    public void valuesOutOfRange() throws Exception {
+        HdrReservoir reservoir = new HdrReservoir(1, 1000);
+        reservoir.update(-5);
+        reservoir.update(Long.MAX_VALUE);
+
+        Snapshot snapshot = reservoir.getSnapshot();
+        assertEquals(2, snapshot.size());
+        assertEquals(-5, snapshot.getMin());
+        assertEquals(Long.MAX_VALUE, snapshot.getMax());
+        assertEquals(Long.MAX_VALUE, snapshot.getValue(1.0), 0);
+    }
+
+    @Test
+    public void stripedMergesAllStripes() throws Exception {
+        StripedHdrReservoir reservoir = new StripedHdrReservoir(2, HOUR_IN_NANOS, 0);
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                long offset = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (long i = 1; i <= 10_000; i++) {
+                        reservoir.update(i * 1000 + offset);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Snapshot snapshot = reservoir.getSnapshot();
+        assertEquals(threads * 10_000, snapshot.size());
+        assertEquals(1000, snapshot.getMin());
+        assertEquals(10_000_000 + threads - 1, snapshot.getMax());
+        assertWithinOnePercent(5_000_000, snapshot.getMedian());
+    }
+
+    @Test
+    public void maxStripes() throws Exception {
+        assertEquals(1, StripedHdrReservoir.maxStripes(1));
+        assertEquals(8, StripedHdrReservoir.maxStripes(6));
+        assertEquals(64, StripedHdrReservoir.maxStripes(64));
+    }
+
+    @Test
+    public void stripesAreLimited() throws Exception {
+        StripedHdrReservoir reservoir = new StripedHdrReservoir(2, HOUR_IN_NANOS, 3);
+        int threads = 8;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int round = 0; round < 100; round++) {
+                        barrier.await();
+                        for (long i = 1; i <= 1_000; i++) {
+                            reservoir.update(i);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue(reservoir.getStripeCount() <= 2);
+        assertEquals(threads * 100 * 1_000, reservoir.getSnapshot().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeStripes() throws Exception {
+        new StripedHdrReservoir(2, HOUR_IN_NANOS, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPrecision() throws Exception {
+        new HdrReservoir(6, HOUR_IN_NANOS);
+    }
+
+    private static void assertWithinOnePercent(double expected, double actual) {
+        assertTrue(expected + " expected but was " + actual, Math.abs(expected - actual) <= expected / 100);
+    }
+}
@@ -89,6 +89,34 @@ public class InternalMetricsServiceFactoryTest {
         assertTrue(registry.getMeters().containsKey("m2"));
     }
 
+    @Test
+    public void cachedLookups() throws Exception {
+        MetricsService srv1 = srvFactory.getService(cb("foo"), reg);
+        MetricsService srv2 = srvFactory.getService(cb("bar"), reg);
+
+        Counter c1 = srv1.counter("c1");
+        assertSame(c1, srv1.counter("c1"));
+        assertSame(c1, srv2.counter("c1"));
+
+        try {
+            srv1.timer("c1");
+            fail("c1 is a counter");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+
+        srv2.meter("m2");
+        srv2.unregister("m2");
+        assertSame(c1, srv1.counter("c1"));
+
+        srv1.unregister("c1");
+        Counter c2 = srv1.counter("c1");
+        assertNotSame(c1, c2);
+        // the stale counter cached for the other bundle must not be handed out either
+        assertSame(c2, srv2.counter("c1"));
+        assertTrue(registry.getCounters().containsKey("c1"));
+    }
+
     private Bundle cb(String name) {
         MockBundle bundle = new MockBundle(context.bundleContext());
         bundle.setSymbolicName(name);
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformSnapshot;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class IntervalReservoirTest {
+    private static final long HOUR_IN_NANOS = 3_600_000_000_000L;
+
+    private final VirtualClock clock = new VirtualClock();
+
+    private final IntervalReservoir reservoir = new IntervalReservoir(2, HOUR_IN_NANOS, 60, 3, clock);
+
+    @Test
+    public void valuesReportedOnceIntervalElapsed() throws Exception {
+        reservoir.update(10);
+        assertEquals(0, reservoir.getSnapshot().size());
+
+        clock.advance(60);
+        IntervalSnapshot snapshot = reservoir.getSnapshot();
+        assertEquals(1, snapshot.size());
+        assertEquals(10, snapshot.getMax());
+        assertEquals(1, snapshot.getLastInterval().size());
+
+        // Same snapshot until the next interval elapses
+        assertSame(snapshot, reservoir.getSnapshot());
+    }
+
+    @Test
+    public void slidingIntervals() throws Exception {
+        reservoir.update(10);
+        clock.advance(60);
+        reservoir.getSnapshot();
+        reservoir.update(20);
+        reservoir.update(30);
+        clock.advance(60);
+
+        IntervalSnapshot snapshot = reservoir.getSnapshot();
+        assertEquals(3, snapshot.size());
+        assertEquals(10, snapshot.getMin());
+        assertEquals(2, snapshot.getLastInterval().size());
+        assertEquals(20, snapshot.getLastInterval().getMin());
+
+        // The first interval drops out of the window of 3 intervals
+        clock.advance(120);
+        snapshot = reservoir.getSnapshot();
+        assertEquals(2, snapshot.size());
+        assertEquals(0, snapshot.getLastInterval().size());
+
+        clock.advance(600);
+        assertEquals(0, reservoir.getSnapshot().size());
+    }
+
+    @Test
+    public void valuesGoToTheirOwnInterval() throws Exception {
+        reservoir.getSnapshot();
+        reservoir.update(10);
+        clock.advance(150);
+        reservoir.update(20);
+
+        // The interval of 10, and an empty one, elapsed before 20 was recorded
+        IntervalSnapshot snapshot = reservoir.getSnapshot();
+        assertEquals(1, snapshot.size());
+        assertEquals(0, snapshot.getLastInterval().size());
+
+        clock.advance(30);
+        snapshot = reservoir.getSnapshot();
+        assertEquals(2, snapshot.size());
+        assertEquals(1, snapshot.getLastInterval().size());
+        assertEquals(20, snapshot.getLastInterval().getMin());
+    }
+
+    @Test
+    public void lastIntervalOf() throws Exception {
+        Snapshot other = new UniformSnapshot(new long[] {1});
+        assertSame(other, IntervalSnapshot.lastIntervalOf(other));
+
+        IntervalSnapshot snapshot = reservoir.getSnapshot();
+        assertSame(snapshot.getLastInterval(), IntervalSnapshot.lastIntervalOf(snapshot));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidIntervals() throws Exception {
+        new IntervalReservoir(2, HOUR_IN_NANOS, 60, 0, clock);
+    }
+
+    private static class VirtualClock extends Clock {
+        long tick;
+
+        void advance(long seconds) {
+            tick += TimeUnit.SECONDS.toNanos(seconds);
+        }
+
+        @Override
+        public long getTick() {
+            return tick;
+        }
+    }
+}
@@ -21,7 +21,11 @@ package org.apache.sling.commons.metrics.internal;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.JvmAttributeGaugeSet;
@@ -30,6 +34,7 @@ import org.apache.commons.io.output.WriterOutputStream;
 import org.apache.felix.utils.json.JSONParser;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class JSONReporterTest {
@@ -75,6 +80,49 @@ public class JSONReporterTest {
         assertTrue(((Map<String, Object>) json.get("gauges")).containsKey("test"));
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void fieldsAndNames() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        registry.timer("foo.time").update(5, TimeUnit.MILLISECONDS);
+        registry.counter("foo.count").inc(3);
+        registry.counter("bar.count").inc(7);
+
+        StringWriter sw = new StringWriter();
+        JSONReporter reporter = JSONReporter.forRegistry(registry)
+                .outputTo(sw)
+                .names("foo.*")
+                .fields("count", "p99")
+                .build();
+        reporter.report();
+        reporter.close();
+
+        Map<String, Object> json = new JSONParser(sw.toString()).getParsed();
+        Map<String, Object> counters = (Map<String, Object>) json.get("counters");
+        assertEquals(Collections.singleton("foo.count"), counters.keySet());
+        Map<String, Object> timer = (Map<String, Object>) ((Map<String, Object>) json.get("timers")).get("foo.time");
+        assertEquals(new HashSet<>(Arrays.asList("count", "p99")), timer.keySet());
+        assertEquals(5.0, ((Number) timer.get("p99")).doubleValue(), 0.01);
+    }
+
+    @Test
+    public void jsonWriter() throws Exception {
+        StringWriter sw = new StringWriter();
+        JSONReporter.JsonWriter json = new JSONReporter.JsonWriter(sw);
+        json.object();
+        json.key("a\"b\n").value(-1234567890123L);
+        json.key("d").value(2.5);
+        json.key("i").value(3.0);
+        json.key("nan").value(Double.NaN);
+        json.key("list").value(Arrays.asList(1, "x", true));
+        json.endObject();
+        json.flush();
+
+        assertEquals(
+                "{\"a\\\"b\\u000a\":-1234567890123,\"d\":2.5,\"i\":3.0,\"nan\":\"NaN\",\"list\":[1,\"x\",true]}",
+                sw.toString());
+    }
+
     private static Map<String, Object> getJSON(MetricRegistry registry) throws IOException {
         StringWriter sw = new StringWriter();
         JSONReporter reporter = JSONReporter.forRegistry(registry)
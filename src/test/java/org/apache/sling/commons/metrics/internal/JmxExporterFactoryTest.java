@@ -18,8 +18,12 @@
  */
 package org.apache.sling.commons.metrics.internal;
 
+import javax.management.Descriptor;
+import javax.management.ImmutableDescriptor;
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.InstanceNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
 import javax.management.MBeanRegistrationException;
 import javax.management.MBeanServer;
 import javax.management.MBeanServerDelegate;
@@ -34,9 +38,15 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
 
+import com.codahale.metrics.Clock;
 import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
 import org.apache.sling.testing.mock.osgi.junit.OsgiContext;
 import org.junit.After;
 import org.junit.Before;
@@ -59,16 +69,16 @@ public class JmxExporterFactoryTest {
     public OsgiContext context = new OsgiContext();
 
     @Captor
-    ArgumentCaptor<Supplier<Integer>> intSupplierCaptor;
+    ArgumentCaptor<LongSupplier> intSupplierCaptor;
 
     @Captor
-    ArgumentCaptor<Supplier<Long>> longSupplierCaptor;
+    ArgumentCaptor<LongSupplier> longSupplierCaptor;
 
     @Captor
     ArgumentCaptor<Supplier<String>> stringSupplierCaptor;
 
     @Captor
-    ArgumentCaptor<Supplier<Double>> doubleSupplierCaptor;
+    ArgumentCaptor<DoubleSupplier> doubleSupplierCaptor;
 
     @Captor
     ArgumentCaptor<Supplier<Boolean>> booleanSupplierCaptor;
@@ -85,6 +95,8 @@ public class JmxExporterFactoryTest {
     // Query which will only match OBJECT_NAME_0 and OBJECT_NAME_1
     private static final String OBJECT_NAME_QUERY = "org.apache.sling.whiteboard.jmxexporter.impl0*:type=*";
 
+    private static final long TIMEOUT = 5000;
+
     private static final String EXPECTED_0_INT_NAME = "org.apache.sling.whiteboard.jmxexporter.impl0.sample1.Int";
     private static final String EXPECTED_0_LONG_NAME = "org.apache.sling.whiteboard.jmxexporter.impl0.sample1.Long";
     private static final String EXPECTED_0_BOOLEAN_NAME =
@@ -121,6 +133,7 @@ public class JmxExporterFactoryTest {
         exporter = new JmxExporterFactory();
         metrics = Mockito.mock(MetricsService.class);
         context.registerService(MetricsService.class, metrics);
+        context.registerInjectActivateService(new JmxNotificationDispatcher());
     }
 
     @After
@@ -139,47 +152,228 @@ public class JmxExporterFactoryTest {
         // this will query all specified mbeans and create metrics for it
         context.registerInjectActivateService(exporter, props);
 
-        // Integer
-        Mockito.verify(metrics).gauge(Mockito.eq(EXPECTED_0_INT_NAME), intSupplierCaptor.capture());
-        assertEquals(Integer.valueOf(0), intSupplierCaptor.getValue().get());
+        // Integer, exported as long
+        Mockito.verify(metrics, Mockito.timeout(TIMEOUT))
+                .longGauge(Mockito.eq(EXPECTED_0_INT_NAME), intSupplierCaptor.capture());
+        assertEquals(0L, intSupplierCaptor.getValue().getAsLong());
 
         // test that an update in the mbean reflects in the metrics
         mbeans[0].setInt(10);
-        Mockito.verify(metrics).gauge(Mockito.eq(EXPECTED_0_INT_NAME), intSupplierCaptor.capture());
-        assertEquals(Integer.valueOf(10), intSupplierCaptor.getValue().get());
+        Mockito.verify(metrics, Mockito.timeout(TIMEOUT))
+                .longGauge(Mockito.eq(EXPECTED_0_INT_NAME), intSupplierCaptor.capture());
+        assertEquals(10L, intSupplierCaptor.getValue().getAsLong());
 
         // Long
-        Mockito.verify(metrics).gauge(Mockito.eq(EXPECTED_0_LONG_NAME), longSupplierCaptor.capture());
-        assertEquals(Long.valueOf(0L), longSupplierCaptor.getValue().get());
+        Mockito.verify(metrics, Mockito.timeout(TIMEOUT))
+                .longGauge(Mockito.eq(EXPECTED_0_LONG_NAME), longSupplierCaptor.capture());
+        assertEquals(0L, longSupplierCaptor.getValue().getAsLong());
 
         // String
-        Mockito.verify(metrics).gauge(Mockito.eq(EXPECTED_0_STRING_NAME), stringSupplierCaptor.capture());
+        Mockito.verify(metrics, Mockito.timeout(TIMEOUT))
+                .gauge(Mockito.eq(EXPECTED_0_STRING_NAME), stringSupplierCaptor.capture());
         assertEquals("sample", stringSupplierCaptor.getValue().get());
 
         // Boolean
-        Mockito.verify(metrics).gauge(Mockito.eq(EXPECTED_0_BOOLEAN_NAME), booleanSupplierCaptor.capture());
+        Mockito.verify(metrics, Mockito.timeout(TIMEOUT))
+                .gauge(Mockito.eq(EXPECTED_0_BOOLEAN_NAME), booleanSupplierCaptor.capture());
         assertFalse(booleanSupplierCaptor.getValue().get());
 
         // Double
-        Mockito.verify(metrics).gauge(Mockito.eq(EXPECTED_0_DOUBLE_NAME), doubleSupplierCaptor.capture());
-        assertEquals(STATIC_DOUBLE, doubleSupplierCaptor.getValue().get());
+        Mockito.verify(metrics, Mockito.timeout(TIMEOUT))
+                .doubleGauge(Mockito.eq(EXPECTED_0_DOUBLE_NAME), doubleSupplierCaptor.capture());
+        assertEquals(STATIC_DOUBLE, doubleSupplierCaptor.getValue().getAsDouble(), 0);
 
         // getList()
         Mockito.verify(metrics, never()).gauge(Mockito.eq(EXPECTED_0_LIST_NAME), listSupplierCaptor.capture());
 
         // MBean 1
-        Mockito.verify(metrics).gauge(Mockito.eq(EXPECTED_1_INT_NAME), intSupplierCaptor.capture());
-        assertEquals(Integer.valueOf(1), intSupplierCaptor.getValue().get());
+        Mockito.verify(metrics, Mockito.timeout(TIMEOUT))
+                .longGauge(Mockito.eq(EXPECTED_1_INT_NAME), intSupplierCaptor.capture());
+        assertEquals(1L, intSupplierCaptor.getValue().getAsLong());
 
-        Mockito.verify(metrics).gauge(Mockito.eq(EXPECTED_1_LONG_NAME), longSupplierCaptor.capture());
-        assertEquals(Long.valueOf(1L), longSupplierCaptor.getValue().get());
+        Mockito.verify(metrics, Mockito.timeout(TIMEOUT))
+                .longGauge(Mockito.eq(EXPECTED_1_LONG_NAME), longSupplierCaptor.capture());
+        assertEquals(1L, longSupplierCaptor.getValue().getAsLong());
 
         // verify that no metrics for MBean2 have been registered
-        Mockito.verify(metrics, never()).gauge(Mockito.eq(EXPECTED_2_INT_NAME), intSupplierCaptor.capture());
+        Mockito.verify(metrics, never()).longGauge(Mockito.eq(EXPECTED_2_INT_NAME), intSupplierCaptor.capture());
 
         Mockito.verify(listener, Mockito.times(3)).handleNotification(Mockito.any(Notification.class), Mockito.any());
     }
 
+    @Test
+    public void registerOnNotification() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put("objectnames", new String[] {"com.example:type=Notified"});
+        context.registerInjectActivateService(exporter, props);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.example:type=Notified");
+        server.registerMBean(new SimpleBean(5, 5L), name);
+        try {
+            Mockito.verify(metrics, Mockito.timeout(TIMEOUT))
+                    .longGauge(Mockito.eq("com.example.Notified.Int"), intSupplierCaptor.capture());
+            assertEquals(5L, intSupplierCaptor.getValue().getAsLong());
+        } finally {
+            server.unregisterMBean(name);
+        }
+        Mockito.verify(metrics, Mockito.timeout(TIMEOUT)).unregister("com.example.Notified.Int");
+    }
+
+    @Test
+    public void unregisterOnModifiedAndDeactivate() {
+        Map<String, Object> props = new HashMap<>();
+        props.put("objectnames", new String[] {OBJECT_NAME_QUERY});
+        context.registerInjectActivateService(exporter, props);
+        Mockito.verify(metrics, Mockito.timeout(TIMEOUT)).longGauge(Mockito.eq(EXPECTED_1_INT_NAME), Mockito.any());
+
+        // MBean 1 no longer matches
+        props.put("objectnames", new String[] {OBJECT_NAME_0});
+        MockOsgi.modified(exporter, context.bundleContext(), props);
+        Mockito.verify(metrics).unregister(EXPECTED_1_INT_NAME);
+        Mockito.verify(metrics, never()).unregister(EXPECTED_0_INT_NAME);
+
+        MockOsgi.deactivate(exporter, context.bundleContext());
+        Mockito.verify(metrics).unregister(EXPECTED_0_INT_NAME);
+        Mockito.verify(metrics).unregister(EXPECTED_1_INT_NAME);
+    }
+
+    @Test
+    public void pollingPeriod() {
+        AtomicLong tick = new AtomicLong();
+        exporter.clock = new Clock() {
+            @Override
+            public long getTick() {
+                return tick.get();
+            }
+        };
+        Map<String, Object> props = new HashMap<>();
+        props.put("objectnames", new String[] {OBJECT_NAME_0});
+        props.put("pollingPeriod", 1000L);
+        context.registerInjectActivateService(exporter, props);
+
+        Mockito.verify(metrics, Mockito.timeout(TIMEOUT))
+                .longGauge(Mockito.eq(EXPECTED_0_INT_NAME), intSupplierCaptor.capture());
+        Mockito.verify(metrics, Mockito.timeout(TIMEOUT))
+                .gauge(Mockito.eq(EXPECTED_0_STRING_NAME), stringSupplierCaptor.capture());
+        assertEquals(0L, intSupplierCaptor.getValue().getAsLong());
+
+        // served from the snapshot until the polling period elapsed
+        mbeans[0].setInt(10);
+        assertEquals(0L, intSupplierCaptor.getValue().getAsLong());
+        assertEquals("sample", stringSupplierCaptor.getValue().get());
+
+        tick.set(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(10L, intSupplierCaptor.getValue().getAsLong());
+    }
+
+    @Test
+    public void sharedMetrics() {
+        Map<String, Object> props = new HashMap<>();
+        props.put("objectnames", new String[] {OBJECT_NAME_0});
+        context.registerInjectActivateService(exporter, props);
+        JmxExporterFactory other = new JmxExporterFactory();
+        context.registerInjectActivateService(other, props);
+        Mockito.verify(metrics, Mockito.timeout(TIMEOUT).times(1))
+                .longGauge(Mockito.eq(EXPECTED_0_INT_NAME), Mockito.any());
+
+        // the metric is still served for the other configuration
+        MockOsgi.deactivate(exporter, context.bundleContext());
+        Mockito.verify(metrics).unregister(EXPECTED_0_INT_NAME);
+        Mockito.verify(metrics, Mockito.timeout(TIMEOUT).times(2))
+                .longGauge(Mockito.eq(EXPECTED_0_INT_NAME), Mockito.any());
+
+        MockOsgi.deactivate(other, context.bundleContext());
+        Mockito.verify(metrics, Mockito.times(2)).unregister(EXPECTED_0_INT_NAME);
+        Mockito.verify(metrics, Mockito.times(2)).longGauge(Mockito.eq(EXPECTED_0_INT_NAME), Mockito.any());
+    }
+
+    @Test
+    public void introspectsImmutableMBeanClassesOnce() throws Exception {
+        MBeanInfo info = Mockito.spy(mbeanInfo("test.Pool", new ImmutableDescriptor("immutableInfo=true")));
+        MBeanServer server = Mockito.mock(MBeanServer.class);
+        Mockito.when(server.getMBeanInfo(Mockito.any(ObjectName.class))).thenReturn(info);
+        exporter.metrics = metrics;
+        exporter.server = server;
+        exporter.dispatcher = new JmxNotificationDispatcher();
+
+        exporter.registerMBeanProperties(new ObjectName("test:type=Pool,name=1"));
+        exporter.registerMBeanProperties(new ObjectName("test:type=Pool,name=2"));
+
+        Mockito.verify(info, Mockito.times(1)).getAttributes();
+        Mockito.verify(metrics).longGauge(Mockito.eq("test.1.Pool.Count"), Mockito.any());
+        Mockito.verify(metrics).longGauge(Mockito.eq("test.2.Pool.Count"), Mockito.any());
+        Mockito.verify(metrics, never()).gauge(Mockito.eq("test.1.Pool.List"), Mockito.any());
+    }
+
+    @Test
+    public void introspectsMutableMBeansEveryTime() throws Exception {
+        MBeanInfo info = Mockito.spy(mbeanInfo("test.Dynamic", ImmutableDescriptor.EMPTY_DESCRIPTOR));
+        MBeanServer server = Mockito.mock(MBeanServer.class);
+        Mockito.when(server.getMBeanInfo(Mockito.any(ObjectName.class))).thenReturn(info);
+        exporter.metrics = metrics;
+        exporter.server = server;
+        exporter.dispatcher = new JmxNotificationDispatcher();
+
+        exporter.registerMBeanProperties(new ObjectName("test:type=Dynamic,name=1"));
+        exporter.registerMBeanProperties(new ObjectName("test:type=Dynamic,name=2"));
+
+        Mockito.verify(info, Mockito.times(2)).getAttributes();
+    }
+
+    @Test
+    public void introspectsClassesOfTheSameNameSeparately() throws Exception {
+        Descriptor immutable = new ImmutableDescriptor("immutableInfo=true");
+        MBeanAttributeInfo[] sizes = {new MBeanAttributeInfo("Size", "int", null, true, false, false)};
+        ObjectName name1 = new ObjectName("test:type=Pool,name=1");
+        ObjectName name2 = new ObjectName("test:type=Pool,name=2");
+        MBeanServer server = Mockito.mock(MBeanServer.class);
+        Mockito.when(server.getMBeanInfo(name1)).thenReturn(mbeanInfo("test.Pool", immutable));
+        Mockito.when(server.getMBeanInfo(name2))
+                .thenReturn(new MBeanInfo("test.Pool", null, sizes, null, null, null, immutable));
+        exporter.metrics = metrics;
+        exporter.server = server;
+        exporter.dispatcher = new JmxNotificationDispatcher();
+
+        exporter.registerMBeanProperties(name1);
+        exporter.registerMBeanProperties(name2);
+
+        Mockito.verify(metrics).longGauge(Mockito.eq("test.1.Pool.Count"), Mockito.any());
+        Mockito.verify(metrics).longGauge(Mockito.eq("test.2.Pool.Size"), Mockito.any());
+        Mockito.verify(metrics, never()).longGauge(Mockito.eq("test.2.Pool.Count"), Mockito.any());
+    }
+
+    @Test
+    public void evictsMBeanClassWithItsLastInstance() throws Exception {
+        MBeanInfo info = Mockito.spy(mbeanInfo("test.Pool", new ImmutableDescriptor("immutableInfo=true")));
+        MBeanServer server = Mockito.mock(MBeanServer.class);
+        Mockito.when(server.getMBeanInfo(Mockito.any(ObjectName.class))).thenReturn(info);
+        exporter.metrics = metrics;
+        exporter.server = server;
+        exporter.dispatcher = new JmxNotificationDispatcher();
+        ObjectName name1 = new ObjectName("test:type=Pool,name=1");
+        ObjectName name2 = new ObjectName("test:type=Pool,name=2");
+
+        exporter.registerMBeanProperties(name1);
+        exporter.registerMBeanProperties(name2);
+        exporter.unexport(name1);
+        exporter.registerMBeanProperties(name1);
+        Mockito.verify(info, Mockito.times(1)).getAttributes();
+
+        exporter.unexport(name1);
+        exporter.unexport(name2);
+        exporter.registerMBeanProperties(name1);
+        Mockito.verify(info, Mockito.times(2)).getAttributes();
+    }
+
+    private static MBeanInfo mbeanInfo(String className, Descriptor descriptor) {
+        MBeanAttributeInfo[] attributes = {
+            new MBeanAttributeInfo("Count", "long", null, true, false, false),
+            new MBeanAttributeInfo("List", "java.util.List", null, true, false, false)
+        };
+        return new MBeanInfo(className, null, attributes, null, null, null, descriptor);
+    }
+
     @Test
     public void registerNonExistingMBean() {
         Map<String, Object> props = new HashMap<>();
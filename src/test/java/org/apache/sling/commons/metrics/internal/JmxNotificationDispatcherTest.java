@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerNotification;
+import javax.management.ObjectName;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.commons.metrics.MetricsService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JmxNotificationDispatcherTest {
+
+    JmxNotificationDispatcher dispatcher = new JmxNotificationDispatcher();
+
+    @Before
+    public void setup() {
+        // the batches are run by the tests
+        dispatcher.worker = Mockito.mock(ScheduledExecutorService.class);
+    }
+
+    @Test
+    public void testHandleNotification() throws Exception {
+        JmxExporterFactory exporter = new JmxExporterFactory();
+        exporter.dispatcher = dispatcher;
+        exporter.metrics = Mockito.mock(MetricsService.class);
+        exporter.activate(config("test:type=Test"));
+        exporter.server = Mockito.mock(MBeanServer.class);
+        MBeanInfo m = Mockito.mock(MBeanInfo.class);
+        MBeanServerNotification notification = Mockito.mock(MBeanServerNotification.class);
+        Mockito.when(notification.getType()).thenReturn("JMX.mbean.registered");
+        ObjectName objectName = new ObjectName("test:type=Test");
+        Mockito.when(notification.getMBeanName()).thenReturn(objectName);
+        Mockito.when(exporter.server.getMBeanInfo(Mockito.eq(objectName))).thenReturn(m);
+        MBeanAttributeInfo count = new MBeanAttributeInfo("Count", "long", null, true, false, false);
+        Mockito.when(m.getAttributes()).thenReturn(new MBeanAttributeInfo[] {count});
+        dispatcher.handleNotification(notification, null);
+        dispatcher.runBatch();
+
+        // Assert that MBeanInfo attribute methid is called
+        Mockito.verify(m, Mockito.times(1)).getAttributes();
+        Mockito.verify(exporter.metrics).longGauge(Mockito.eq("test.Test.Count"), Mockito.any());
+
+        // the metrics of an unregistered MBean are removed
+        MBeanServerNotification unregistration = Mockito.mock(MBeanServerNotification.class);
+        Mockito.when(unregistration.getType()).thenReturn("JMX.mbean.unregistered");
+        Mockito.when(unregistration.getMBeanName()).thenReturn(objectName);
+        dispatcher.handleNotification(unregistration, null);
+        dispatcher.runBatch();
+        Mockito.verify(exporter.metrics).unregister("test.Test.Count");
+
+        dispatcher.handleNotification(notification, null);
+        dispatcher.runBatch();
+        Mockito.verify(m, Mockito.times(2)).getAttributes();
+
+        // and those of all MBeans on deactivation
+        exporter.deactivate();
+        Mockito.verify(exporter.metrics, Mockito.times(2)).unregister("test.Test.Count");
+        dispatcher.handleNotification(notification, null);
+        dispatcher.runBatch();
+        Mockito.verify(m, Mockito.times(2)).getAttributes();
+    }
+
+    @Test
+    public void matchesObjectNamePatterns() throws Exception {
+        Recorder received = new Recorder();
+        dispatcher.subscribe(received, patterns("test:type=Test,*", "other:name=Fixed"));
+
+        dispatcher.dispatch(new ObjectName("test:type=Test,name=A"), true);
+        dispatcher.dispatch(new ObjectName("test:type=Other"), true);
+        dispatcher.dispatch(new ObjectName("other:name=Fixed"), true);
+        dispatcher.dispatch(new ObjectName("other:name=Fixed,type=More"), true);
+        dispatcher.dispatch(new ObjectName("unknown:type=Test"), true);
+        dispatcher.runBatch();
+
+        assertEquals(patterns("test:type=Test,name=A", "other:name=Fixed"), received.registered);
+    }
+
+    @Test
+    public void domainPatterns() throws Exception {
+        Recorder wildcard = new Recorder();
+        Recorder fixed = new Recorder();
+        dispatcher.subscribe(wildcard, patterns("*:type=Test", "te?t:name=A"));
+        dispatcher.subscribe(fixed, patterns("test:*"));
+
+        dispatcher.dispatch(new ObjectName("test:type=Test"), true);
+        dispatcher.dispatch(new ObjectName("tent:name=A"), true);
+        dispatcher.dispatch(new ObjectName("unknown:type=Test"), true);
+        dispatcher.dispatch(new ObjectName("unknown:type=Other"), true);
+        dispatcher.runBatch();
+
+        assertEquals(patterns("test:type=Test", "tent:name=A", "unknown:type=Test"), wildcard.registered);
+        assertEquals(patterns("test:type=Test"), fixed.registered);
+    }
+
+    @Test
+    public void notifiesSubscriberOncePerBatch() throws Exception {
+        Recorder received = new Recorder();
+        dispatcher.subscribe(received, patterns("test:*", "test:type=Test", "*:type=Test"));
+
+        dispatcher.dispatch(new ObjectName("test:type=Test"), true);
+        dispatcher.dispatch(new ObjectName("test:type=Test"), true);
+        dispatcher.enqueue(received, Collections.emptyList(), true);
+        dispatcher.runBatch();
+
+        assertEquals(1, received.registered.size());
+    }
+
+    @Test
+    public void latestStatePerBatch() throws Exception {
+        Recorder received = new Recorder();
+        dispatcher.subscribe(received, patterns("test:*"));
+
+        dispatcher.dispatch(new ObjectName("test:type=A"), true);
+        dispatcher.dispatch(new ObjectName("test:type=B"), true);
+        dispatcher.dispatch(new ObjectName("test:type=A"), false);
+        dispatcher.dispatch(new ObjectName("test:type=C"), false);
+        dispatcher.dispatch(new ObjectName("test:type=C"), true);
+        dispatcher.runBatch();
+
+        assertEquals(patterns("test:type=B", "test:type=C"), received.registered);
+        assertEquals(patterns("test:type=A"), received.unregistered);
+    }
+
+    @Test
+    public void batchesRunInBackground() throws Exception {
+        ScheduledExecutorService worker = dispatcher.worker;
+        Recorder received = new Recorder();
+        dispatcher.subscribe(received, patterns("test:*"));
+
+        dispatcher.dispatch(new ObjectName("test:type=A"), true);
+        dispatcher.dispatch(new ObjectName("test:type=B"), false);
+        Mockito.verify(worker, Mockito.times(1))
+                .schedule(
+                        Mockito.any(Runnable.class),
+                        Mockito.eq(JmxNotificationDispatcher.BATCH_DELAY_MILLIS),
+                        Mockito.eq(TimeUnit.MILLISECONDS));
+        assertTrue(received.registered.isEmpty());
+        assertTrue(received.unregistered.isEmpty());
+
+        dispatcher.runBatch();
+        assertEquals(patterns("test:type=A"), received.registered);
+        assertEquals(patterns("test:type=B"), received.unregistered);
+
+        dispatcher.dispatch(new ObjectName("test:type=C"), true);
+        Mockito.verify(worker, Mockito.times(2))
+                .schedule(
+                        Mockito.any(Runnable.class),
+                        Mockito.eq(JmxNotificationDispatcher.BATCH_DELAY_MILLIS),
+                        Mockito.eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void subscribeReplacesAndUnsubscribeRemoves() throws Exception {
+        Recorder received = new Recorder();
+        dispatcher.subscribe(received, patterns("test:*"));
+        dispatcher.subscribe(received, patterns("other:*"));
+
+        dispatcher.dispatch(new ObjectName("test:type=Test"), true);
+        dispatcher.dispatch(new ObjectName("other:type=Test"), true);
+        dispatcher.runBatch();
+        assertEquals(patterns("other:type=Test"), received.registered);
+
+        // names queued before unsubscribing are dropped as well
+        dispatcher.dispatch(new ObjectName("other:type=Test"), false);
+        dispatcher.unsubscribe(received);
+        dispatcher.dispatch(new ObjectName("other:type=Test"), true);
+        dispatcher.runBatch();
+        assertEquals(1, received.registered.size());
+        assertTrue(received.unregistered.isEmpty());
+    }
+
+    @Test
+    public void failingSubscriberDoesNotAffectOthers() throws Exception {
+        Recorder received = new Recorder();
+        dispatcher.subscribe(
+                new Recorder() {
+                    @Override
+                    public void registered(ObjectName name) {
+                        throw new IllegalStateException();
+                    }
+                },
+                patterns("test:*"));
+        dispatcher.subscribe(received, patterns("test:*"));
+
+        dispatcher.dispatch(new ObjectName("test:type=Test"), true);
+        dispatcher.runBatch();
+
+        assertTrue(received.registered.contains(new ObjectName("test:type=Test")));
+    }
+
+    @Test
+    public void claims() {
+        List<String> calls = new ArrayList<>();
+        Object first = new Object();
+        Object second = new Object();
+        Object third = new Object();
+        dispatcher.claim("m", first, () -> calls.add("register 1"), () -> calls.add("unregister 1"));
+        dispatcher.claim("m", second, () -> calls.add("register 2"), () -> calls.add("unregister 2"));
+        dispatcher.claim("m", third, () -> calls.add("register 3"), () -> calls.add("unregister 3"));
+        assertEquals(Collections.singletonList("register 1"), calls);
+
+        // releasing a claim which did not register the metric keeps it
+        dispatcher.release("m", second);
+        assertEquals(Collections.singletonList("register 1"), calls);
+
+        // the metric is handed over to the next claim
+        dispatcher.release("m", first);
+        assertEquals(Arrays.asList("register 1", "unregister 1", "register 3"), calls);
+
+        dispatcher.release("m", third);
+        dispatcher.release("m", third);
+        assertEquals(Arrays.asList("register 1", "unregister 1", "register 3", "unregister 3"), calls);
+
+        dispatcher.claim("m", first, () -> calls.add("register 1"), () -> calls.add("unregister 1"));
+        assertEquals("register 1", calls.get(calls.size() - 1));
+    }
+
+    private static List<ObjectName> patterns(String... names) throws Exception {
+        List<ObjectName> result = new ArrayList<>();
+        for (String name : names) {
+            result.add(new ObjectName(name));
+        }
+        return result;
+    }
+
+    private static JmxExporterFactory.Config config(String... objectnames) {
+        JmxExporterFactory.Config config = Mockito.mock(JmxExporterFactory.Config.class);
+        Mockito.when(config.objectnames()).thenReturn(objectnames);
+        return config;
+    }
+
+    private static class Recorder implements JmxNotificationDispatcher.Subscriber {
+        final List<ObjectName> registered = new ArrayList<>();
+        final List<ObjectName> unregistered = new ArrayList<>();
+
+        @Override
+        public void registered(ObjectName name) {
+            registered.add(name);
+        }
+
+        @Override
+        public void unregistered(ObjectName name) {
+            unregistered.add(name);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.felix.utils.json.JSONParser;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class JsonMetricsServletTest {
+    private final MetricRegistry registry = new MetricRegistry();
+    private final VirtualClock clock = new VirtualClock();
+    private final SnapshotCache snapshotCache = new SnapshotCache(clock);
+    private final JsonMetricsServlet servlet = new JsonMetricsServlet(registry, snapshotCache);
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void filterAndPages() throws Exception {
+        registry.counter("foo.a").inc();
+        registry.counter("foo.b").inc();
+        registry.counter("foo.c").inc();
+        registry.meter("foo.meter").mark();
+        registry.counter("bar.a").inc();
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getParameter("prefix")).thenReturn("foo.");
+        when(req.getParameterValues("type")).thenReturn(new String[] {"counter"});
+        when(req.getParameter("limit")).thenReturn("2");
+
+        Map<String, Object> json = get(req, mockResponse());
+        assertEquals(2, ((Map<String, Object>) json.get("counters")).size());
+        assertTrue(((Map<String, Object>) json.get("counters")).containsKey("foo.a"));
+        assertFalse(json.containsKey("meters"));
+        assertEquals("foo.b", json.get("next"));
+
+        when(req.getParameter("after")).thenReturn("foo.b");
+        json = get(req, mockResponse());
+        assertEquals(1, ((Map<String, Object>) json.get("counters")).size());
+        assertTrue(((Map<String, Object>) json.get("counters")).containsKey("foo.c"));
+        assertFalse(json.containsKey("next"));
+    }
+
+    @Test
+    public void notModified() throws Exception {
+        registry.counter("foo").inc();
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mockResponse();
+        servlet.doGet(req, resp);
+
+        ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+        verify(resp).setHeader(eq("ETag"), etag.capture());
+
+        when(req.getHeader("If-None-Match")).thenReturn(etag.getValue());
+        resp = mockResponse();
+        servlet.doGet(req, resp);
+        verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(resp, never()).getOutputStream();
+
+        registry.counter("foo").inc();
+        resp = mockResponse();
+        servlet.doGet(req, resp);
+        verify(resp).setStatus(HttpServletResponse.SC_OK);
+        assertNotEquals(etag.getValue(), JsonMetricsServlet.etag(registry.getMetrics(), null, false, 0));
+    }
+
+    @Test
+    public void etagChangesWithPeriodForRates() throws Exception {
+        registry.counter("foo").inc();
+        String counters = JsonMetricsServlet.etag(registry.getMetrics(), null, false, 0);
+        assertEquals(counters, JsonMetricsServlet.etag(registry.getMetrics(), null, false, 1));
+
+        registry.meter("bar").mark();
+        String meters = JsonMetricsServlet.etag(registry.getMetrics(), null, false, 0);
+        assertNotEquals(meters, JsonMetricsServlet.etag(registry.getMetrics(), null, false, 1));
+
+        snapshotCache.setTtl(10, TimeUnit.SECONDS);
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mockResponse();
+        servlet.doGet(req, resp);
+        ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+        verify(resp).setHeader(eq("ETag"), etag.capture());
+        when(req.getHeader("If-None-Match")).thenReturn(etag.getValue());
+
+        clock.tick += TimeUnit.SECONDS.toNanos(5);
+        resp = mockResponse();
+        servlet.doGet(req, resp);
+        verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+        clock.tick += TimeUnit.SECONDS.toNanos(5);
+        resp = mockResponse();
+        servlet.doGet(req, resp);
+        verify(resp).setStatus(HttpServletResponse.SC_OK);
+    }
+
+    @Test
+    public void gaugesEvaluatedOnce() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        registry.register("calls", (Gauge<Integer>) calls::incrementAndGet);
+
+        Map<String, Object> json = get(mock(HttpServletRequest.class), mockResponse());
+        assertEquals(1, calls.get());
+        assertEquals(1L, ((Map<?, ?>) ((Map<?, ?>) json.get("gauges")).get("calls")).get("value"));
+    }
+
+    @Test
+    public void lastInterval() throws Exception {
+        Histogram histogram = registry.register(
+                "sizes", new Histogram(new IntervalReservoir(2, TimeUnit.HOURS.toNanos(1), 60, 3, clock)));
+        histogram.update(10);
+        clock.tick += TimeUnit.SECONDS.toNanos(60);
+        histogram.update(1000);
+        clock.tick += TimeUnit.SECONDS.toNanos(60);
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        assertEquals(10L, histogramMin(get(req, mockResponse()), "sizes"));
+
+        when(req.getParameter("lastInterval")).thenReturn("true");
+        assertTrue(histogramMin(get(req, mockResponse()), "sizes") > 500);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long histogramMin(Map<String, Object> json, String name) {
+        Map<String, Object> histograms = (Map<String, Object>) json.get("histograms");
+        return ((Number) ((Map<String, Object>) histograms.get(name)).get("min")).longValue();
+    }
+
+    @Test
+    public void badRequest() throws Exception {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getParameter("regex")).thenReturn("[");
+        HttpServletResponse resp = mockResponse();
+        servlet.doGet(req, resp);
+        verify(resp).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+    }
+
+    private static class VirtualClock extends Clock {
+        long tick;
+
+        @Override
+        public long getTick() {
+            return tick;
+        }
+    }
+
+    private Map<String, Object> get(HttpServletRequest req, HttpServletResponse resp) throws Exception {
+        body.reset();
+        servlet.doGet(req, resp);
+        return new JSONParser(new String(body.toByteArray(), StandardCharsets.UTF_8)).getParsed();
+    }
+
+    private HttpServletResponse mockResponse() throws Exception {
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {}
+        });
+        return resp;
+    }
+}
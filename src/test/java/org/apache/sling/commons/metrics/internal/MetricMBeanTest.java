@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.openmbean.CompositeData;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformSnapshot;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+public class MetricMBeanTest {
+    private static final String[] TIMER_ATTRIBUTES = {
+        "Count",
+        "MeanRate",
+        "OneMinuteRate",
+        "FiveMinuteRate",
+        "FifteenMinuteRate",
+        "RateUnit",
+        "Min",
+        "Max",
+        "Mean",
+        "StdDev",
+        "50thPercentile",
+        "75thPercentile",
+        "95thPercentile",
+        "98thPercentile",
+        "99thPercentile",
+        "999thPercentile",
+        "DurationUnit"
+    };
+
+    private final VirtualClock clock = new VirtualClock();
+
+    private final SnapshotCache snapshots = new SnapshotCache(clock);
+
+    private final CountingReservoir reservoir = new CountingReservoir();
+
+    private final MetricMBean timer = MetricMBean.forTimer(new Timer(reservoir), snapshots);
+
+    @Test
+    public void timerAttributes() throws Exception {
+        MBeanAttributeInfo[] infos = timer.getMBeanInfo().getAttributes();
+        String[] names = new String[infos.length];
+        for (int i = 0; i < infos.length; i++) {
+            names[i] = infos[i].getName();
+        }
+        assertArrayEquals(TIMER_ATTRIBUTES, names);
+        assertEquals("milliseconds", timer.getAttribute("DurationUnit"));
+    }
+
+    @Test
+    public void bulkReadUsesSingleSnapshot() throws Exception {
+        AttributeList attributes = timer.getAttributes(TIMER_ATTRIBUTES);
+
+        assertEquals(TIMER_ATTRIBUTES.length, attributes.size());
+        assertEquals(1, reservoir.snapshots);
+    }
+
+    @Test
+    public void snapshotReusedWithinValidity() throws Exception {
+        snapshots.setTtl(1, TimeUnit.SECONDS);
+        timer.getAttribute("Max");
+        timer.getAttribute("99thPercentile");
+        timer.getAttributes(TIMER_ATTRIBUTES);
+        assertEquals(1, reservoir.snapshots);
+
+        clock.tick += TimeUnit.SECONDS.toNanos(1);
+        timer.getAttribute("Max");
+        assertEquals(2, reservoir.snapshots);
+
+        // Attributes not derived from the snapshot do not take one
+        timer.getAttribute("Count");
+        assertEquals(2, reservoir.snapshots);
+    }
+
+    @Test
+    public void counter() throws Exception {
+        Counter counter = new Counter();
+        counter.inc(3);
+        MetricMBean mbean = MetricMBean.forCounter(counter);
+
+        assertEquals(3L, mbean.getAttribute("Count"));
+        AttributeList attributes = mbean.getAttributes(new String[] {"Count", "Unknown"});
+        assertEquals(1, attributes.size());
+        assertEquals(new Attribute("Count", 3L), attributes.get(0));
+    }
+
+    @Test
+    public void openValues() throws Exception {
+        Counter counter = new Counter();
+        counter.inc(3);
+        CompositeData data = (CompositeData) MetricMBean.forCounter(counter).getOpenValue();
+        assertEquals(3L, data.get("Count"));
+
+        Gauge<Object> gauge = () -> 42;
+        assertEquals(42, MetricMBean.forGauge(gauge).getOpenValue());
+        Gauge<Object> other = () -> Collections.singletonList("value");
+        assertEquals("[value]", MetricMBean.forGauge(other).getOpenValue());
+    }
+
+    @Test
+    public void groupInfoWithoutMetrics() throws Exception {
+        MetricRegistry registry = mock(MetricRegistry.class);
+        MetricGroupMBean group = new MetricGroupMBean(registry, snapshots);
+        group.add("foo.timer", false);
+        group.add("foo.gauge", true);
+
+        MBeanAttributeInfo[] infos = group.getMBeanInfo().getAttributes();
+        assertEquals(2, infos.length);
+        assertEquals("foo.gauge", infos[0].getName());
+        assertEquals(Object.class.getName(), infos[0].getType());
+        assertEquals("foo.timer", infos[1].getName());
+        assertEquals(CompositeData.class.getName(), infos[1].getType());
+        verifyNoInteractions(registry);
+    }
+
+    @Test(expected = AttributeNotFoundException.class)
+    public void unknownAttribute() throws Exception {
+        timer.getAttribute("Unknown");
+    }
+
+    private static class CountingReservoir implements Reservoir {
+        int snapshots;
+
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        @Override
+        public void update(long value) {}
+
+        @Override
+        public Snapshot getSnapshot() {
+            snapshots++;
+            return new UniformSnapshot(new long[0]);
+        }
+    }
+
+    private static class VirtualClock extends Clock {
+        long tick;
+
+        @Override
+        public long getTick() {
+            return tick;
+        }
+    }
+}
@@ -22,18 +22,25 @@ import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import javax.management.Query;
 import javax.management.QueryExp;
+import javax.management.openmbean.CompositeData;
+import javax.servlet.Servlet;
 
 import java.lang.management.ManagementFactory;
 import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
-import com.codahale.metrics.JmxReporter;
 import com.codahale.metrics.MetricRegistry;
 import org.apache.sling.commons.metrics.Counter;
+import org.apache.sling.commons.metrics.DoubleGauge;
 import org.apache.sling.commons.metrics.Gauge;
 import org.apache.sling.commons.metrics.Histogram;
+import org.apache.sling.commons.metrics.LongGauge;
 import org.apache.sling.commons.metrics.Meter;
 import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.commons.metrics.SettableDoubleGauge;
+import org.apache.sling.commons.metrics.SettableLongGauge;
 import org.apache.sling.commons.metrics.Timer;
 import org.apache.sling.testing.mock.osgi.MapUtil;
 import org.apache.sling.testing.mock.osgi.MockOsgi;
@@ -46,11 +53,13 @@ import org.osgi.framework.ServiceRegistration;
 import static org.apache.sling.commons.metrics.internal.BundleMetricsMapper.JMX_TYPE_METRICS;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
@@ -138,6 +147,74 @@ public class MetricServiceTest {
         assertSame(gauge, gauge2);
     }
 
+    @Test
+    public void hdrReservoir() throws Exception {
+        MockOsgi.activate(service, context.bundleContext(), "reservoir", "HDR");
+        service.timer("test").update(42, TimeUnit.MILLISECONDS);
+        service.histogram("test2").update(42);
+
+        assertThat(getRegistry().getTimers().get("test").getSnapshot(), instanceOf(HdrSnapshot.class));
+        assertThat(getRegistry().getHistograms().get("test2").getSnapshot(), instanceOf(HdrSnapshot.class));
+    }
+
+    @Test
+    public void reservoirConfigChangeKeepsMetrics() throws Exception {
+        activate();
+        Timer timer = service.timer("test");
+
+        MockOsgi.modified(service, context.bundleContext(), "reservoir", "HDR");
+
+        // Existing metrics are retained, new ones use the changed configuration
+        assertSame(timer, service.timer("test"));
+        service.timer("test2");
+        assertThat(getRegistry().getTimers().get("test2").getSnapshot(), instanceOf(HdrSnapshot.class));
+    }
+
+    @Test
+    public void implementationRules() throws Exception {
+        activate();
+        MetricImplementationRule lite = new MetricImplementationRule();
+        MockOsgi.activate(lite, context.bundleContext(), "names", new String[] {"hot.*"}, "implementation", "LITE");
+        MetricImplementationRule hdr = new MetricImplementationRule();
+        MockOsgi.activate(
+                hdr,
+                context.bundleContext(),
+                "names",
+                new String[] {"hot.hdr"},
+                "implementation",
+                "HDR",
+                "ranking",
+                10);
+        service.bindRule(lite);
+        service.bindRule(hdr);
+
+        service.timer("hot.timer").update(42, TimeUnit.MILLISECONDS);
+        assertEquals(1, getRegistry().getTimers().get("hot.timer").getCount());
+        assertEquals(0, getRegistry().getTimers().get("hot.timer").getSnapshot().size());
+
+        // Higher ranking rule wins, metrics not matching any rule use the service configuration
+        service.histogram("hot.hdr").update(42);
+        assertThat(getRegistry().getHistograms().get("hot.hdr").getSnapshot(), instanceOf(HdrSnapshot.class));
+        service.timer("cold").update(42, TimeUnit.MILLISECONDS);
+        assertEquals(1, getRegistry().getTimers().get("cold").getSnapshot().size());
+
+        service.unbindRule(lite);
+        service.timer("hot.timer2").update(42, TimeUnit.MILLISECONDS);
+        assertEquals(
+                1, getRegistry().getTimers().get("hot.timer2").getSnapshot().size());
+    }
+
+    @Test
+    public void snapshotsSharedByReaders() throws Exception {
+        activate();
+        service.timer("test").update(42, TimeUnit.MILLISECONDS);
+        com.codahale.metrics.Timer timer = getRegistry().getTimers().get("test");
+        assertSame(timer.getSnapshot(), timer.getSnapshot());
+
+        MockOsgi.modified(service, context.bundleContext(), "snapshotCacheTtl", 0L);
+        assertNotSame(timer.getSnapshot(), timer.getSnapshot());
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void sameNameDifferentTypeMetric() throws Exception {
         activate();
@@ -151,7 +228,7 @@ public class MetricServiceTest {
         activate();
         Meter meter = service.meter("test");
         assertNotNull(meter);
-        QueryExp q = Query.isInstanceOf(Query.value(JmxReporter.JmxMeterMBean.class.getName()));
+        QueryExp q = Query.isInstanceOf(Query.value(MetricMBean.class.getName()));
         Set<ObjectName> names =
                 server.queryNames(new ObjectName("org.apache.sling:name=*,type=" + JMX_TYPE_METRICS), q);
         assertThat(names, is(not(empty())));
@@ -162,6 +239,32 @@ public class MetricServiceTest {
         assertThat(names, is(empty()));
     }
 
+    @Test
+    public void jmxAggregatedRegistration() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        MockOsgi.activate(service, context.bundleContext(), "jmxAggregated", true, "jmxGroups", new String[] {"foo."});
+        service.meter("foo.a").mark(3);
+        service.timer("foo.b");
+        service.counter("bar").increment();
+
+        ObjectName groups = new ObjectName("org.apache.sling:type=" + JMX_TYPE_METRICS + ",group=*");
+        assertEquals(2, server.queryNames(groups, null).size());
+        assertThat(server.queryNames(new ObjectName("org.apache.sling:name=*,*"), null), is(empty()));
+
+        ObjectName foo = new ObjectName("org.apache.sling:type=" + JMX_TYPE_METRICS + ",group=foo.");
+        assertEquals(2, server.getMBeanInfo(foo).getAttributes().length);
+        CompositeData meter = (CompositeData) server.getAttribute(foo, "foo.a");
+        assertEquals(3L, meter.get("Count"));
+
+        // Switching back registers one MBean per metric
+        MockOsgi.modified(service, context.bundleContext(), "jmxAggregated", false);
+        assertThat(server.queryNames(groups, null), is(empty()));
+        assertEquals(
+                3,
+                server.queryNames(new ObjectName("org.apache.sling:name=*,*"), null)
+                        .size());
+    }
+
     @Test
     public void gaugeRegistrationViaWhiteboard() throws Exception {
         activate();
@@ -175,6 +278,75 @@ public class MetricServiceTest {
         assertFalse(getRegistry().getGauges().containsKey("foo"));
     }
 
+    @Test
+    public void primitiveGauges() throws Exception {
+        activate();
+        SettableLongGauge size = new SettableLongGauge(3);
+        LongGauge longGauge = service.longGauge("size", size);
+        SettableDoubleGauge ratio = new SettableDoubleGauge();
+        DoubleGauge doubleGauge = service.doubleGauge("ratio", ratio);
+
+        // Registered as is, so that reporters can read the primitive values
+        com.codahale.metrics.Gauge<?> registered = getRegistry().getGauges().get("size");
+        assertSame(longGauge, registered);
+        assertEquals(3L, ((LongGauge) registered).getLong());
+        size.set(42);
+        assertEquals(42L, ((LongGauge) registered).getLong());
+        assertEquals(42L, registered.getValue());
+
+        ratio.set(0.5);
+        assertEquals(0.5, ((DoubleGauge) getRegistry().getGauges().get("ratio")).getDouble(), 0);
+        assertEquals(0.5, doubleGauge.getDouble(), 0);
+
+        assertSame(longGauge, service.longGauge("size", () -> 43L));
+        assertSame(longGauge, service.gauge("size", () -> 43L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void primitiveGaugeDifferentType() throws Exception {
+        activate();
+        service.gauge("gauge", () -> 42L);
+        service.longGauge("gauge", () -> 42L);
+    }
+
+    @Test
+    public void asyncGauge() throws Exception {
+        activate();
+        CountDownLatch refreshed = new CountDownLatch(1);
+        Gauge<Long> gauge = service.gauge(
+                "gauge",
+                () -> {
+                    refreshed.countDown();
+                    return 42L;
+                },
+                1,
+                TimeUnit.MINUTES);
+        assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+        assertSame(gauge, service.gauge("gauge", () -> 43L, 1, TimeUnit.MINUTES));
+        waitForValue(42L, getRegistry().getGauges().get("gauge"));
+        assertTrue(getRegistry().getGauges().containsKey(AsyncGaugeEvaluator.STALE));
+
+        service.unregister("gauge");
+        assertFalse(getRegistry().getGauges().containsKey("gauge"));
+    }
+
+    @Test
+    public void asyncGaugeViaWhiteboard() throws Exception {
+        activate();
+        TestGauge testGauge = new TestGauge(42);
+        ServiceRegistration<Gauge> reg = context.bundleContext()
+                .registerService(
+                        Gauge.class, testGauge, MapUtil.toDictionary(Gauge.NAME, "foo", Gauge.REFRESH_INTERVAL, 10L));
+
+        com.codahale.metrics.Gauge<?> gauge = getRegistry().getGauges().get("foo");
+        waitForValue(42, gauge);
+        testGauge.value = 43;
+        waitForValue(43, gauge);
+
+        reg.unregister();
+        assertFalse(getRegistry().getGauges().containsKey("foo"));
+    }
+
     @Test
     public void unregisterMetric() {
         activate();
@@ -185,6 +357,33 @@ public class MetricServiceTest {
         assertFalse(getRegistry().getGauges().containsKey("gauge"));
     }
 
+    private static void waitForValue(Object expected, com.codahale.metrics.Gauge<?> gauge) throws Exception {
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (!expected.equals(gauge.getValue())) {
+            assertTrue("Timed out waiting for " + expected, System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void servletRegistration() throws Exception {
+        activate();
+        assertEquals(0, context.getServices(Servlet.class, null).length);
+
+        MockOsgi.modified(service, context.bundleContext(), "prometheusPath", "/metrics", "jsonPath", "/metrics.json");
+        assertEquals(2, context.getServices(Servlet.class, null).length);
+        assertEquals(
+                1, context.getServices(Servlet.class, "(osgi.http.whiteboard.servlet.pattern=/metrics.json)").length);
+
+        MockOsgi.modified(service, context.bundleContext(), "jsonPath", "/metrics.json");
+        Servlet[] servlets = context.getServices(Servlet.class, null);
+        assertEquals(1, servlets.length);
+        assertThat(servlets[0], instanceOf(JsonMetricsServlet.class));
+
+        MockOsgi.deactivate(service, context.bundleContext());
+        assertEquals(0, context.getServices(Servlet.class, null).length);
+    }
+
     private MetricRegistry getRegistry() {
         return context.getService(MetricRegistry.class);
     }
@@ -194,7 +393,7 @@ public class MetricServiceTest {
     }
 
     private static class TestGauge implements Gauge {
-        int value;
+        volatile int value;
 
         public TestGauge(int value) {
             this.value = value;
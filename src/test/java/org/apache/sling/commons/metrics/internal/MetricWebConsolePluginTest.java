@@ -19,15 +19,18 @@
 package org.apache.sling.commons.metrics.internal;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 import com.codahale.metrics.JvmAttributeGaugeSet;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
 import org.apache.felix.inventory.Format;
 import org.apache.felix.utils.json.JSONParser;
@@ -44,13 +47,18 @@ import org.mockito.junit.MockitoJUnitRunner;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
 public class MetricWebConsolePluginTest {
@@ -104,6 +112,41 @@ public class MetricWebConsolePluginTest {
         assertTrue(consolidated.getMeters().containsKey("bar:test1"));
     }
 
+    @Test
+    public void consolidatedView() throws Exception {
+        MetricRegistry reg1 = new MetricRegistry();
+        reg1.meter("test1");
+        context.registerService(MetricRegistry.class, reg1, regProps("foo"));
+        MetricRegistry reg2 = new MetricRegistry();
+        reg2.counter("foo:test1");
+        reg2.counter("test2");
+        context.registerService(MetricRegistry.class, reg2);
+
+        activatePlugin();
+
+        MetricRegistry consolidated = plugin.getConsolidatedRegistry();
+        Map<String, Metric> metrics = consolidated.getMetrics();
+        assertEquals(2, metrics.size());
+
+        // The view reflects later changes of the registries
+        reg1.timer("test3");
+        assertEquals(3, metrics.size());
+        assertSame(reg1.timer("test3"), consolidated.getTimers().get("foo:test3"));
+        assertSame(reg1.timer("test3"), metrics.get("foo:test3"));
+
+        // The counter is hidden by the meter with the same name
+        assertTrue(consolidated.getMeters().containsKey("foo:test1"));
+        assertFalse(consolidated.getCounters().containsKey("foo:test1"));
+        assertTrue(consolidated.getCounters().containsKey("test2"));
+
+        try {
+            consolidated.counter("test4");
+            fail("The consolidated registry is read-only");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+    }
+
     @Test
     public void inventory_text() throws Exception {
         MetricRegistry reg1 = new MetricRegistry();
@@ -165,6 +208,128 @@ public class MetricWebConsolePluginTest {
         }
     }
 
+    @Test
+    public void searchAndPaging() throws Exception {
+        MetricRegistry reg1 = new MetricRegistry();
+        for (int i = 0; i < 5; i++) {
+            reg1.counter("match.c" + i).inc(i);
+        }
+        reg1.counter("other").inc(100);
+        reg1.meter("match.meter");
+        context.registerService(MetricRegistry.class, reg1, regProps("foo"));
+
+        activatePlugin();
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getParameter("q")).thenReturn("MATCH");
+        when(request.getParameter("type")).thenReturn("counters");
+        when(request.getParameter("page")).thenReturn("1");
+        when(request.getParameter("size")).thenReturn("2");
+        when(request.getParameter("sort")).thenReturn("count");
+        when(request.getParameter("order")).thenReturn("desc");
+        plugin.doGet(request, context.response());
+
+        String html = context.response().getOutputAsString();
+        assertThat(html, containsString("<td>foo:match.c2</td>"));
+        assertThat(html, containsString("<td>foo:match.c1</td>"));
+        assertThat(html, not(containsString("match.c4")));
+        assertThat(html, not(containsString("match.c0")));
+        assertThat(html, not(containsString("foo:other")));
+        assertThat(html, not(containsString("data-meters")));
+        assertThat(html, containsString("Showing 3-4 of 5"));
+        assertThat(html, containsString("page=2"));
+    }
+
+    @Test
+    public void pageBeyondTheEnd() throws Exception {
+        MetricRegistry reg1 = new MetricRegistry();
+        reg1.counter("test1").inc();
+        context.registerService(MetricRegistry.class, reg1, regProps("foo"));
+
+        activatePlugin();
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getParameter("type")).thenReturn("counters");
+        when(request.getParameter("page")).thenReturn(String.valueOf(Integer.MAX_VALUE));
+        when(request.getParameter("size")).thenReturn("2");
+        plugin.doGet(request, context.response());
+
+        String html = context.response().getOutputAsString();
+        assertThat(html, not(containsString("foo:test1")));
+        assertThat(html, not(containsString("Showing")));
+    }
+
+    @Test
+    public void liveUpdates() throws Exception {
+        MetricRegistry reg1 = new MetricRegistry();
+        reg1.counter("test1").inc();
+        reg1.counter("test2").inc();
+        reg1.meter("test3").mark();
+        context.registerService(MetricRegistry.class, reg1, regProps("foo"));
+
+        activatePlugin();
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getPathInfo()).thenReturn("/slingmetrics/stream");
+        when(request.getParameter("interval")).thenReturn("1");
+        StringWriter sw = new StringWriter();
+        // Changes a counter after the first tick, and disconnects after the second
+        PrintWriter pw = new PrintWriter(sw) {
+            private int ticks;
+
+            @Override
+            public boolean checkError() {
+                if (++ticks == 1) {
+                    assertThat(sw.toString(), containsString("data-name='foo:test1'"));
+                    assertThat(sw.toString(), containsString("data-name='foo:test3'"));
+                    sw.getBuffer().setLength(0);
+                    reg1.counter("test2").inc();
+                }
+                return ticks > 1;
+            }
+        };
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getWriter()).thenReturn(pw);
+
+        plugin.doGet(request, response);
+
+        verify(response).setContentType("text/event-stream");
+        String events = sw.toString();
+        assertThat(events, containsString("event: row\ndata: <tr"));
+        assertThat(events, containsString("data-name='foo:test2'><td>foo:test2</td><td>2</td></tr>"));
+        assertThat(events, not(containsString("test1")));
+        assertThat(events, not(containsString("test3")));
+        assertEquals(0, plugin.streams.get());
+    }
+
+    @Test
+    public void limitedStreams() throws Exception {
+        activatePlugin();
+        plugin.streams.set(MetricWebConsolePlugin.MAX_STREAMS);
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getPathInfo()).thenReturn("/slingmetrics/stream");
+        when(request.getParameter("interval")).thenReturn("2");
+        StringWriter sw = new StringWriter();
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getWriter()).thenReturn(new PrintWriter(sw));
+
+        plugin.doGet(request, response);
+
+        assertEquals("retry: 2000\n\n", sw.toString());
+        assertEquals(MetricWebConsolePlugin.MAX_STREAMS, plugin.streams.get());
+    }
+
+    @Test
+    public void fixedDecimals() {
+        double[] values = {0, 1.5, -2.25, 0.0000004, 123456.789012, 0.5e-6, -0.0000001, Double.NaN, 1e15};
+        for (double value : values) {
+            StringBuilder sb = new StringBuilder();
+            MetricWebConsolePlugin.appendFixed(sb, value);
+            assertEquals(String.format(Locale.ROOT, "%f", value), sb.toString());
+        }
+    }
+
     private void assertTable(String name, HtmlPage page) {
         HtmlTable table = page.getHtmlElementById(name);
         assertNotNull(table);
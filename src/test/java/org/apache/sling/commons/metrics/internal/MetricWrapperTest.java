@@ -121,6 +121,28 @@ public class MetricWrapperTest {
         assertEquals(TimeUnit.SECONDS.toNanos(314), time.getSnapshot().getMax());
     }
 
+    @Test
+    public void timerStartStop() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        Timer time = new Timer(new ExponentiallyDecayingReservoir(), clock);
+        TimerImpl timerStats = new TimerImpl(time, clock);
+
+        long start = timerStats.start();
+        clock.tick = TimeUnit.SECONDS.toNanos(42);
+        assertEquals(TimeUnit.SECONDS.toNanos(42), timerStats.stop(start));
+        assertEquals(1, time.getCount());
+        assertEquals(TimeUnit.SECONDS.toNanos(42), time.getSnapshot().getMax());
+
+        timerStats.record(() -> {
+            clock.tick += TimeUnit.SECONDS.toNanos(100);
+        });
+        assertEquals(2, time.getCount());
+        assertEquals(TimeUnit.SECONDS.toNanos(100), time.getSnapshot().getMax());
+
+        assertEquals("result", timerStats.record(() -> "result"));
+        assertEquals(3, time.getCount());
+    }
+
     private static class VirtualClock extends com.codahale.metrics.Clock {
         long tick;
 
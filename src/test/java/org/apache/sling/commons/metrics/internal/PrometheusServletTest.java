@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.testing.mock.osgi.MockBundle;
+import org.apache.sling.testing.mock.osgi.junit.OsgiContext;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PrometheusServletTest {
+    @Rule
+    public final OsgiContext context = new OsgiContext();
+
+    private final MetricsServiceImpl serviceImpl = new MetricsServiceImpl();
+    private final MetricRegistry registry = serviceImpl.getRegistry();
+    private final BundleMetricsMapper mapper = new BundleMetricsMapper(serviceImpl, registry);
+    private final PrometheusServlet servlet = new PrometheusServlet(registry, mapper, new double[] {0.5, 0.99});
+
+    @Test
+    public void textFormat() throws Exception {
+        MockBundle bundle = new MockBundle(context.bundleContext());
+        bundle.setSymbolicName("org.apache.sling.foo");
+        mapper.addMapping("foo.requests", bundle);
+
+        registry.counter("foo.requests").inc(3);
+        registry.meter("bar-meter").mark(2);
+        registry.histogram("bar.sizes").update(100);
+        registry.timer("bar.time").update(2, TimeUnit.SECONDS);
+        registry.register("bar.up", (com.codahale.metrics.Gauge<Boolean>) () -> true);
+        registry.register("bar.text", (com.codahale.metrics.Gauge<String>) () -> "text");
+
+        String text = write(false);
+        assertThat(text, containsString("# TYPE foo_requests gauge\n"));
+        assertThat(text, containsString("foo_requests{bundle=\"org.apache.sling.foo\"} 3\n"));
+        assertThat(text, containsString("# TYPE bar_meter_total counter\nbar_meter_total 2\n"));
+        assertThat(text, containsString("# TYPE bar_sizes summary\n"));
+        assertThat(text, containsString("bar_sizes{quantile=\"0.5\"} 100.0\n"));
+        assertThat(text, containsString("bar_sizes_sum 100.0\nbar_sizes_count 1\n"));
+        assertThat(text, containsString("bar_time{quantile=\"0.99\"} 2.0\n"));
+        assertThat(text, containsString("bar_up 1.0\n"));
+        assertThat(text, not(containsString("bar_text")));
+        assertThat(text, not(containsString("# EOF")));
+
+        String openMetrics = write(true);
+        assertThat(openMetrics, containsString("# TYPE bar_meter counter\nbar_meter_total 2\n"));
+        assertThat(openMetrics, endsWith("# EOF\n"));
+    }
+
+    @Test
+    public void collidingNames() throws Exception {
+        registry.counter("a.b").inc(1);
+        registry.counter("a_b").inc(2);
+        registry.counter("c_count").inc(3);
+        registry.histogram("c").update(1);
+
+        // whichever metric comes first is exported
+        String text = write(false);
+        assertEquals(1, StringUtils.countMatches(text, "# TYPE a_b "));
+        assertEquals(1, StringUtils.countMatches("\n" + text, "\na_b "));
+        assertEquals(1, StringUtils.countMatches("\n" + text, "\nc_count "));
+    }
+
+    @Test
+    public void failingGauge() throws Exception {
+        registry.counter("before").inc();
+        registry.register("failing", (com.codahale.metrics.Gauge<Long>) () -> {
+            throw new IllegalStateException();
+        });
+        registry.counter("after").inc();
+
+        String text = write(true);
+        assertThat(text, not(containsString("failing")));
+        assertThat(text, containsString("# TYPE before gauge\nbefore 1\n"));
+        assertThat(text, containsString("# TYPE after gauge\nafter 1\n"));
+        assertThat(text, endsWith("# EOF\n"));
+    }
+
+    @Test
+    public void names() {
+        assertEquals("foo_bar:baz_1", PrometheusServlet.sanitize("foo.bar:baz-1"));
+        assertEquals("_1foo", PrometheusServlet.sanitize("1foo"));
+        assertEquals("a\\\"b\\\\c\\n", PrometheusServlet.escape("a\"b\\c\n"));
+        assertEquals("+Inf", PrometheusServlet.format(Double.POSITIVE_INFINITY));
+    }
+
+    @Test
+    public void gzip() throws Exception {
+        registry.counter("foo").inc();
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        when(resp.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {}
+        });
+
+        servlet.doGet(req, resp);
+
+        verify(resp).setHeader("Content-Encoding", "gzip");
+        verify(resp).setContentType(PrometheusServlet.CONTENT_TYPE_PROMETHEUS);
+        String text = IOUtils.toString(
+                new GZIPInputStream(new ByteArrayInputStream(body.toByteArray())), StandardCharsets.UTF_8);
+        assertEquals("# TYPE foo gauge\nfoo 1\n", text);
+    }
+
+    @Test
+    public void acceptEncoding() {
+        assertTrue(PrometheusServlet.acceptsGzip("gzip"));
+        assertTrue(PrometheusServlet.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertTrue(PrometheusServlet.acceptsGzip("br, *"));
+        assertFalse(PrometheusServlet.acceptsGzip(null));
+        assertFalse(PrometheusServlet.acceptsGzip("identity"));
+        assertFalse(PrometheusServlet.acceptsGzip("gzip;q=0"));
+        assertFalse(PrometheusServlet.acceptsGzip("gzip; q=0.000, deflate"));
+        assertFalse(PrometheusServlet.acceptsGzip("*;q=0"));
+        assertFalse(PrometheusServlet.acceptsGzip("gzip;q=0, *"));
+        assertFalse(PrometheusServlet.acceptsGzip("gzipped"));
+    }
+
+    private String write(boolean openMetrics) throws Exception {
+        StringWriter sw = new StringWriter();
+        servlet.write(sw, openMetrics);
+        return sw.toString();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.commons.metrics.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformSnapshot;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class SnapshotCacheTest {
+    private final VirtualClock clock = new VirtualClock();
+
+    private final SnapshotCache cache = new SnapshotCache(clock);
+
+    private final CountingReservoir delegate = new CountingReservoir();
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        Reservoir reservoir = cache.wrap(delegate);
+        reservoir.update(42);
+
+        assertNotSame(reservoir.getSnapshot(), reservoir.getSnapshot());
+        assertEquals(1, reservoir.size());
+        assertEquals(2, delegate.snapshots);
+    }
+
+    @Test
+    public void snapshotSharedWithinTtl() throws Exception {
+        cache.setTtl(1, TimeUnit.SECONDS);
+        Reservoir reservoir = cache.wrap(delegate);
+
+        Snapshot snapshot = reservoir.getSnapshot();
+        reservoir.update(42);
+        clock.tick += TimeUnit.MILLISECONDS.toNanos(999);
+        assertSame(snapshot, reservoir.getSnapshot());
+        assertEquals(1, delegate.snapshots);
+
+        clock.tick += TimeUnit.MILLISECONDS.toNanos(1);
+        assertEquals(1, reservoir.getSnapshot().size());
+        assertEquals(2, delegate.snapshots);
+    }
+
+    @Test
+    public void ttlChangeAppliesToExistingReservoirs() throws Exception {
+        cache.setTtl(1, TimeUnit.MINUTES);
+        Reservoir reservoir = cache.wrap(delegate);
+        Snapshot snapshot = reservoir.getSnapshot();
+
+        cache.setTtl(0, TimeUnit.MINUTES);
+        assertNotSame(snapshot, reservoir.getSnapshot());
+    }
+
+    @Test
+    public void cachedMetricsNotWrappedAgain() throws Exception {
+        cache.setTtl(1, TimeUnit.SECONDS);
+        Histogram cached = cache.markCached(new Histogram(cache.wrap(delegate)));
+        Histogram other = new Histogram(new CountingReservoir());
+
+        assertSame(cached, cache.wrap((Sampling) cached));
+        assertNotSame(other, cache.wrap((Sampling) other));
+
+        // a snapshot is never served for longer than the time to live
+        Sampling sampling = cache.wrap((Sampling) cached);
+        Snapshot snapshot = sampling.getSnapshot();
+        clock.tick += TimeUnit.SECONDS.toNanos(1);
+        assertNotSame(snapshot, sampling.getSnapshot());
+    }
+
+    private static class CountingReservoir implements Reservoir {
+        long value = -1;
+        int snapshots;
+
+        @Override
+        public int size() {
+            return value < 0 ? 0 : 1;
+        }
+
+        @Override
+        public void update(long value) {
+            this.value = value;
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            snapshots++;
+            return new UniformSnapshot(value < 0 ? new long[0] : new long[] {value});
+        }
+    }
+
+    private static class VirtualClock extends Clock {
+        long tick;
+
+        @Override
+        public long getTick() {
+            return tick;
+        }
+    }
+}
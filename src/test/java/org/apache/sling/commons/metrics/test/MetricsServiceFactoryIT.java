@@ -31,6 +31,7 @@ import org.ops4j.pax.exam.spi.reactors.PerClass;
 
 import static org.apache.sling.testing.paxexam.SlingOptions.scr;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 import static org.ops4j.pax.exam.CoreOptions.junitBundles;
 import static org.ops4j.pax.exam.CoreOptions.mavenBundle;
@@ -81,4 +82,25 @@ public class MetricsServiceFactoryIT extends TestSupport {
         final MetricsService m = MetricsServiceFactory.getMetricsService(getClass());
         assertNotNull("Expecting a MetricsService", m);
     }
+
+    @Test
+    public void cachedNullClass() {
+        try {
+            MetricsServiceFactory.getCachedMetricsService(null);
+            fail("Expecting an Exception");
+        } catch (IllegalArgumentException asExpected) {
+        }
+    }
+
+    @Test
+    public void cachedClassFromBundle() {
+        final MetricsService m = MetricsServiceFactory.getCachedMetricsService(getClass());
+        assertSame("Expecting a cached MetricsService", m, MetricsServiceFactory.getCachedMetricsService(getClass()));
+
+        // The NOOP MetricsService does not create gauges
+        assertNotNull("Expecting the registered MetricsService", m.gauge("cached.gauge", () -> 42));
+        assertSame(
+                m.counter("cached.counter"),
+                MetricsServiceFactory.getMetricsService(getClass()).counter("cached.counter"));
+    }
 }